@@ -0,0 +1,163 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.db.Subscription;
+import org.bedework.synch.exception.SynchException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Adjust the refresh delay for polled subscriptions according to how often
+ * they change. This is off unless enabled in the configuration.
+ *
+ * <p>We keep a decayed average of the changes found by recent refreshes so a
+ * single change, or a single quiet refresh, doesn't swing the delay. While
+ * the average is near zero the delay is stretched by half as much again. When
+ * it shows regular changes the delay is halved, or drops straight back to the
+ * subscription's own refresh delay if there were many.
+ *
+ * <p>The delay is never less than the refresh delay configured for the
+ * subscription nor more than the configured maximum. It is saved with the
+ * subscription.
+ */
+public class AdaptiveRefresh {
+  /* A busy subscription goes straight back to its own delay */
+  private static final double busyChanges = 10;
+
+  /* At or above this we shorten the delay */
+  private static final double changing = 1;
+
+  /* Below this we stretch the delay */
+  private static final double quiet = 0.25;
+
+  /* Weight of the latest refresh in the average */
+  private static final double decay = 0.5;
+
+  private StatLong stretchedCt = new StatLong("refresh delay stretched");
+
+  private StatLong shrunkCt = new StatLong("refresh delay shrunk");
+
+  /** Adjust the refresh delay after a refresh.
+   *
+   * @param sub
+   * @param changes - number of items created, updated or deleted
+   * @param enabled - false to use the subscription refresh delay
+   * @param maxDelay - millisecs. 0 or less for no bound
+   * @throws SynchException
+   */
+  public void update(final Subscription sub,
+                     final long changes,
+                     final boolean enabled,
+                     final long maxDelay) throws SynchException {
+    if (!sub.polling()) {
+      return;
+    }
+
+    BaseSubscriptionInfo info = sub.refreshInfo();
+
+    if (!enabled) {
+      /* Drop anything we learned while it was on */
+      if (info.getAdaptiveRefreshDelay() != null) {
+        info.setAdaptiveRefreshDelay(null);
+        info.setChangeRate(null);
+      }
+
+      return;
+    }
+
+    double rate = rate(info.getChangeRate(), changes);
+    info.setChangeRate(String.valueOf(rate));
+
+    long current = sub.refreshDelay();
+    long delay = delay(current, rate,
+                       Long.valueOf(info.getRefreshDelay()), maxDelay);
+
+    if (delay == current) {
+      return;
+    }
+
+    if (delay > current) {
+      stretchedCt.inc();
+    } else {
+      shrunkCt.inc();
+    }
+
+    info.setAdaptiveRefreshDelay(String.valueOf(delay));
+  }
+
+  /** Get the current stats
+   *
+   * @return List of Stat
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    stats.add(stretchedCt);
+    stats.add(shrunkCt);
+
+    return stats;
+  }
+
+  /* ====================================================================
+   *                        private methods
+   * ==================================================================== */
+
+  /* The new delay for the current one and change rate */
+  static long delay(final long current,
+                    final double rate,
+                    final long minDelay,
+                    final long maxDelay) {
+    long delay;
+
+    if (rate < quiet) {
+      delay = current + (current / 2);
+    } else if (rate > busyChanges) {
+      delay = minDelay;
+    } else if (rate >= changing) {
+      delay = current / 2;
+    } else {
+      delay = current;
+    }
+
+    if (maxDelay > 0) {
+      delay = Math.min(maxDelay, delay);
+    }
+
+    return Math.max(minDelay, delay);
+  }
+
+  /* Fold the latest count into the saved average */
+  static double rate(final String saved,
+                     final long changes) {
+    if (saved == null) {
+      return changes;
+    }
+
+    double prev;
+
+    try {
+      prev = Double.parseDouble(saved);
+    } catch (NumberFormatException nfe) {
+      return changes;
+    }
+
+    return (decay * changes) + ((1 - decay) * prev);
+  }
+}
@@ -42,6 +42,9 @@ public class BaseSubscriptionInfo {
    */
   public static final String propnameChangeToken = "ctoken";
 
+  /** Opaque token from the last delta enumeration of the end */
+  public static final String propnameDeltaToken = "dtoken";
+
   /** A principal - possibly an href or an account */
   public static final String propnamePrincipal = "principal";
 
@@ -51,6 +54,18 @@ public class BaseSubscriptionInfo {
   /** Refresh period for polling subscriptions (millisecs) */
   public static final String propnameRefreshDelay = "refreshDelay";
 
+  /** Refresh period learned from the rate of change (millisecs) */
+  public static final String propnameAdaptiveRefreshDelay = "adaptiveRefreshDelay";
+
+  /** Decayed average of the number of changes found by recent refreshes */
+  public static final String propnameChangeRate = "changeRate";
+
+  /** Number of items at this end at the last full synch */
+  public static final String propnameItemCount = "itemCount";
+
+  /** Set if a synch was owed or cut short when the engine stopped */
+  public static final String propnameResynchPending = "resynch-pending";
+
   /** A string value that provides information about the last refresh for this
    * end of the subscription
    */
@@ -190,6 +205,24 @@ public class BaseSubscriptionInfo {
     return info.getProperty(propnameChangeToken);
   }
 
+  /** DeltaToken
+   *
+   * @param val    String - null to force a full enumeration
+   * @throws SynchException
+   */
+  public void setDeltaToken(final String val) throws SynchException {
+    info.setProperty(propnameDeltaToken, val);
+  }
+
+  /** DeltaToken
+   *
+   * @return String
+   * @throws SynchException
+   */
+  public String getDeltaToken() throws SynchException {
+    return info.getProperty(propnameDeltaToken);
+  }
+
   /** HTTP status or other appropriate value
    * @param val
    * @throws SynchException
@@ -274,6 +307,88 @@ public class BaseSubscriptionInfo {
     return info.getProperty(propnameRefreshDelay);
   }
 
+  /** Refresh delay learned from the rate of change - millisecs
+   *
+   * @param val
+   * @throws SynchException
+   */
+  public void setAdaptiveRefreshDelay(final String val) throws SynchException {
+    info.setProperty(propnameAdaptiveRefreshDelay, val);
+  }
+
+  /** Refresh delay learned from the rate of change - millisecs
+   *
+   * @return String adaptive refreshDelay or null
+   * @throws SynchException
+   */
+  public String getAdaptiveRefreshDelay() throws SynchException {
+    return info.getProperty(propnameAdaptiveRefreshDelay);
+  }
+
+  /** Decayed average of the changes found by recent refreshes
+   *
+   * @param val
+   * @throws SynchException
+   */
+  public void setChangeRate(final String val) throws SynchException {
+    info.setProperty(propnameChangeRate, val);
+  }
+
+  /** Decayed average of the changes found by recent refreshes
+   *
+   * @return String change rate or null
+   * @throws SynchException
+   */
+  public String getChangeRate() throws SynchException {
+    return info.getProperty(propnameChangeRate);
+  }
+
+  /** Number of items at this end at the last full synch
+   *
+   * @param val
+   * @throws SynchException
+   */
+  public void setItemCount(final int val) throws SynchException {
+    info.setProperty(propnameItemCount, String.valueOf(val));
+  }
+
+  /**
+   * @return number of items at the last full synch - 0 if not known
+   * @throws SynchException
+   */
+  public int getItemCount() throws SynchException {
+    String s = info.getProperty(propnameItemCount);
+
+    if (s == null) {
+      return 0;
+    }
+
+    return Integer.valueOf(s);
+  }
+
+  /** Flag a synch as owed - it will be run at startup without waiting for a
+   * change to be detected.
+   *
+   * @param val
+   * @throws SynchException
+   */
+  public void setResynchPending(final boolean val) throws SynchException {
+    if (val) {
+      info.setProperty(propnameResynchPending, String.valueOf(val));
+    } else {
+      // null removes it
+      info.setProperty(propnameResynchPending, null);
+    }
+  }
+
+  /**
+   * @return true if a synch was owed when the engine stopped
+   * @throws SynchException
+   */
+  public boolean getResynchPending() throws SynchException {
+    return Boolean.valueOf(info.getProperty(propnameResynchPending));
+  }
+
   /** set arbitrary named property
    * @param name
    * @param val - String property value
@@ -323,6 +438,8 @@ public class BaseSubscriptionInfo {
       sb.append(getTotalCrudCts());
       sb.append(", refreshDelay = ");
       sb.append(getRefreshDelay());
+      sb.append(", adaptiveRefreshDelay = ");
+      sb.append(getAdaptiveRefreshDelay());
     } catch (Throwable t) {
       sb.append(t.getMessage());
     }
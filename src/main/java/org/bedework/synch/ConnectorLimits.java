@@ -0,0 +1,234 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.db.Subscription;
+import org.bedework.synch.db.SubscriptionConnectorInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/** Limits on the number of synchs in progress for each connector. A synch
+ * takes a permit for the connector at each end of the subscription.
+ *
+ * <p>Permits are always taken in connector id order so two synchs can't
+ * each hold one and wait for the other.
+ *
+ * <p>Changing a limit resizes the existing permits so synchs holding them
+ * when the limit changes are still counted.
+ */
+public class ConnectorLimits {
+  private static class Permits extends Semaphore {
+    Permits(final int permits) {
+      super(permits, true);
+    }
+
+    /* Make reducePermits visible. Available permits may go negative until
+     * enough are released. */
+    void reduce(final int reduction) {
+      reducePermits(reduction);
+    }
+  }
+
+  private static class Limit {
+    int max;
+
+    Permits permits;
+
+    Limit(final int max) {
+      this.max = max;
+      permits = new Permits(max);
+    }
+
+    void resize(final int newMax) {
+      if (newMax > max) {
+        permits.release(newMax - max);
+      } else if (newMax < max) {
+        permits.reduce(max - newMax);
+      }
+
+      max = newMax;
+    }
+  }
+
+  private Map<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+
+  private StatLong waitCt = new StatLong("connector limit waits");
+
+  private StatLong busyCt = new StatLong("connector limit busy");
+
+  /** Set the limit for a connector.
+   *
+   * @param connectorId
+   * @param max - null or not positive for no limit
+   */
+  public synchronized void setLimit(final String connectorId,
+                                    final Integer max) {
+    if ((max == null) || (max <= 0)) {
+      limits.remove(connectorId);
+      return;
+    }
+
+    Limit l = limits.get(connectorId);
+
+    if (l == null) {
+      limits.put(connectorId, new Limit(max));
+      return;
+    }
+
+    l.resize(max);
+  }
+
+  /** Wait for permits for the connectors used by the subscription.
+   *
+   * @param sub
+   * @return permits to release - never null
+   * @throws InterruptedException
+   */
+  public List<Semaphore> acquire(final Subscription sub) throws InterruptedException {
+    List<Semaphore> held = new ArrayList<Semaphore>();
+
+    boolean ok = false;
+
+    try {
+      for (Semaphore s: permits(sub)) {
+        if (!s.tryAcquire()) {
+          waitCt.inc();
+          s.acquire();
+        }
+
+        held.add(s);
+      }
+
+      ok = true;
+    } finally {
+      if (!ok) {
+        release(held);
+      }
+    }
+
+    return held;
+  }
+
+  /** Take permits for the connectors used by the subscription if they are
+   * all available now.
+   *
+   * @param sub
+   * @return permits to release or null if a connector is at its limit
+   */
+  public List<Semaphore> tryAcquire(final Subscription sub) {
+    List<Semaphore> held = new ArrayList<Semaphore>();
+
+    for (Semaphore s: permits(sub)) {
+      if (!s.tryAcquire()) {
+        busyCt.inc();
+        release(held);
+        return null;
+      }
+
+      held.add(s);
+    }
+
+    return held;
+  }
+
+  /** A synch holds one permit per connector, so its two ends may only talk
+   * to their connectors at the same time if they are different connectors
+   * or the shared one has no limit.
+   *
+   * @param sub
+   * @return true if both ends may be worked on at once
+   */
+  public boolean concurrentEnds(final Subscription sub) {
+    String aid = sub.getEndAConnectorInfo().getConnectorId();
+
+    if ((aid == null) ||
+        !aid.equals(sub.getEndBConnectorInfo().getConnectorId())) {
+      return true;
+    }
+
+    return !limits.containsKey(aid);
+  }
+
+  /**
+   * @param held - from acquire
+   */
+  public void release(final List<Semaphore> held) {
+    for (Semaphore s: held) {
+      s.release();
+    }
+
+    held.clear();
+  }
+
+  /** Get the current stats
+   *
+   * @return List of Stat
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    for (Map.Entry<String, Limit> ent: limits.entrySet()) {
+      Limit l = ent.getValue();
+
+      stats.add(new Stat("connector " + ent.getKey() + " synchs",
+                         l.max - l.permits.availablePermits()));
+    }
+
+    stats.add(waitCt);
+    stats.add(busyCt);
+
+    return stats;
+  }
+
+  /* Permits for the limited connectors of the subscription in id order */
+  private List<Semaphore> permits(final Subscription sub) {
+    List<Semaphore> ps = new ArrayList<Semaphore>();
+
+    if ((sub == null) || limits.isEmpty()) {
+      return ps;
+    }
+
+    SortedSet<String> ids = new TreeSet<String>();
+    addId(ids, sub.getEndAConnectorInfo());
+    addId(ids, sub.getEndBConnectorInfo());
+
+    for (String id: ids) {
+      Limit l = limits.get(id);
+
+      if (l != null) {
+        ps.add(l.permits);
+      }
+    }
+
+    return ps;
+  }
+
+  private void addId(final SortedSet<String> ids,
+                     final SubscriptionConnectorInfo info) {
+    if ((info != null) && (info.getConnectorId() != null)) {
+      ids.add(info.getConnectorId());
+    }
+  }
+}
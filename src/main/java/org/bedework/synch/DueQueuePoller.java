@@ -0,0 +1,267 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.Notification.NotificationItem;
+import org.bedework.synch.Notification.NotificationItem.ActionType;
+import org.bedework.synch.db.Subscription;
+import org.bedework.synch.wsmessages.SynchEndType;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** Find polled subscriptions which are due for a refresh by polling the db
+ * instead of holding a timer entry for each one.
+ *
+ * <p>Each subscription's next refresh time is stored in an indexed column.
+ * Every poll interval we read those due in order of due time, a batch at a
+ * time, and queue a full synch for each. We remember what we queued until the
+ * synch reschedules it so the next poll doesn't queue it again. If the queue
+ * is backed up we stop and pick up the rest on the next poll.
+ */
+public class DueQueuePoller {
+  private transient Logger log;
+
+  private final boolean debug;
+
+  private final SynchEngine syncher;
+
+  private final long pollInterval;
+
+  private final int batchSize;
+
+  /* If a queued subscription hasn't been rescheduled in this time we assume
+   * the synch was lost and let the next poll pick it up again.
+   */
+  private long pendingTimeout = 10 * 60 * 1000;
+
+  /* Subscription id and when we queued it */
+  private final ConcurrentMap<String, Long> pending =
+      new ConcurrentHashMap<String, Long>();
+
+  private PollerThread poller;
+
+  private volatile boolean stopping;
+
+  /* Some counts */
+
+  private StatLong pollsCt = new StatLong("due queue polls");
+
+  private StatLong dueCt = new StatLong("due queue queued");
+
+  private StatLong rejectedCt = new StatLong("due queue rejected");
+
+  private StatLong lostCt = new StatLong("due queue lost");
+
+  private StatLong pendingCt = new StatLong("due queue pending");
+
+  private class PollerThread extends Thread {
+    PollerThread() {
+      super("SynchDueQueue");
+    }
+
+    @Override
+    public void run() {
+      while (!stopping) {
+        try {
+          poll();
+        } catch (Throwable t) {
+          if (!stopping) {
+            error(t);
+          }
+        }
+
+        try {
+          Thread.sleep(pollInterval);
+        } catch (InterruptedException ie) {
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * @param syncher
+   * @param pollInterval - millisecs
+   * @param batchSize - number read at a time
+   */
+  public DueQueuePoller(final SynchEngine syncher,
+                        final long pollInterval,
+                        final int batchSize) {
+    this.syncher = syncher;
+    this.pollInterval = Math.max(100, pollInterval);
+    this.batchSize = Math.max(1, batchSize);
+
+    debug = getLogger().isDebugEnabled();
+  }
+
+  /** Start polling.
+   */
+  public void start() {
+    poller = new PollerThread();
+    poller.setDaemon(true);
+    poller.start();
+  }
+
+  /** Stop polling.
+   */
+  public void stop() {
+    if (poller == null) {
+      return;
+    }
+
+    stopping = true;
+    poller.interrupt();
+    poller = null;
+  }
+
+  /** The subscription has been processed and rescheduled or deleted.
+   *
+   * @param subscriptionId
+   */
+  public void done(final String subscriptionId) {
+    if (pending.remove(subscriptionId) != null) {
+      pendingCt.dec();
+    }
+  }
+
+  /**
+   * @return stats for the poller
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    stats.add(pollsCt);
+    stats.add(dueCt);
+    stats.add(rejectedCt);
+    stats.add(lostCt);
+    stats.add(pendingCt);
+
+    return stats;
+  }
+
+  /** Read and queue everything which is due, a batch at a time.
+   *
+   * @throws Throwable
+   */
+  void poll() throws Throwable {
+    long now = System.currentTimeMillis();
+
+    pollsCt.inc();
+    dropLost(now);
+
+    long afterTime = 0;
+    String afterId = null;
+
+    while (!stopping) {
+      List<Subscription> due = syncher.getDue(now, afterTime, afterId,
+                                              batchSize);
+
+      List<Notification<NotificationItem>> notes =
+          new ArrayList<Notification<NotificationItem>>();
+
+      for (Subscription sub: due) {
+        if (pending.containsKey(sub.getSubscriptionId())) {
+          continue;
+        }
+
+        syncher.setConnectors(sub);
+
+        if (!sub.polling() || !syncher.owns(sub)) {
+          /* Not polled subscriptions have no due time */
+          continue;
+        }
+
+        pending.put(sub.getSubscriptionId(), now);
+        pendingCt.inc();
+
+        NotificationItem ni = new NotificationItem(ActionType.FullSynch,
+                                                   null, null);
+        notes.add(new Notification<NotificationItem>(
+            sub, SynchEndType.NONE, ni));
+      }
+
+      if (!notes.isEmpty()) {
+        List<Notification<NotificationItem>> rejected =
+            syncher.queueNotifications(notes);
+
+        dueCt.add(notes.size() - rejected.size());
+
+        if (!rejected.isEmpty()) {
+          /* Backed up - leave the rest for the next poll */
+          for (Notification<NotificationItem> note: rejected) {
+            done(note.getSubscriptionId());
+          }
+
+          rejectedCt.add(rejected.size());
+
+          if (debug) {
+            trace("Queue backed up: " + rejected.size() + " rejected");
+          }
+
+          return;
+        }
+      }
+
+      if (due.size() < batchSize) {
+        return;
+      }
+
+      Subscription last = due.get(due.size() - 1);
+      afterTime = last.getNextRefreshTime();
+      afterId = last.getSubscriptionId();
+    }
+  }
+
+  private void dropLost(final long now) {
+    Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+
+    while (it.hasNext()) {
+      Map.Entry<String, Long> ent = it.next();
+
+      if ((now - ent.getValue()) > pendingTimeout) {
+        it.remove();
+        pendingCt.dec();
+        lostCt.inc();
+      }
+    }
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+
+  private void trace(final String msg) {
+    getLogger().debug(msg);
+  }
+
+  private void error(final Throwable t) {
+    getLogger().error(this, t);
+  }
+}
@@ -0,0 +1,210 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.cnctrs.ConnectorInstance.ItemInfo;
+import org.bedework.synch.db.SynchItemState;
+import org.bedework.synch.wsmessages.SynchEndType;
+
+import edu.rpi.sss.util.Util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** What a synch learns of the items at one end and what it records of them
+ * in their SynchItemState when it is done.
+ *
+ * <p>An item is unchanged at an end while its listed lastmod is the one we
+ * recorded. When we write an item we record the lastmod and change token it
+ * has after the write, so the next synch doesn't take our own write for a
+ * change at that end.
+ */
+class EndStates {
+  final SynchEndType end;
+
+  /* Items listed at this end, or those in the delta */
+  Map<String, ItemInfo> items;
+
+  /* Change tokens seen for items at this end - null if not known */
+  Map<String, String> etags = new HashMap<String, String>();
+
+  /* Lastmods of items we wrote at this end as they were after the write -
+   * null if we could not tell
+   */
+  Map<String, String> written = new HashMap<String, String>();
+
+  /* Content fingerprints recorded at the last synch */
+  Map<String, String> lastFingerprints = new HashMap<String, String>();
+
+  /* Content fingerprints for items at this end now */
+  Map<String, String> fingerprints = new HashMap<String, String>();
+
+  EndStates(final SynchEndType end) {
+    this.end = end;
+  }
+
+  /** Take what we recorded for this end at the last synch.
+   *
+   * @param st
+   */
+  void load(final SynchItemState st) {
+    boolean endA = end == SynchEndType.A;
+
+    lastFingerprints.put(st.getUid(),
+                         endA ? st.getEndAFingerprint() :
+                                st.getEndBFingerprint());
+
+    ItemInfo ii = items.get(st.getUid());
+
+    if (ii != null) {
+      ii.lastSynch = endA ? st.getEndALastmod() : st.getEndBLastmod();
+    }
+  }
+
+  /** We fetched the item from this end.
+   *
+   * @param uid
+   * @param changeToken
+   * @param fingerprint
+   */
+  void fetched(final String uid,
+               final String changeToken,
+               final String fingerprint) {
+    etags.put(uid, changeToken);
+    fingerprints.put(uid, fingerprint);
+  }
+
+  /** We wrote the item at this end.
+   *
+   * @param uid
+   * @param lastmod - as listed after the write - null if not known
+   * @param changeToken - after the write - null if not known
+   * @param fingerprint - of what we wrote
+   */
+  void wrote(final String uid,
+             final String lastmod,
+             final String changeToken,
+             final String fingerprint) {
+    written.put(uid, lastmod);
+    etags.put(uid, changeToken);
+    fingerprints.put(uid, fingerprint);
+  }
+
+  /**
+   * @param uid
+   * @return true if we listed the item and it changed since we synched it.
+   *         False if we did not list this end or it was not in the delta.
+   */
+  boolean changedAt(final String uid) {
+    ItemInfo ii = items.get(uid);
+
+    return (ii != null) && changedSince(ii);
+  }
+
+  /** An item is changed if its lastmod moved on from the one we recorded
+   * when we last synched it.
+   *
+   * @param ii
+   * @return true if changed or never synched
+   */
+  static boolean changedSince(final ItemInfo ii) {
+    return (ii.lastSynch == null) || !ii.lastSynch.equals(ii.lastMod);
+  }
+
+  /** Set what we know of the item at this end now into the state.
+   *
+   * @param st
+   * @param uid
+   * @param delta - true if the items are only the changes
+   * @return true if the state for the end changed
+   */
+  boolean record(final SynchItemState st,
+                 final String uid,
+                 final boolean delta) {
+    boolean endA = end == SynchEndType.A;
+    String oldLastmod;
+    String oldEtag;
+    String oldFingerprint;
+
+    if (endA) {
+      oldLastmod = st.getEndALastmod();
+      oldEtag = st.getEndAEtag();
+      oldFingerprint = st.getEndAFingerprint();
+    } else {
+      oldLastmod = st.getEndBLastmod();
+      oldEtag = st.getEndBEtag();
+      oldFingerprint = st.getEndBFingerprint();
+    }
+
+    ItemInfo ii = items.get(uid);
+    String lastmod;
+    String etag;
+
+    if (written.containsKey(uid)) {
+      lastmod = written.get(uid);
+      etag = etags.get(uid);
+    } else {
+      if (ii != null) {
+        lastmod = ii.lastMod;
+      } else if (delta) {
+        // Not in the delta so unchanged
+        lastmod = oldLastmod;
+      } else {
+        // Not at this end
+        lastmod = null;
+      }
+
+      if (etags.containsKey(uid)) {
+        etag = etags.get(uid);
+      } else if (Util.cmpObjval(lastmod, oldLastmod) == 0) {
+        etag = oldEtag;
+      } else {
+        etag = null;
+      }
+    }
+
+    String fingerprint;
+
+    if (fingerprints.containsKey(uid)) {
+      fingerprint = fingerprints.get(uid);
+    } else if (Util.cmpObjval(lastmod, oldLastmod) == 0) {
+      fingerprint = oldFingerprint;
+    } else {
+      fingerprint = null;
+    }
+
+    if ((Util.cmpObjval(lastmod, oldLastmod) == 0) &&
+        (Util.cmpObjval(etag, oldEtag) == 0) &&
+        (Util.cmpObjval(fingerprint, oldFingerprint) == 0)) {
+      return false;
+    }
+
+    if (endA) {
+      st.setEndALastmod(lastmod);
+      st.setEndAEtag(etag);
+      st.setEndAFingerprint(fingerprint);
+    } else {
+      st.setEndBLastmod(lastmod);
+      st.setEndBEtag(etag);
+      st.setEndBFingerprint(fingerprint);
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,193 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.exception.SynchException;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Fetch batches on another thread while the current one is applied.
+ *
+ * <p>At most depth fetched batches wait to be applied, so a slow apply holds
+ * up the fetching rather than filling memory. Batches are applied in order
+ * and only on the calling thread. If there is no other thread, or only one
+ * batch, each batch is fetched then applied in turn.
+ *
+ * @param <B> a batch to fetch
+ * @param <F> a fetched batch
+ */
+abstract class FetchPipeline<B, F> {
+  private final int depth;
+
+  /* A fetched batch - value is null for the end marker */
+  private static class Fetched<F> {
+    F value;
+
+    Fetched(final F value) {
+      this.value = value;
+    }
+  }
+
+  /**
+   * @param depth - max fetched batches waiting to be applied
+   */
+  FetchPipeline(final int depth) {
+    this.depth = Math.max(1, depth);
+  }
+
+  /** Called on the fetching thread.
+   *
+   * @param batch
+   * @return the fetched batch
+   * @throws SynchException
+   */
+  abstract F fetch(B batch) throws SynchException;
+
+  /** Called on the calling thread in batch order.
+   *
+   * @param fetched
+   * @throws SynchException
+   */
+  abstract void apply(F fetched) throws SynchException;
+
+  /** Run the call on another thread.
+   *
+   * @param call
+   * @return future or null if there is no thread for it
+   */
+  abstract Future<Object> start(Callable<Object> call);
+
+  /**
+   * @return true to stop before the next batch
+   */
+  boolean cancelled() {
+    return false;
+  }
+
+  /** Fetch and apply all the batches. A fetch failure is thrown here after
+   * the batches fetched before it are applied.
+   *
+   * @param batches
+   * @throws SynchException
+   */
+  void run(final List<B> batches) throws SynchException {
+    if (batches.isEmpty()) {
+      return;
+    }
+
+    final BlockingQueue<Fetched<F>> fetched =
+        new ArrayBlockingQueue<Fetched<F>>(depth);
+    final AtomicBoolean stop = new AtomicBoolean();
+    final Fetched<F> end = new Fetched<F>(null);
+    Future<Object> fetcher = null;
+
+    if (batches.size() > 1) {
+      fetcher = start(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          try {
+            for (B b: batches) {
+              if (stop.get() || cancelled() ||
+                  !pass(fetched, new Fetched<F>(fetch(b)), stop)) {
+                break;
+              }
+            }
+
+            return null;
+          } finally {
+            pass(fetched, end, stop);
+          }
+        }
+      });
+    }
+
+    try {
+      if (fetcher == null) {
+        for (B b: batches) {
+          if (cancelled()) {
+            return;
+          }
+
+          apply(fetch(b));
+        }
+
+        return;
+      }
+
+      for (;;) {
+        Fetched<F> f = fetched.take();
+
+        if (f == end) {
+          // Rethrows any fetch failure
+          fetcher.get();
+          return;
+        }
+
+        if (cancelled()) {
+          return;
+        }
+
+        apply(f.value);
+      }
+    } catch (SynchException se) {
+      throw se;
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof SynchException) {
+        throw (SynchException)ee.getCause();
+      }
+
+      throw new SynchException(ee.getCause());
+    } catch (Throwable t) {
+      throw new SynchException(t);
+    } finally {
+      if ((fetcher != null) && !fetcher.isDone()) {
+        /* Stop the fetcher and make room for it to finish */
+        stop.set(true);
+
+        while (!fetcher.isDone()) {
+          try {
+            fetched.poll(100, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException ie) {
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /* Wait while the applier is behind. False if it gave up on us. */
+  private static <F> boolean pass(final BlockingQueue<Fetched<F>> fetched,
+                                  final Fetched<F> f,
+                                  final AtomicBoolean stop) throws InterruptedException {
+    while (!fetched.offer(f, 100, TimeUnit.MILLISECONDS)) {
+      if (stop.get()) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
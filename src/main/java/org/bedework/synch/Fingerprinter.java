@@ -0,0 +1,172 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.exception.SynchException;
+
+import ietf.params.xml.ns.icalendar_2.ArrayOfComponents;
+import ietf.params.xml.ns.icalendar_2.ArrayOfProperties;
+import ietf.params.xml.ns.icalendar_2.BaseComponentType;
+import ietf.params.xml.ns.icalendar_2.BasePropertyType;
+import ietf.params.xml.ns.icalendar_2.IcalendarType;
+import ietf.params.xml.ns.icalendar_2.VcalendarType;
+
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.Marshaller;
+
+/** Computes a fingerprint of the xCal content of an item. Properties and
+ * components are put in a canonical order and those we skip when comparing
+ * are left out, so two items with the same fingerprint will not differ.
+ * Different fingerprints only mean we have to look.
+ */
+public class Fingerprinter {
+  /* Thread safe and expensive to build - marshallers are neither */
+  private static JAXBContext icalJc;
+
+  private final Map<String, Object> skipMap;
+
+  /**
+   * @param skipMap - properties and components to leave out keyed by
+   *                  class name, as used for the diff
+   */
+  public Fingerprinter(final Map<String, Object> skipMap) {
+    this.skipMap = skipMap;
+  }
+
+  /** Build the expensive parts ahead of the first synch.
+   *
+   * @throws SynchException
+   */
+  public static void init() throws SynchException {
+    getJAXBContext();
+  }
+
+  /**
+   * @param val
+   * @return hex SHA-1 of the canonical form
+   * @throws SynchException
+   */
+  public String fingerprint(final IcalendarType val) throws SynchException {
+    try {
+      Marshaller m = getJAXBContext().createMarshaller();
+      m.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+
+      List<String> parts = new ArrayList<String>();
+
+      for (VcalendarType vcal: val.getVcalendar()) {
+        parts.add(canonical(m, vcal));
+      }
+
+      Collections.sort(parts);
+
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+
+      for (String s: parts) {
+        md.update(s.getBytes("UTF-8"));
+      }
+
+      StringBuilder sb = new StringBuilder();
+
+      for (byte b: md.digest()) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+
+      return sb.toString();
+    } catch (SynchException se) {
+      throw se;
+    } catch (Throwable t) {
+      throw new SynchException(t);
+    }
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private String canonical(final Marshaller m,
+                           final BaseComponentType comp) throws Throwable {
+    List<String> parts = new ArrayList<String>();
+
+    ArrayOfProperties props = comp.getProperties();
+
+    if (props != null) {
+      for (JAXBElement<? extends BasePropertyType> jprop:
+           props.getBasePropertyOrTzid()) {
+        if (skipMap.get(jprop.getValue().getClass().getCanonicalName()) != null) {
+          continue;
+        }
+
+        StringWriter sw = new StringWriter();
+        m.marshal(jprop, sw);
+        parts.add(sw.toString());
+      }
+    }
+
+    ArrayOfComponents comps = comp.getComponents();
+
+    if (comps != null) {
+      for (JAXBElement jaxbCcomp: comps.getBaseComponent()) {
+        BaseComponentType c = (BaseComponentType)jaxbCcomp.getValue();
+
+        if (skipMap.get(c.getClass().getCanonicalName()) != null) {
+          continue;
+        }
+
+        parts.add(canonical(m, c));
+      }
+    }
+
+    Collections.sort(parts);
+
+    StringBuilder sb = new StringBuilder(comp.getClass().getSimpleName());
+
+    sb.append("{\n");
+
+    for (String s: parts) {
+      sb.append(s);
+      sb.append("\n");
+    }
+
+    sb.append("}");
+
+    return sb.toString();
+  }
+
+  private static synchronized JAXBContext getJAXBContext() throws SynchException {
+    try {
+      if (icalJc == null) {
+        icalJc = JAXBContext.newInstance(
+                     IcalendarType.class.getPackage().getName());
+      }
+
+      return icalJc;
+    } catch (Throwable t) {
+      throw new SynchException(t);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Record times in a fixed set of buckets. Recording is lock free. The
+ * percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+  /* Upper bounds of the buckets in millisecs. There is one more bucket for
+   * anything larger.
+   */
+  private static final long[] bounds = {
+    0, 1, 2, 5, 10, 20, 50, 100, 200, 500,
+    1000, 2000, 5000, 10000, 30000, 60000
+  };
+
+  private final String name;
+
+  private final AtomicLongArray counts =
+      new AtomicLongArray(bounds.length + 1);
+
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param name - used as a prefix for the stats
+   */
+  public LatencyHistogram(final String name) {
+    this.name = name;
+  }
+
+  /**
+   * @param millis
+   */
+  public void record(final long millis) {
+    counts.incrementAndGet(bucket(millis));
+
+    while (true) {
+      long m = max.get();
+
+      if ((millis <= m) || max.compareAndSet(m, millis)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * @return number recorded
+   */
+  public long getCount() {
+    long ct = 0;
+
+    for (int i = 0; i < counts.length(); i++) {
+      ct += counts.get(i);
+    }
+
+    return ct;
+  }
+
+  /**
+   * @return largest value recorded
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @param p - percentile between 0 and 100
+   * @return upper bound of the bucket containing the percentile or the max
+   *          for the last bucket.
+   */
+  public long getPercentile(final double p) {
+    long total = getCount();
+
+    if (total == 0) {
+      return 0;
+    }
+
+    long target = (long)Math.ceil((p / 100) * total);
+    long ct = 0;
+
+    for (int i = 0; i < bounds.length; i++) {
+      ct += counts.get(i);
+
+      if (ct >= target) {
+        return Math.min(bounds[i], getMax());
+      }
+    }
+
+    return getMax();
+  }
+
+  /** Get the current stats
+   *
+   * @return List of Stat
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    stats.add(new Stat(name + " count", getCount()));
+    stats.add(new Stat(name + " p50 (ms)", getPercentile(50)));
+    stats.add(new Stat(name + " p99 (ms)", getPercentile(99)));
+    stats.add(new Stat(name + " max (ms)", getMax()));
+
+    return stats;
+  }
+
+  private static int bucket(final long millis) {
+    for (int i = 0; i < bounds.length; i++) {
+      if (millis <= bounds[i]) {
+        return i;
+      }
+    }
+
+    return bounds.length;
+  }
+}
@@ -0,0 +1,190 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.exception.SynchException;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/** Daily periods of local time when large full synchs may run, e.g.
+ * "01:00-05:00,22:00-23:30". A window may cross midnight, e.g. "23:00-02:00".
+ *
+ * <p>Synchs deferred to a window are spread over it by subscription id so
+ * they don't all start together when it opens.
+ */
+public class MaintenanceWindows {
+  private static final long minute = 60 * 1000;
+
+  private static final int minutesPerDay = 24 * 60;
+
+  /* Start and end in minutes since midnight */
+  private static class Window {
+    int start;
+    int end;
+
+    Window(final int start, final int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    int length() {
+      if (end > start) {
+        return end - start;
+      }
+
+      return end + minutesPerDay - start;
+    }
+
+    boolean contains(final int min) {
+      if (end > start) {
+        return (min >= start) && (min < end);
+      }
+
+      return (min >= start) || (min < end);
+    }
+  }
+
+  private final String spec;
+
+  private final List<Window> windows = new ArrayList<Window>();
+
+  private MaintenanceWindows(final String spec) {
+    this.spec = spec;
+  }
+
+  /**
+   * @param val - comma separated list of hh:mm-hh:mm
+   * @return parsed windows or null for none
+   * @throws SynchException on a bad value
+   */
+  public static MaintenanceWindows parse(final String val) throws SynchException {
+    if ((val == null) || (val.trim().length() == 0)) {
+      return null;
+    }
+
+    MaintenanceWindows mw = new MaintenanceWindows(val);
+
+    for (String w: val.split(",")) {
+      String[] se = w.trim().split("-");
+
+      if (se.length != 2) {
+        throw new SynchException("Bad maintenance window: " + w);
+      }
+
+      int start = minutes(se[0]);
+      int end = minutes(se[1]);
+
+      if (start == end) {
+        throw new SynchException("Empty maintenance window: " + w);
+      }
+
+      mw.windows.add(new Window(start, end));
+    }
+
+    return mw;
+  }
+
+  /**
+   * @param now - millisecs
+   * @return true if we are in one of the windows
+   */
+  public boolean isOpen(final long now) {
+    int min = minuteOfDay(now);
+
+    for (Window w: windows) {
+      if (w.contains(min)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /** How long a large synch of the subscription should wait.
+   *
+   * @param subscriptionId
+   * @param now - millisecs
+   * @return 0 if we are in a window, otherwise the delay to this
+   *         subscription's place in the next window.
+   */
+  public long delay(final String subscriptionId,
+                    final long now) {
+    if (isOpen(now)) {
+      return 0;
+    }
+
+    int min = minuteOfDay(now);
+    Window next = null;
+    int wait = Integer.MAX_VALUE;
+
+    for (Window w: windows) {
+      int untilStart = w.start - min;
+
+      if (untilStart <= 0) {
+        untilStart += minutesPerDay;
+      }
+
+      if (untilStart < wait) {
+        wait = untilStart;
+        next = w;
+      }
+    }
+
+    /* Start of the minute we're in plus whole minutes to the window */
+    long delay = (wait * minute) - (now % minute);
+
+    int h = subscriptionId.hashCode();
+    h ^= (h >>> 16);
+
+    return delay + ((h & Integer.MAX_VALUE) % (next.length() * minute));
+  }
+
+  @Override
+  public String toString() {
+    return spec;
+  }
+
+  private static int minutes(final String hhmm) throws SynchException {
+    try {
+      String[] hm = hhmm.trim().split(":");
+
+      int h = Integer.parseInt(hm[0]);
+      int m = (hm.length > 1) ? Integer.parseInt(hm[1]) : 0;
+
+      if ((h < 0) || (h > 24) || (m < 0) || (m > 59) ||
+          ((h == 24) && (m != 0))) {
+        throw new SynchException("Bad time in maintenance window: " + hhmm);
+      }
+
+      return (h * 60 + m) % minutesPerDay;
+    } catch (NumberFormatException nfe) {
+      throw new SynchException("Bad time in maintenance window: " + hhmm);
+    }
+  }
+
+  private static int minuteOfDay(final long millis) {
+    Calendar cal = Calendar.getInstance();
+
+    cal.setTimeInMillis(millis);
+
+    return (cal.get(Calendar.HOUR_OF_DAY) * 60) + cal.get(Calendar.MINUTE);
+  }
+}
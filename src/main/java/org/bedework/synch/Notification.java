@@ -65,6 +65,8 @@ public class Notification<NI extends Notification.NotificationItem> {
 
   private List<NI> notifications = new ArrayList<NI>();
 
+  private int attempts;
+
   /** Create a notification for a subscription
    * @param sub
    */
@@ -190,6 +192,22 @@ public class Notification<NI extends Notification.NotificationItem> {
     notifications.add(val);
   }
 
+  /** Count another attempt at processing this notification.
+   *
+   * @return number of attempts so far including this one
+   */
+  public int incAttempts() {
+    attempts++;
+    return attempts;
+  }
+
+  /**
+   * @return number of times we tried to process this notification
+   */
+  public int getAttempts() {
+    return attempts;
+  }
+
   /**
    * @author douglm
    */
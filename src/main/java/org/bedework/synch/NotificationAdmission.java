@@ -0,0 +1,255 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.Notification.NotificationItem;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Decide what happens to a notification when it is added to the input
+ * queue. Each source of notifications has a policy which says what we do when
+ * the queue is full, so callers like the timer get an answer quickly rather
+ * than waiting for space.
+ *
+ * <p>By default the timer drops full synchs already queued and is otherwise
+ * turned away when the queue is full, so it is never held up and can
+ * reschedule. Callbacks block and anything else spills to the retry queue so
+ * internal callers are never held up.
+ */
+public class NotificationAdmission {
+  protected transient Logger log;
+
+  /** Where a notification came from
+   */
+  public enum Source {
+    /** Expired subscriptions from the SynchTimer */
+    timer,
+
+    /** Notifications requeued by the callback (web service) path */
+    callback,
+
+    /** Anything else */
+    internal
+  }
+
+  /** What we do with notifications
+   */
+  public enum Policy {
+    /** Wait for space in the queue */
+    block,
+
+    /** Fail at once if the queue is full - the caller retries */
+    reject,
+
+    /** Drop full synchs for subscriptions which already have one queued.
+     * Otherwise as for reject. */
+    dropDuplicate,
+
+    /** If the queue is full hold the notification in the retry queue for
+     * a short while */
+    spill
+  }
+
+  /** Result of trying to queue a notification
+   */
+  public enum Result {
+    /** It's on the queue */
+    queued,
+
+    /** Queue full - try again later */
+    rejected,
+
+    /** Already queued */
+    duplicate,
+
+    /** In the retry queue */
+    spilled
+  }
+
+  private NotificationQueue queue;
+
+  private NotificationRetryQueue retryQueue;
+
+  private Policy[] policies = new Policy[Source.values().length];
+
+  private volatile boolean stopping;
+
+  /* Some counts */
+
+  private StatLong queueFullCt = new StatLong("queue full");
+
+  private StatLong rejectedCt = new StatLong("admission rejected");
+
+  private StatLong[] sourceRejectedCts = new StatLong[Source.values().length];
+
+  private StatLong duplicateCt = new StatLong("admission duplicates dropped");
+
+  private StatLong waitCt = new StatLong("admission waits");
+
+  /**
+   * @param queue
+   * @param retryQueue
+   */
+  public NotificationAdmission(final NotificationQueue queue,
+                               final NotificationRetryQueue retryQueue) {
+    this.queue = queue;
+    this.retryQueue = retryQueue;
+
+    for (Source src: Source.values()) {
+      policies[src.ordinal()] = Policy.block;
+      sourceRejectedCts[src.ordinal()] =
+          new StatLong("admission rejected " + src.name());
+    }
+
+    policies[Source.timer.ordinal()] = Policy.dropDuplicate;
+    policies[Source.internal.ordinal()] = Policy.spill;
+  }
+
+  /** Set the policy for a source from the configured value. Invalid values
+   * are logged and leave the policy unchanged.
+   *
+   * @param src
+   * @param val - name of a Policy - null for no change
+   */
+  public void setPolicy(final Source src,
+                        final String val) {
+    if (val == null) {
+      return;
+    }
+
+    try {
+      setPolicy(src, Policy.valueOf(val));
+    } catch (IllegalArgumentException iae) {
+      warn("Invalid admission policy " + val + " for " + src);
+    }
+  }
+
+  /**
+   * @param src
+   * @param val
+   */
+  public void setPolicy(final Source src,
+                        final Policy val) {
+    policies[src.ordinal()] = val;
+  }
+
+  /**
+   * @param src
+   * @return policy for the source
+   */
+  public Policy getPolicy(final Source src) {
+    return policies[src.ordinal()];
+  }
+
+  /** Stop waiting for space.
+   */
+  public void stop() {
+    stopping = true;
+  }
+
+  /** Try to queue the notification according to the policy for its source.
+   *
+   * @param note
+   * @param src
+   * @return Result
+   */
+  public Result admit(final Notification<NotificationItem> note,
+                      final Source src) {
+    Policy policy = getPolicy(src);
+
+    if ((policy == Policy.dropDuplicate) && queue.isDuplicate(note)) {
+      duplicateCt.inc();
+      return Result.duplicate;
+    }
+
+    if (queue.offer(note)) {
+      return Result.queued;
+    }
+
+    queueFullCt.inc();
+
+    switch (policy) {
+    case spill:
+      retryQueue.spill(note);
+      return Result.spilled;
+
+    case block:
+      waitCt.inc();
+
+      try {
+        while (!stopping) {
+          if (queue.offer(note, 5, TimeUnit.SECONDS)) {
+            return Result.queued;
+          }
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+
+      break;
+
+    default:
+      break;
+    }
+
+    rejectedCt.inc();
+    sourceRejectedCts[src.ordinal()].inc();
+    return Result.rejected;
+  }
+
+  /** Get the current stats
+   *
+   * @return List of Stat
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    stats.add(queueFullCt);
+    stats.add(rejectedCt);
+
+    for (StatLong sl: sourceRejectedCts) {
+      stats.add(sl);
+    }
+
+    stats.add(duplicateCt);
+    stats.add(waitCt);
+
+    return stats;
+  }
+
+  /* ====================================================================
+   *                        private methods
+   * ==================================================================== */
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+
+  private void warn(final String msg) {
+    getLogger().warn(msg);
+  }
+}
@@ -0,0 +1,683 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.Notification.NotificationItem;
+import org.bedework.synch.exception.SynchException;
+
+import org.apache.log4j.Logger;
+import org.oasis_open.docs.ws_calendar.ns.soap.StatusType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Hand notifications to a set of workers. Each worker takes a notification
+ * from the input queue, gets a synchling from the pool and processes it.
+ *
+ * <p>The number of workers matches the size of the synchling pool so the pool
+ * size is the real limit on the number of synchs we run at once.
+ *
+ * <p>Work for any one subscription is serialized. A worker claims the
+ * subscription before processing a notification. Notifications for a
+ * subscription claimed by another worker are deferred to that worker which
+ * processes them in order once it is done.
+ *
+ * <p>Notifications which get a WARNING status are retried after a delay which
+ * increases with each attempt.
+ *
+ * <p>Optionally each synch runs on its own thread - a virtual thread where
+ * the jvm supports them. The workers then only hand out the notifications and
+ * a semaphore limits the number of synchs in progress in place of the
+ * synchling pool.
+ */
+public class NotificationDispatcher {
+  private boolean debug;
+
+  protected transient Logger log;
+
+  private SynchEngine syncher;
+
+  private SynchlingPool synchlingPool;
+
+  private BlockingQueue<Notification<NotificationItem>> notificationInQueue;
+
+  private List<DispatchThread> workers = new ArrayList<DispatchThread>();
+
+  private SubscriptionMailboxes mailboxes = new SubscriptionMailboxes();
+
+  private NotificationRetryQueue retryQueue = new NotificationRetryQueue();
+
+  private volatile boolean stopping;
+
+  /* Set when we stop taking new work but let running synchs finish */
+  private volatile boolean draining;
+
+  /* Set when running synchs should stop at the next safe point */
+  private volatile boolean cancelling;
+
+  /* Workers and synch threads with a notification in hand */
+  private final AtomicInteger busy = new AtomicInteger();
+
+  private final Object drainLock = new Object();
+
+  /* Notifications we took but didn't process because we are draining.
+   * Claims are released under this lock while stopping so the drain sees
+   * each notification either in a mailbox or here.
+   */
+  private final List<Notification<NotificationItem>> leftovers =
+      new ArrayList<Notification<NotificationItem>>();
+
+  /* Set once the drain has collected the leftovers */
+  private boolean drained;
+
+  /* Non-null if each synch gets its own thread */
+  private ThreadFactory synchThreads;
+
+  private Semaphore synchPermits;
+
+  private int maxSynchs;
+
+  private long lastTrace;
+
+  /* How long cancelled synchs get to reach a safe point */
+  private long cancelGrace = 10 * 1000;
+
+  /* Some counts */
+
+  private StatLong notificationsCt = new StatLong("notifications");
+
+  private StatLong inFlight = new StatLong("dispatches in flight");
+
+  private StatLong maxInFlight = new StatLong("max dispatches in flight");
+
+  /** A worker. Takes notifications from the queue and processes them.
+   *
+   */
+  private class DispatchThread extends Thread {
+    /**
+     * @param name - for the thread
+     */
+    DispatchThread(final String name) {
+      super(name);
+    }
+
+    @Override
+    public void run() {
+      while (!stopping) {
+        if (debug) {
+          trace("About to wait for notification");
+        }
+
+        try {
+          Notification<NotificationItem> note = notificationInQueue.take();
+          if (note == null) {
+            continue;
+          }
+
+          busy.incrementAndGet();
+          try {
+            handle(note);
+          } finally {
+            idle();
+          }
+        } catch (InterruptedException ie) {
+          if (!stopping) {
+            warn("Notification dispatcher " + getName() + " interrupted");
+          }
+          break;
+        } catch (Throwable t) {
+          logError(t);
+        }
+      }
+    }
+
+    private void handle(final Notification<NotificationItem> note) throws Throwable {
+      if (draining) {
+        addLeftovers(note, null);
+        return;
+      }
+
+      if (debug) {
+        trace("Received notification");
+      }
+
+      if ((note.getSub() != null) && note.getSub().getDeleted()) {
+        // Drop it
+
+        if (debug) {
+          trace("Dropping deleted notification");
+        }
+
+        return;
+      }
+
+      notificationsCt.inc();
+
+      String subid = note.getSubscriptionId();
+
+      if (subid == null) {
+        process(null, note);
+        return;
+      }
+
+      switch (mailboxes.claimOrDefer(subid, note)) {
+      case claimed:
+        process(subid, note);
+        return;
+
+      case full:
+        // Too much waiting for it - as for a full queue
+        retryQueue.spill(note);
+        return;
+
+      case merged:
+        // A full synch waiting for it covers this one
+        return;
+
+      default:
+        // Another worker has it
+        if (debug) {
+          trace("Deferred notification for busy subscription " + subid);
+        }
+      }
+    }
+  }
+
+  /** Runs a synch on its own thread
+   *
+   */
+  private class SynchTask implements Runnable {
+    private String subid;
+
+    private Notification<NotificationItem> note;
+
+    SynchTask(final String subid,
+              final Notification<NotificationItem> note) {
+      this.subid = subid;
+      this.note = note;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (subid == null) {
+          processUnclaimed(note);
+        } else {
+          processClaimed(subid, note);
+        }
+      } catch (InterruptedException ie) {
+      } catch (Throwable t) {
+        logError(t);
+      } finally {
+        synchPermits.release();
+        idle();
+      }
+    }
+  }
+
+  /** Run each synch on a thread from the factory rather than on the workers.
+   * Must be called before start.
+   *
+   * @param factory
+   * @param limit - max synchs in progress
+   */
+  public void useSynchThreads(final ThreadFactory factory,
+                              final int limit) {
+    synchThreads = factory;
+    maxSynchs = Math.max(1, limit);
+    synchPermits = new Semaphore(maxSynchs);
+  }
+
+  /** Start the workers
+   *
+   * @param syncher
+   * @param synchlingPool
+   * @param notificationInQueue
+   * @param size - number of workers
+   */
+  public void start(final SynchEngine syncher,
+                    final SynchlingPool synchlingPool,
+                    final BlockingQueue<Notification<NotificationItem>> notificationInQueue,
+                    final int size) {
+    this.syncher = syncher;
+    this.synchlingPool = synchlingPool;
+    this.notificationInQueue = notificationInQueue;
+
+    debug = getLogger().isDebugEnabled();
+
+    stopping = false;
+
+    retryQueue.start(notificationInQueue);
+
+    for (int i = 0; i < Math.max(1, size); i++) {
+      DispatchThread dt = new DispatchThread("NotifyIn-" + i);
+
+      dt.setDaemon(true);
+      workers.add(dt);
+      dt.start();
+    }
+  }
+
+  /** Stop taking notifications and interrupt the workers. Synchs in progress
+   * are left to the pool shutdown.
+   */
+  public void stop() {
+    stopping = true;
+
+    for (DispatchThread dt: workers) {
+      dt.interrupt();
+    }
+
+    workers.clear();
+
+    retryQueue.stop();
+  }
+
+  /** Stop taking new work and give running synchs until the timeout to
+   * finish. If they haven't we ask them to stop at the next safe point and
+   * give them a little longer. Then stop the workers and collect what is left
+   * in the queue, the mailboxes and the leftovers.
+   *
+   * @param timeout - millisecs
+   * @return notifications which were queued or waiting for a retry and were
+   *         not processed
+   * @throws InterruptedException
+   */
+  public List<Notification<NotificationItem>> drain(final long timeout) throws InterruptedException {
+    draining = true;
+
+    if (!awaitIdle(timeout)) {
+      warn(busy.get() + " synchs still running at drain deadline - " +
+           "asking them to stop");
+
+      cancelling = true;
+
+      awaitIdle(cancelGrace);
+    }
+
+    List<Notification<NotificationItem>> notes =
+        new ArrayList<Notification<NotificationItem>>();
+
+    notes.addAll(retryQueue.drain());
+
+    List<DispatchThread> stopped = new ArrayList<DispatchThread>(workers);
+
+    stop();
+
+    for (DispatchThread dt: stopped) {
+      dt.join(1000);
+    }
+
+    synchronized (leftovers) {
+      drained = true;
+
+      notes.addAll(leftovers);
+      leftovers.clear();
+
+      notes.addAll(mailboxes.takeWaiting());
+      notificationInQueue.drainTo(notes);
+    }
+
+    return notes;
+  }
+
+  /**
+   * @return true if running synchs should stop at the next safe point
+   */
+  public boolean isCancelling() {
+    return cancelling;
+  }
+
+  /**
+   * @return the object serializing work for each subscription
+   */
+  public SubscriptionMailboxes getMailboxes() {
+    return mailboxes;
+  }
+
+  /**
+   * @return the queue holding notifications for a later retry
+   */
+  public NotificationRetryQueue getRetryQueue() {
+    return retryQueue;
+  }
+
+  /**
+   * @return number of dispatches in progress
+   */
+  public long getInFlight() {
+    return inFlight.getLongValue();
+  }
+
+  /** Get the current stats
+   *
+   * @return List of Stat
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    stats.add(new Stat("dispatch workers", workers.size()));
+    stats.add(notificationsCt);
+    stats.add(inFlight);
+    stats.add(maxInFlight);
+
+    if (synchThreads != null) {
+      stats.add(new Stat("synch thread limit", maxSynchs));
+      stats.add(new Stat("synch threads available",
+                         synchPermits.availablePermits()));
+    }
+    stats.addAll(retryQueue.getStats());
+    stats.addAll(mailboxes.getStats());
+
+    return stats;
+  }
+
+  /* ====================================================================
+   *                        private methods
+   * ==================================================================== */
+
+  /* Process the notification here or hand it to a new thread. subid is null
+   * if the notification is not for a subscription, otherwise we hold the
+   * claim on the subscription.
+   */
+  private void process(final String subid,
+                       final Notification<NotificationItem> note) throws SynchException,
+                                                                          InterruptedException {
+    if (synchThreads == null) {
+      if (subid == null) {
+        processUnclaimed(note);
+      } else {
+        processClaimed(subid, note);
+      }
+
+      return;
+    }
+
+    boolean started = false;
+
+    synchPermits.acquire();
+    busy.incrementAndGet();
+    try {
+      synchThreads.newThread(new SynchTask(subid, note)).start();
+      started = true;
+    } finally {
+      if (!started) {
+        synchPermits.release();
+        idle();
+
+        // Hang on to it and anything which was deferred to us
+        requeue(releaseClaim(subid, note));
+      }
+    }
+  }
+
+  /* A notification which is not for a subscription */
+  private void processUnclaimed(final Notification<NotificationItem> note) throws SynchException,
+                                                                                 InterruptedException {
+    if (!dispatch(note)) {
+      retryQueue.defer(Collections.singletonList(note));
+    }
+  }
+
+  /* We hold the claim on the subscription. Process the notification and
+   * anything deferred to us.
+   */
+  private void processClaimed(final String subid,
+                              final Notification<NotificationItem> note) throws InterruptedException {
+    boolean released = false;
+    Notification<NotificationItem> n = note;
+
+    try {
+      while (n != null) {
+        if (stopping || draining) {
+          // Keep this one and anything queued behind it
+          releaseClaim(subid, n);
+          released = true;
+          return;
+        }
+
+        boolean done = true;
+
+        try {
+          done = dispatch(n);
+        } catch (SynchException se) {
+          logError(se);
+        }
+
+        if (!done) {
+          /* A connector is busy - try this and whatever is queued behind it
+           * later, in order. */
+          List<Notification<NotificationItem>> notes = releaseClaim(subid, n);
+          released = true;
+
+          if (notes != null) {
+            retryQueue.defer(notes);
+          }
+          return;
+        }
+
+        n = mailboxes.next(subid);
+      }
+
+      released = true;
+    } finally {
+      if (!released) {
+        // Failed on the current one - keep it and whatever is queued behind it
+        requeue(releaseClaim(subid, n));
+      }
+    }
+  }
+
+  private void logError(final Throwable t) {
+    if (debug) {
+      error(t);
+    } else {
+      // Try not to flood the log with error traces
+      long now = System.currentTimeMillis();
+      if ((now - lastTrace) > (30 * 1000)) {
+        error(t);
+        lastTrace = now;
+      } else {
+        error(t.getMessage());
+      }
+    }
+  }
+
+  /* Returns false if a connector used by the subscription is at its limit.
+   * The caller should try again later.
+   */
+  private boolean dispatch(final Notification<NotificationItem> note) throws SynchException,
+                                                                            InterruptedException {
+    if ((note.getSub() != null) && note.getSub().getDeleted()) {
+      // Deleted while it was waiting in a mailbox
+      return true;
+    }
+
+    /* Don't wait for the connectors holding a synchling or a worker */
+    List<Semaphore> permits = syncher.tryAcquirePermits(note.getSub());
+
+    if (permits == null) {
+      return false;
+    }
+
+    Synchling sl = null;
+
+    try {
+      if (synchThreads != null) {
+        // We're on our own thread and limited by the permits
+        sl = new Synchling(syncher);
+      } else {
+        /* Get a synchling from the pool */
+        while (true) {
+          if (stopping) {
+            // Keep it for the drain
+            addLeftovers(note, null);
+            return true;
+          }
+
+          sl = synchlingPool.getNoException();
+          if (sl != null) {
+            break;
+          }
+        }
+      }
+
+      maxInFlight.setMax(inFlight.inc());
+
+      StatusType st;
+      try {
+        st = syncher.handleNotification(sl, note);
+      } finally {
+        inFlight.dec();
+      }
+
+      if (st == StatusType.WARNING) {
+        /* Try again later */
+        retryQueue.retry(note);
+      }
+
+      return true;
+    } finally {
+      if ((sl != null) && (synchThreads == null)) {
+        synchlingPool.add(sl);
+      }
+
+      syncher.releasePermits(permits);
+    }
+  }
+
+  /* Release the claim, if any, and return the notification with anything
+   * in the mailbox. If we are stopping they are kept for the drain instead
+   * and we return null.
+   */
+  private List<Notification<NotificationItem>> releaseClaim(final String subid,
+                                                          final Notification<NotificationItem> note) {
+    List<Notification<NotificationItem>> notes =
+        new ArrayList<Notification<NotificationItem>>();
+
+    if (note != null) {
+      notes.add(note);
+    }
+
+    synchronized (leftovers) {
+      if (subid != null) {
+        notes.addAll(mailboxes.release(subid));
+      }
+
+      if (stopping || draining) {
+        addLeftovers(null, notes);
+        return null;
+      }
+    }
+
+    return notes;
+  }
+
+  /* Put notifications we can't process now back on the queue */
+  private void requeue(final List<Notification<NotificationItem>> notes) {
+    if (notes == null) {
+      return;
+    }
+
+    for (Notification<NotificationItem> n: notes) {
+      if (!notificationInQueue.offer(n)) {
+        retryQueue.spill(n);
+      }
+    }
+  }
+
+  private void addLeftovers(final Notification<NotificationItem> note,
+                            final List<Notification<NotificationItem>> more) {
+    synchronized (leftovers) {
+      if (drained) {
+        int ct = ((note == null) ? 0 : 1) + ((more == null) ? 0 : more.size());
+
+        if (ct > 0) {
+          warn(ct + " notifications left after the drain were not saved");
+        }
+      }
+
+      if (note != null) {
+        leftovers.add(note);
+      }
+
+      if (more != null) {
+        leftovers.addAll(more);
+      }
+    }
+  }
+
+  private void idle() {
+    if (busy.decrementAndGet() > 0) {
+      return;
+    }
+
+    synchronized (drainLock) {
+      drainLock.notifyAll();
+    }
+  }
+
+  /* Wait until nothing is busy. Return false if we timed out. */
+  private boolean awaitIdle(final long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+
+    synchronized (drainLock) {
+      while (busy.get() > 0) {
+        long wait = deadline - System.currentTimeMillis();
+
+        if (wait <= 0) {
+          return false;
+        }
+
+        drainLock.wait(wait);
+      }
+    }
+
+    return true;
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+
+  private void trace(final String msg) {
+    getLogger().debug(msg);
+  }
+
+  private void warn(final String msg) {
+    getLogger().warn(msg);
+  }
+
+  private void error(final Throwable t) {
+    getLogger().error(this, t);
+  }
+
+  private void error(final String msg) {
+    getLogger().error(msg);
+  }
+}
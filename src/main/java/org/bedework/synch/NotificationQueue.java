@@ -0,0 +1,643 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.Notification.NotificationItem;
+import org.bedework.synch.Notification.NotificationItem.ActionType;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** The notification input queue. Notifications are placed in one of a
+ * number of lanes according to the action. Lanes are served in a weighted
+ * round robin so that a large number of full synchs doesn't hold up item
+ * level changes or requests from the manager.
+ *
+ * <p>Each lane has its own capacity so a full bulk lane does not block the
+ * other lanes.
+ *
+ * <p>The bulk lane may be ordered by expected cost: each full synch gets a
+ * virtual deadline of the time it was queued plus its expected wall time,
+ * capped at the aging bound, and the earliest deadline goes first. Small
+ * subscriptions overtake large ones, but nothing waits more than the aging
+ * bound behind anything queued after it.
+ *
+ * <p>A full synch for a subscription which already has one queued is merged
+ * into the queued one. Item level changes for a subscription with a queued
+ * full synch are absorbed by it as the full synch will pick them up.
+ */
+public class NotificationQueue extends AbstractQueue<Notification<NotificationItem>>
+        implements BlockingQueue<Notification<NotificationItem>> {
+  /** The lanes in priority order with their weights.
+   */
+  public enum Lane {
+    /** Subscribe, unsubscribe and status requests - someone is waiting */
+    interactive(8),
+
+    /** Item level changes pushed to us */
+    push(4),
+
+    /** Full synchs - usually from the timer */
+    bulk(1);
+
+    private final int weight;
+
+    Lane(final int weight) {
+      this.weight = weight;
+    }
+
+    /**
+     * @return number taken from this lane each round
+     */
+    public int getWeight() {
+      return weight;
+    }
+  }
+
+  private final int laneCapacity;
+
+  private final LaneQueue[] lanes;
+
+  private int count;
+
+  /* Number of queued full synchs for each subscription */
+  private Map<String, Integer> pendingFullSynchs = new HashMap<String, Integer>();
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /* Non-null to order the bulk lane by expected cost */
+  private SynchCosts costs;
+
+  private long agingBound;
+
+  /* Virtual deadlines of the notifications in the bulk lane */
+  private final Map<Notification<NotificationItem>, Long> deadlines =
+      new IdentityHashMap<Notification<NotificationItem>, Long>();
+
+  private StatLong reorderedCt = new StatLong("queue bulk overtaken");
+
+  private StatLong mergedCt = new StatLong("queue full synchs merged");
+
+  private StatLong absorbedCt = new StatLong("queue item changes absorbed");
+
+  private final Condition notEmpty = lock.newCondition();
+
+  private final Condition notFull = lock.newCondition();
+
+  private static class LaneQueue {
+    Lane lane;
+
+    LinkedList<Notification<NotificationItem>> notes =
+        new LinkedList<Notification<NotificationItem>>();
+
+    /* Number we can still take this round */
+    int credit;
+
+    StatLong taken;
+
+    StatLong maxDepth;
+
+    LaneQueue(final Lane lane) {
+      this.lane = lane;
+      credit = lane.getWeight();
+      taken = new StatLong("queue " + lane.name() + " taken");
+      maxDepth = new StatLong("queue " + lane.name() + " max depth");
+    }
+  }
+
+  /**
+   * @param laneCapacity - max notifications in each lane
+   */
+  public NotificationQueue(final int laneCapacity) {
+    this.laneCapacity = laneCapacity;
+
+    Lane[] vals = Lane.values();
+    lanes = new LaneQueue[vals.length];
+
+    for (int i = 0; i < vals.length; i++) {
+      lanes[i] = new LaneQueue(vals[i]);
+    }
+  }
+
+  /** Order the bulk lane by expected cost.
+   *
+   * @param costs - history for each subscription
+   * @param agingBound - millisecs. Most a synch's expected cost can hold it
+   *                     back. 0 or less for first in first out.
+   */
+  public void setCostOrdering(final SynchCosts costs,
+                              final long agingBound) {
+    lock.lock();
+    try {
+      if (agingBound > 0) {
+        this.costs = costs;
+        this.agingBound = agingBound;
+      } else {
+        this.costs = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Which lane does the notification go in?
+   *
+   * @param note
+   * @return lane
+   */
+  public static Lane getLane(final Notification<NotificationItem> note) {
+    if (note.getNotifications().isEmpty()) {
+      return Lane.bulk;
+    }
+
+    ActionType action = note.getNotifications().get(0).getAction();
+
+    switch (action) {
+    case FullSynch:
+      return Lane.bulk;
+
+    case NewSubscription:
+    case Unsubscribe:
+    case SubscriptionStatus:
+    case GetInfo:
+      return Lane.interactive;
+
+    default:
+      return Lane.push;
+    }
+  }
+
+  /**
+   * @param subscriptionId
+   * @return true if there is a full synch queued for the subscription
+   */
+  public boolean hasPendingFullSynch(final String subscriptionId) {
+    lock.lock();
+    try {
+      return pendingFullSynchs.containsKey(subscriptionId);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Is this a full synch for a subscription which already has one queued?
+   *
+   * @param note
+   * @return true for a duplicate
+   */
+  public boolean isDuplicate(final Notification<NotificationItem> note) {
+    String subid = fullSynchId(note);
+
+    if (subid == null) {
+      return false;
+    }
+
+    return hasPendingFullSynch(subid);
+  }
+
+  /**
+   * @param lane
+   * @return number waiting in the lane
+   */
+  public int size(final Lane lane) {
+    lock.lock();
+    try {
+      return lanes[lane.ordinal()].notes.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Get the current stats
+   *
+   * @return List of Stat
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    lock.lock();
+    try {
+      for (LaneQueue lq: lanes) {
+        stats.add(new Stat("queue " + lq.lane.name() + " depth",
+                           lq.notes.size()));
+        stats.add(lq.maxDepth);
+        stats.add(lq.taken);
+      }
+
+      stats.add(mergedCt);
+      stats.add(reorderedCt);
+      stats.add(absorbedCt);
+    } finally {
+      lock.unlock();
+    }
+
+    return stats;
+  }
+
+  /* ====================================================================
+   *                   BlockingQueue methods
+   * ==================================================================== */
+
+  @Override
+  public boolean offer(final Notification<NotificationItem> note) {
+    lock.lock();
+    try {
+      return insert(note);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(final Notification<NotificationItem> note,
+                       final long timeout,
+                       final TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+
+    lock.lockInterruptibly();
+    try {
+      while (!insert(note)) {
+        if (nanos <= 0) {
+          return false;
+        }
+
+        nanos = notFull.awaitNanos(nanos);
+      }
+
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void put(final Notification<NotificationItem> note) throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (!insert(note)) {
+        notFull.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Notification<NotificationItem> poll() {
+    lock.lock();
+    try {
+      return extract();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Notification<NotificationItem> poll(final long timeout,
+                                             final TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        if (nanos <= 0) {
+          return null;
+        }
+
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+
+      return extract();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Notification<NotificationItem> take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        notEmpty.await();
+      }
+
+      return extract();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Notification<NotificationItem> peek() {
+    lock.lock();
+    try {
+      LaneQueue lq = nextLane();
+
+      if (lq == null) {
+        return null;
+      }
+
+      return lq.notes.peek();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int remainingCapacity() {
+    lock.lock();
+    try {
+      return (laneCapacity * lanes.length) - count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(final Collection<? super Notification<NotificationItem>> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(final Collection<? super Notification<NotificationItem>> c,
+                     final int maxElements) {
+    int n = 0;
+
+    lock.lock();
+    try {
+      while (n < maxElements) {
+        Notification<NotificationItem> note = extract();
+
+        if (note == null) {
+          break;
+        }
+
+        c.add(note);
+        n++;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    return n;
+  }
+
+  /** The iterator is over a snapshot of the queue and does not support
+   * remove.
+   */
+  @Override
+  public Iterator<Notification<NotificationItem>> iterator() {
+    List<Notification<NotificationItem>> snapshot =
+        new ArrayList<Notification<NotificationItem>>();
+
+    lock.lock();
+    try {
+      for (LaneQueue lq: lanes) {
+        snapshot.addAll(lq.notes);
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    return Collections.unmodifiableList(snapshot).iterator();
+  }
+
+  /* ====================================================================
+   *                        private methods
+   * ==================================================================== */
+
+  /* Called with the lock held */
+  private boolean insert(final Notification<NotificationItem> note) {
+    if (note == null) {
+      throw new NullPointerException();
+    }
+
+    String subid = fullSynchId(note);
+
+    if (subid != null) {
+      if (pendingFullSynchs.containsKey(subid)) {
+        // Already got one
+        mergedCt.inc();
+        return true;
+      }
+    } else if (itemChange(note) &&
+               pendingFullSynchs.containsKey(note.getSubscriptionId())) {
+      absorbedCt.inc();
+      return true;
+    }
+
+    LaneQueue lq = lanes[getLane(note).ordinal()];
+
+    if (lq.notes.size() >= laneCapacity) {
+      return false;
+    }
+
+    if (subid != null) {
+      absorb(subid);
+    }
+
+    if ((lq.lane == Lane.bulk) && (costs != null)) {
+      insertByDeadline(lq, note);
+    } else {
+      lq.notes.add(note);
+    }
+
+    lq.maxDepth.setMax(lq.notes.size());
+    count++;
+
+    if (subid != null) {
+      Integer ct = pendingFullSynchs.get(subid);
+
+      if (ct == null) {
+        pendingFullSynchs.put(subid, 1);
+      } else {
+        pendingFullSynchs.put(subid, ct + 1);
+      }
+    }
+
+    notEmpty.signal();
+
+    return true;
+  }
+
+  /* Called with the lock held */
+  private Notification<NotificationItem> extract() {
+    LaneQueue lq = nextLane();
+
+    if (lq == null) {
+      return null;
+    }
+
+    Notification<NotificationItem> note = lq.notes.poll();
+    deadlines.remove(note);
+    lq.credit--;
+    lq.taken.inc();
+    count--;
+
+    String subid = fullSynchId(note);
+    if (subid != null) {
+      Integer ct = pendingFullSynchs.get(subid);
+
+      if ((ct == null) || (ct <= 1)) {
+        pendingFullSynchs.remove(subid);
+      } else {
+        pendingFullSynchs.put(subid, ct - 1);
+      }
+    }
+
+    notFull.signalAll();
+
+    return note;
+  }
+
+  /* Insert after everything with an earlier or equal deadline. Called with
+   * the lock held.
+   */
+  private void insertByDeadline(final LaneQueue lq,
+                                final Notification<NotificationItem> note) {
+    long cost = 0;
+
+    if (note.getSub() != null) {
+      cost = Math.min(costs.expected(note.getSub()), agingBound);
+    }
+
+    long deadline = System.currentTimeMillis() + cost;
+
+    deadlines.put(note, deadline);
+
+    ListIterator<Notification<NotificationItem>> it =
+        lq.notes.listIterator(lq.notes.size());
+
+    while (it.hasPrevious()) {
+      Long d = deadlines.get(it.previous());
+
+      if ((d == null) || (d <= deadline)) {
+        it.next();
+        break;
+      }
+
+      reorderedCt.inc();
+    }
+
+    it.add(note);
+  }
+
+  /* Remove queued item changes for the subscription. Called with the lock
+   * held.
+   */
+  private void absorb(final String subscriptionId) {
+    LinkedList<Notification<NotificationItem>> notes =
+        lanes[Lane.push.ordinal()].notes;
+
+    Iterator<Notification<NotificationItem>> it = notes.iterator();
+
+    while (it.hasNext()) {
+      Notification<NotificationItem> n = it.next();
+
+      if (itemChange(n) &&
+          subscriptionId.equals(n.getSubscriptionId())) {
+        it.remove();
+        count--;
+        absorbedCt.inc();
+      }
+    }
+
+    notFull.signalAll();
+  }
+
+  /* True if this is a change to an item which a full synch would cover */
+  private static boolean itemChange(final Notification<NotificationItem> note) {
+    if ((note.getSubscriptionId() == null) ||
+        note.getNotifications().isEmpty()) {
+      return false;
+    }
+
+    for (NotificationItem ni: note.getNotifications()) {
+      switch (ni.getAction()) {
+      case CopiedEvent:
+      case CreatedEvent:
+      case DeletedEvent:
+      case ModifiedEvent:
+      case MovedEvent:
+        continue;
+
+      default:
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /* Subscription id if this is a full synch */
+  private static String fullSynchId(final Notification<NotificationItem> note) {
+    if (note.getNotifications().isEmpty() ||
+        (note.getNotifications().get(0).getAction() != ActionType.FullSynch)) {
+      return null;
+    }
+
+    return note.getSubscriptionId();
+  }
+
+  /* The first non-empty lane with credit left. When all non-empty lanes
+   * have used their credit we start a new round.
+   */
+  private LaneQueue nextLane() {
+    if (count == 0) {
+      return null;
+    }
+
+    for (int round = 0; round < 2; round++) {
+      for (LaneQueue lq: lanes) {
+        if (!lq.notes.isEmpty() && (lq.credit > 0)) {
+          return lq;
+        }
+      }
+
+      for (LaneQueue lq: lanes) {
+        lq.credit = lq.lane.getWeight();
+      }
+    }
+
+    return null;
+  }
+}
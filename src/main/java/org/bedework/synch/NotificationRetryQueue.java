@@ -0,0 +1,305 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.Notification.NotificationItem;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/** Holds notifications which could not be processed (status WARNING) for a
+ * while before putting them back on the input queue.
+ *
+ * <p>The delay doubles with each attempt up to a maximum. After too many
+ * attempts the notification is dropped. Something like a full synch will
+ * eventually put things right.
+ *
+ * <p>Notifications which could not be admitted to a full input queue may
+ * also be spilled here. They wait a short fixed period and are not counted as
+ * attempts.
+ */
+public class NotificationRetryQueue {
+  private boolean debug;
+
+  protected transient Logger log;
+
+  /** Delay before the first retry */
+  public static final long baseDelay = 1000;
+
+  /** Delay is never more than this */
+  public static final long maxDelay = 5 * 60 * 1000;
+
+  /** Give up after this many attempts */
+  public static final int maxAttempts = 10;
+
+  /** Delay for spilled notifications */
+  public static final long spillDelay = 1000;
+
+  private DelayQueue<Retry> retries = new DelayQueue<Retry>();
+
+  private BlockingQueue<Notification<NotificationItem>> notificationInQueue;
+
+  private MoverThread mover;
+
+  private volatile boolean stopping;
+
+  /* Some counts */
+
+  private StatLong retriesCt = new StatLong("notification retries");
+
+  private StatLong maxDepth = new StatLong("max retry queue depth");
+
+  private StatLong droppedCt = new StatLong("notifications dropped after retries");
+
+  private StatLong spilledCt = new StatLong("notifications spilled");
+
+  private StatLong deferredCt = new StatLong("notifications deferred for busy connectors");
+
+  private static class Retry implements Delayed {
+    Notification<NotificationItem> note;
+
+    long due;
+
+    Retry(final Notification<NotificationItem> note,
+          final long delay) {
+      this.note = note;
+      due = System.currentTimeMillis() + delay;
+    }
+
+    @Override
+    public long getDelay(final TimeUnit unit) {
+      return unit.convert(due - System.currentTimeMillis(),
+                          TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(final Delayed o) {
+      long thatDue = ((Retry)o).due;
+
+      if (due < thatDue) {
+        return -1;
+      }
+
+      if (due > thatDue) {
+        return 1;
+      }
+
+      return 0;
+    }
+  }
+
+  /** Moves notifications back to the input queue when their delay expires.
+   *
+   */
+  private class MoverThread extends Thread {
+    MoverThread() {
+      super("NotifyRetry");
+    }
+
+    @Override
+    public void run() {
+      while (!stopping) {
+        Retry r = null;
+
+        try {
+          r = retries.take();
+
+          if (debug) {
+            trace("Requeue notification after " + r.note.getAttempts() +
+                  " attempts");
+          }
+
+          notificationInQueue.put(r.note);
+        } catch (InterruptedException ie) {
+          if (r != null) {
+            // Stopped while waiting for space - leave it for the drain
+            retries.add(r);
+          }
+          break;
+        } catch (Throwable t) {
+          error(t);
+        }
+      }
+    }
+  }
+
+  /** Start moving expired retries to the input queue
+   *
+   * @param notificationInQueue
+   */
+  public void start(final BlockingQueue<Notification<NotificationItem>> notificationInQueue) {
+    this.notificationInQueue = notificationInQueue;
+
+    debug = getLogger().isDebugEnabled();
+
+    stopping = false;
+
+    mover = new MoverThread();
+    mover.setDaemon(true);
+    mover.start();
+  }
+
+  /** Stop moving notifications. Anything waiting is discarded.
+   */
+  public void stop() {
+    stopping = true;
+
+    if (mover != null) {
+      mover.interrupt();
+      mover = null;
+    }
+
+    retries.clear();
+  }
+
+  /** Stop moving notifications and hand back everything waiting so it can
+   * be saved.
+   *
+   * @return notifications waiting for a retry
+   */
+  public List<Notification<NotificationItem>> drain() {
+    stopping = true;
+
+    if (mover != null) {
+      mover.interrupt();
+
+      try {
+        // Let it put back anything it had in hand
+        mover.join(1000);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+
+      mover = null;
+    }
+
+    List<Notification<NotificationItem>> notes =
+        new ArrayList<Notification<NotificationItem>>();
+
+    for (Retry r: retries) {
+      notes.add(r.note);
+    }
+
+    retries.clear();
+
+    return notes;
+  }
+
+  /** Schedule a retry of the notification.
+   *
+   * @param note
+   * @return false if we've tried too many times and the notification was dropped
+   */
+  public boolean retry(final Notification<NotificationItem> note) {
+    int attempts = note.incAttempts();
+
+    if (attempts >= maxAttempts) {
+      droppedCt.inc();
+      warn("Dropping notification after " + attempts + " attempts: " +
+           note.getSubscriptionId());
+      return false;
+    }
+
+    long delay = Math.min(baseDelay << (attempts - 1), maxDelay);
+
+    retries.add(new Retry(note, delay));
+
+    retriesCt.inc();
+    maxDepth.setMax(retries.size());
+
+    return true;
+  }
+
+  /** Hold a notification for a short while because the input queue is full.
+   *
+   * @param note
+   */
+  public void spill(final Notification<NotificationItem> note) {
+    retries.add(new Retry(note, spillDelay));
+
+    spilledCt.inc();
+    maxDepth.setMax(retries.size());
+  }
+
+  /** Hold notifications for a short while because they can't be processed
+   * yet. They go back on the input queue in the order given and are not
+   * counted as attempts.
+   *
+   * @param notes
+   */
+  public void defer(final List<Notification<NotificationItem>> notes) {
+    long delay = spillDelay;
+
+    for (Notification<NotificationItem> note: notes) {
+      // A millisec apart to keep them in order
+      retries.add(new Retry(note, delay));
+      delay++;
+    }
+
+    deferredCt.add(notes.size());
+    maxDepth.setMax(retries.size());
+  }
+
+  /** Get the current stats
+   *
+   * @return List of Stat
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    stats.add(new Stat("retry queue depth", retries.size()));
+    stats.add(maxDepth);
+    stats.add(retriesCt);
+    stats.add(droppedCt);
+    stats.add(spilledCt);
+    stats.add(deferredCt);
+
+    return stats;
+  }
+
+  /* ====================================================================
+   *                        private methods
+   * ==================================================================== */
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+
+  private void trace(final String msg) {
+    getLogger().debug(msg);
+  }
+
+  private void warn(final String msg) {
+    getLogger().warn(msg);
+  }
+
+  private void error(final Throwable t) {
+    getLogger().error(this, t);
+  }
+}
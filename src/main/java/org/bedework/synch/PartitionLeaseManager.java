@@ -0,0 +1,485 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.db.PartitionLease;
+import org.bedework.synch.exception.SynchException;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** Share the subscriptions between a number of synch nodes.
+ *
+ * <p>Subscriptions are hashed into a fixed number of partitions. Each
+ * partition is held by at most one node at a time through a lease with an
+ * expiry. A heartbeat renews the leases we hold and takes over any which have
+ * expired, up to our fair share of the partitions given the number of live
+ * nodes. When a node joins, the others give up their excess on the next
+ * heartbeat so the partitions rebalance.
+ *
+ * <p>A node which holds no partitions still has to be seen as live, so each
+ * node also holds a membership lease. These are kept in the same store with
+ * negative partition numbers and are renewed with the heartbeat.
+ *
+ * <p>We stop treating a partition as ours once our own recorded expiry has
+ * passed, whether or not the renew reached the store. Nodes should keep their
+ * clocks reasonably close - well within the lease duration.
+ *
+ * <p>Nothing here knows about the engine. The leases are kept in a
+ * {@link LeaseStore} and changes in ownership are reported to a
+ * {@link Listener}, so several managers can share one store, for example
+ * several engines on one machine sharing an embedded database.
+ */
+public class PartitionLeaseManager {
+  private transient Logger log;
+
+  private final boolean debug;
+
+  /** Where the leases are kept.
+   */
+  public interface LeaseStore {
+    /**
+     * @return all the leases in the store
+     * @throws SynchException
+     */
+    List<PartitionLease> getLeases() throws SynchException;
+
+    /** Add a lease for a partition with no lease.
+     *
+     * @param lease
+     * @return false if some other node got there first
+     * @throws SynchException
+     */
+    boolean add(PartitionLease lease) throws SynchException;
+
+    /** Update a lease we read from the store.
+     *
+     * @param lease
+     * @return false if some other node changed it since we read it
+     * @throws SynchException
+     */
+    boolean update(PartitionLease lease) throws SynchException;
+  }
+
+  /** Told about changes in the partitions we own.
+   */
+  public interface Listener {
+    /**
+     * @param partitions - we now own these
+     */
+    void gained(Set<Integer> partitions);
+
+    /**
+     * @param partitions - we no longer own these
+     */
+    void lost(Set<Integer> partitions);
+  }
+
+  private final String nodeId;
+
+  private final int partitions;
+
+  private final long leaseDuration;
+
+  private final LeaseStore store;
+
+  private Listener listener;
+
+  /* Partitions we hold and the expiry we last recorded for each */
+  private final ConcurrentMap<Integer, Long> owned =
+      new ConcurrentHashMap<Integer, Long>();
+
+  private HeartbeatThread heartbeat;
+
+  private volatile boolean stopping;
+
+  /* Some counts */
+
+  private StatLong ownedCt = new StatLong("cluster partitions owned");
+
+  private StatLong liveNodesCt = new StatLong("cluster live nodes");
+
+  private StatLong takeoverCt = new StatLong("cluster partitions taken");
+
+  private StatLong releasedCt = new StatLong("cluster partitions released");
+
+  private StatLong lostCt = new StatLong("cluster partitions lost");
+
+  private StatLong failedCt = new StatLong("cluster heartbeat failures");
+
+  private class HeartbeatThread extends Thread {
+    HeartbeatThread() {
+      super("SynchLeases");
+    }
+
+    @Override
+    public void run() {
+      long interval = Math.max(1, leaseDuration / 3);
+
+      while (!stopping) {
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException ie) {
+          break;
+        }
+
+        if (stopping) {
+          break;
+        }
+
+        heartbeat();
+      }
+    }
+  }
+
+  /**
+   * @param nodeId - unique among the nodes sharing the store
+   * @param partitions - number of partitions. The same on every node.
+   * @param leaseDuration - millisecs
+   * @param store
+   */
+  public PartitionLeaseManager(final String nodeId,
+                               final int partitions,
+                               final long leaseDuration,
+                               final LeaseStore store) {
+    this.nodeId = nodeId;
+    this.partitions = Math.max(1, partitions);
+    this.leaseDuration = Math.max(1000, leaseDuration);
+    this.store = store;
+
+    debug = getLogger().isDebugEnabled();
+  }
+
+  /**
+   * @param val - told about changes in ownership
+   */
+  public void setListener(final Listener val) {
+    listener = val;
+  }
+
+  /** Claim our first set of partitions then keep them with a heartbeat.
+   */
+  public void start() {
+    heartbeat();
+
+    heartbeat = new HeartbeatThread();
+    heartbeat.setDaemon(true);
+    heartbeat.start();
+  }
+
+  /** Stop the heartbeat and give up our leases so other nodes can take them
+   * over straight away.
+   */
+  public void stop() {
+    stopping = true;
+
+    if (heartbeat != null) {
+      heartbeat.interrupt();
+      heartbeat = null;
+    }
+
+    try {
+      for (PartitionLease lease: store.getLeases()) {
+        if (!nodeId.equals(lease.getOwner()) ||
+            ((lease.getPartition() >= 0) &&
+             !owned.containsKey(lease.getPartition()))) {
+          continue;
+        }
+
+        owned.remove(lease.getPartition());
+        lease.setExpires(0);
+        store.update(lease);
+      }
+    } catch (Throwable t) {
+      error(t);
+    }
+
+    owned.clear();
+    ownedCt.setLongValue(0);
+  }
+
+  /**
+   * @return this node's id
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * @param subscriptionId
+   * @return the partition the subscription belongs to
+   */
+  public int partition(final String subscriptionId) {
+    int h = subscriptionId.hashCode();
+
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+
+    return (h & Integer.MAX_VALUE) % partitions;
+  }
+
+  /**
+   * @param subscriptionId
+   * @return true if this node should schedule and synch the subscription
+   */
+  public boolean owns(final String subscriptionId) {
+    Long expires = owned.get(partition(subscriptionId));
+
+    return (expires != null) &&
+           (expires.longValue() > System.currentTimeMillis());
+  }
+
+  /**
+   * @return the partitions we currently hold
+   */
+  public Set<Integer> getOwned() {
+    Set<Integer> res = new TreeSet<Integer>();
+    long now = System.currentTimeMillis();
+
+    for (Map.Entry<Integer, Long> ent: owned.entrySet()) {
+      if (ent.getValue().longValue() > now) {
+        res.add(ent.getKey());
+      }
+    }
+
+    return res;
+  }
+
+  /**
+   * @return stats for the leases
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    stats.add(new Stat("cluster node", nodeId));
+    stats.add(ownedCt);
+    stats.add(liveNodesCt);
+    stats.add(takeoverCt);
+    stats.add(releasedCt);
+    stats.add(lostCt);
+    stats.add(failedCt);
+
+    return stats;
+  }
+
+  /** Renew what we hold, give up any excess over our fair share and take over
+   * expired partitions up to that share.
+   */
+  void heartbeat() {
+    Set<Integer> gained = new TreeSet<Integer>();
+    Set<Integer> lost = new TreeSet<Integer>();
+
+    try {
+      long now = System.currentTimeMillis();
+
+      Map<Integer, PartitionLease> leases = new HashMap<Integer, PartitionLease>();
+      List<PartitionLease> members = new ArrayList<PartitionLease>();
+      Set<String> live = new HashSet<String>();
+
+      live.add(nodeId);
+
+      for (PartitionLease lease: store.getLeases()) {
+        if (lease.getPartition() < 0) {
+          members.add(lease);
+        } else {
+          leases.put(lease.getPartition(), lease);
+        }
+
+        if (lease.held(now)) {
+          live.add(lease.getOwner());
+        }
+      }
+
+      renewMembership(members, now);
+
+      liveNodesCt.setLongValue(live.size());
+
+      int share = (partitions + live.size() - 1) / live.size();
+      int mine = 0;
+
+      /* Start at a different place on each node so they don't all contend
+       * for the same partitions.
+       */
+      int start = (nodeId.hashCode() & Integer.MAX_VALUE) % partitions;
+
+      /* Renew or release what we hold */
+      for (int i = 0; i < partitions; i++) {
+        int p = (start + i) % partitions;
+        PartitionLease lease = leases.get(p);
+
+        boolean held = (lease != null) && lease.held(now) &&
+                       nodeId.equals(lease.getOwner());
+
+        if (!held) {
+          if (owned.remove(p) != null) {
+            lost.add(p);
+            lostCt.inc();
+          }
+          continue;
+        }
+
+        if (mine >= share) {
+          /* Another node has joined. Stop using it before we let it go. */
+          owned.remove(p);
+          lease.setExpires(0);
+          store.update(lease);
+          lost.add(p);
+          releasedCt.inc();
+          continue;
+        }
+
+        long expires = now + leaseDuration;
+        lease.setExpires(expires);
+
+        if (store.update(lease)) {
+          if (owned.put(p, expires) == null) {
+            gained.add(p);
+          }
+          mine++;
+        } else if (owned.remove(p) != null) {
+          lost.add(p);
+          lostCt.inc();
+        }
+      }
+
+      /* Take over what nobody holds */
+      for (int i = 0; (i < partitions) && (mine < share) && !stopping; i++) {
+        int p = (start + i) % partitions;
+        PartitionLease lease = leases.get(p);
+
+        if ((lease != null) && lease.held(now)) {
+          continue;
+        }
+
+        long expires = now + leaseDuration;
+        boolean ok;
+
+        if (lease == null) {
+          lease = new PartitionLease(p);
+          lease.setOwner(nodeId);
+          lease.setExpires(expires);
+          ok = store.add(lease);
+        } else {
+          lease.setOwner(nodeId);
+          lease.setExpires(expires);
+          ok = store.update(lease);
+        }
+
+        if (ok) {
+          owned.put(p, expires);
+          gained.add(p);
+          mine++;
+          takeoverCt.inc();
+        }
+      }
+
+      ownedCt.setLongValue(owned.size());
+    } catch (Throwable t) {
+      /* What we hold lapses at its recorded expiry */
+      failedCt.inc();
+      error(t);
+    }
+
+    if (debug && (!gained.isEmpty() || !lost.isEmpty())) {
+      trace("Node " + nodeId + " gained " + gained + " lost " + lost);
+    }
+
+    Listener l = listener;
+
+    if (l == null) {
+      return;
+    }
+
+    if (!lost.isEmpty()) {
+      l.lost(lost);
+    }
+
+    if (!gained.isEmpty()) {
+      l.gained(gained);
+    }
+  }
+
+  /* Renew our membership lease, or take an expired one, or add one */
+  private void renewMembership(final List<PartitionLease> members,
+                               final long now) throws SynchException {
+    PartitionLease free = null;
+    int next = -1;
+
+    for (PartitionLease lease: members) {
+      if (nodeId.equals(lease.getOwner())) {
+        lease.setExpires(now + leaseDuration);
+
+        if (store.update(lease)) {
+          return;
+        }
+
+        continue;
+      }
+
+      if ((free == null) && !lease.held(now)) {
+        free = lease;
+      }
+
+      next = Math.min(next, lease.getPartition() - 1);
+    }
+
+    if (free != null) {
+      free.setOwner(nodeId);
+      free.setExpires(now + leaseDuration);
+
+      if (store.update(free)) {
+        return;
+      }
+    }
+
+    PartitionLease lease = new PartitionLease(next);
+
+    lease.setOwner(nodeId);
+    lease.setExpires(now + leaseDuration);
+
+    /* If we lose the race we try again on the next heartbeat */
+    store.add(lease);
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+
+  private void trace(final String msg) {
+    getLogger().debug(msg);
+  }
+
+  private void error(final Throwable t) {
+    getLogger().error(this, t);
+  }
+}
@@ -0,0 +1,187 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Spread the subscriptions which are overdue at startup over a window.
+ *
+ * <p>Each subscription gets an offset within the window derived from its id so
+ * a restart always spreads the same subscription to the same place. We count
+ * the offsets in a fixed number of buckets so we can report how far through
+ * the catch-up we are. Only subscriptions delayed before the window closes
+ * are counted - later ones, such as those in partitions taken over from
+ * another node, are spread the same way but not tracked.
+ */
+public class StartupCatchup {
+  private final long window;
+
+  private final long startTime;
+
+  private static final int buckets = 64;
+
+  /* Count of subscriptions due in each slice of the window */
+  private final int[] dueCts = new int[buckets];
+
+  private int overdueCt;
+
+  /**
+   * @param window - millisecs. 0 or less for no spreading
+   */
+  public StartupCatchup(final long window) {
+    this.window = Math.max(0, window);
+    startTime = System.currentTimeMillis();
+  }
+
+  /**
+   * @return true if we are spreading overdue subscriptions
+   */
+  public boolean isEnabled() {
+    return window > 0;
+  }
+
+  /** Get the delay for an overdue subscription and record it.
+   *
+   * @param subscriptionId
+   * @return delay in millisecs before the subscription should be processed.
+   */
+  public synchronized long delay(final String subscriptionId) {
+    long delay = jitter(subscriptionId);
+
+    if (!isEnabled() || isComplete()) {
+      return delay;
+    }
+
+    dueCts[bucket(delay)]++;
+    overdueCt++;
+
+    return delay;
+  }
+
+  /**
+   * @return number of overdue subscriptions spread over the window
+   */
+  public synchronized int getOverdueCt() {
+    return overdueCt;
+  }
+
+  /**
+   * @return number of overdue subscriptions whose time has come - to the
+   *         nearest slice of the window
+   */
+  public synchronized int getReleasedCt() {
+    if (isComplete()) {
+      return overdueCt;
+    }
+
+    /* Buckets wholly in the past */
+    int done = bucket(System.currentTimeMillis() - startTime);
+    int ct = 0;
+
+    for (int i = 0; i < done; i++) {
+      ct += dueCts[i];
+    }
+
+    return ct;
+  }
+
+  /**
+   * @return true when all overdue subscriptions have been released.
+   */
+  public boolean isComplete() {
+    return System.currentTimeMillis() >= (startTime + window);
+  }
+
+  /**
+   * @return a description of progress
+   */
+  public String getProgress() {
+    if (!isEnabled()) {
+      return "No startup catch-up window";
+    }
+
+    int overdue = getOverdueCt();
+    int released = getReleasedCt();
+
+    if (overdue == 0) {
+      return "No overdue subscriptions at startup";
+    }
+
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("Released ");
+    sb.append(released);
+    sb.append(" of ");
+    sb.append(overdue);
+    sb.append(" overdue subscriptions (");
+    sb.append((released * 100) / overdue);
+    sb.append("%)");
+
+    if (!isComplete()) {
+      sb.append(", ");
+      sb.append((startTime + window - System.currentTimeMillis()) / 1000);
+      sb.append(" seconds remaining");
+    }
+
+    return sb.toString();
+  }
+
+  /** Get the current stats
+   *
+   * @return List of Stat
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    stats.add(new Stat("startup overdue subscriptions", getOverdueCt()));
+    stats.add(new Stat("startup released subscriptions", getReleasedCt()));
+
+    return stats;
+  }
+
+  /* ====================================================================
+   *                        private methods
+   * ==================================================================== */
+
+  private int bucket(final long offset) {
+    if (offset <= 0) {
+      return 0;
+    }
+
+    return (int)Math.min(buckets - 1, (offset * buckets) / window);
+  }
+
+  /* Fixed offset within the window for the subscription. The hash is mixed
+   * as ids often share long common prefixes.
+   */
+  private long jitter(final String subscriptionId) {
+    if ((window == 0) || (subscriptionId == null)) {
+      return 0;
+    }
+
+    long h = subscriptionId.hashCode();
+
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+
+    return (h & Long.MAX_VALUE) % window;
+  }
+}
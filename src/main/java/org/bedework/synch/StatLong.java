@@ -19,7 +19,8 @@
 package org.bedework.synch;
 
 
-/** Provide a way to get named values.
+/** Provide a way to get named values. Updates are synchronized as counts are
+ * shared between the threads processing notifications.
  *
  * @author douglm
  */
@@ -36,14 +37,14 @@ public class StatLong extends Stat {
   /**
    * @param val
    */
-  public void setLongValue(final long val) {
+  public synchronized void setLongValue(final long val) {
     longValue = val;
   }
 
   /**
    * @return long
    */
-  public long getLongValue() {
+  public synchronized long getLongValue() {
     return longValue;
   }
 
@@ -53,8 +54,37 @@ public class StatLong extends Stat {
   }
 
   /**
+   * @return the incremented value
    */
-  public void inc() {
-    setLongValue(getLongValue() + 1);
+  public synchronized long inc() {
+    longValue++;
+    return longValue;
+  }
+
+  /**
+   * @return the decremented value
+   */
+  public synchronized long dec() {
+    longValue--;
+    return longValue;
+  }
+
+  /**
+   * @param val
+   * @return the value after adding val
+   */
+  public synchronized long add(final long val) {
+    longValue += val;
+    return longValue;
+  }
+
+  /** Set the value if val is greater
+   *
+   * @param val
+   */
+  public synchronized void setMax(final long val) {
+    if (val > longValue) {
+      longValue = val;
+    }
   }
 }
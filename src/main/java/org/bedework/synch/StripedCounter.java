@@ -0,0 +1,68 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A counter updated by many threads. Each thread adds to one of a number of
+ * cells chosen from its id so threads rarely contend for the same cell.
+ * Cells are spaced out to avoid sharing cache lines. The value is the sum of
+ * the cells.
+ */
+public class StripedCounter {
+  private static final int stripes = 16;
+
+  /* Longs per cell - 64 bytes */
+  private static final int spacing = 8;
+
+  private final AtomicLongArray cells =
+      new AtomicLongArray(stripes * spacing);
+
+  /**
+   * @param val to add
+   */
+  public void add(final long val) {
+    cells.addAndGet(cell(), val);
+  }
+
+  /** Add 1
+   */
+  public void inc() {
+    add(1);
+  }
+
+  /**
+   * @return current total
+   */
+  public long sum() {
+    long sum = 0;
+
+    for (int i = 0; i < stripes; i++) {
+      sum += cells.get(i * spacing);
+    }
+
+    return sum;
+  }
+
+  private static int cell() {
+    long id = Thread.currentThread().getId();
+
+    return (int)((id ^ (id >>> 16)) & (stripes - 1)) * spacing;
+  }
+}
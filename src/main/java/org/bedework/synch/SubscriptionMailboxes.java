@@ -0,0 +1,304 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.Notification.NotificationItem;
+import org.bedework.synch.Notification.NotificationItem.ActionType;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/** Serialize the work for each subscription. Only one thread at a time may
+ * process a given subscription. Work for different subscriptions runs in
+ * parallel - there is no global lock.
+ *
+ * <p>A thread claims a subscription before processing it. Notifications which
+ * arrive for a claimed subscription are put in its mailbox and are handed, in
+ * order, to the thread holding the claim when it is done with its current
+ * notification.
+ *
+ * <p>A full synch already waiting in a mailbox covers any later full synch or
+ * item change for the subscription, so those are merged into it. Mailboxes
+ * are bounded - when one is full the caller must hold on to the
+ * notification and try again later.
+ *
+ * <p>Threads which must process a notification themselves, for example a
+ * callback which has a request hanging on it, wait until they can claim the
+ * subscription.
+ */
+public class SubscriptionMailboxes {
+  /** Default max notifications waiting for a subscription */
+  public static final int DEFAULT_CAPACITY = 100;
+
+  /** Result of claimOrDefer
+   */
+  public enum Claim {
+    /** We have the claim and should process the notification */
+    claimed,
+
+    /** In the mailbox for the claimant */
+    deferred,
+
+    /** Covered by a full synch already in the mailbox */
+    merged,
+
+    /** Mailbox full - try again later */
+    full
+  }
+
+  private static class Mailbox {
+    LinkedList<Notification<NotificationItem>> notes =
+        new LinkedList<Notification<NotificationItem>>();
+
+    /* Set when there is a full synch in notes */
+    boolean fullSynch;
+
+    /* Set when the mailbox is removed from the map. */
+    boolean closed;
+  }
+
+  private final int capacity;
+
+  private final ConcurrentMap<String, Mailbox> mailboxes =
+      new ConcurrentHashMap<String, Mailbox>();
+
+  private StatLong deferred = new StatLong("notifications deferred for busy subscription");
+
+  private StatLong maxDeferred = new StatLong("max notifications in a mailbox");
+
+  private StatLong claimWaits = new StatLong("subscription claim waits");
+
+  private StatLong mergedCt = new StatLong("notifications merged into a waiting full synch");
+
+  private StatLong fullCt = new StatLong("notifications refused by a full mailbox");
+
+  /**
+   */
+  public SubscriptionMailboxes() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity - max notifications waiting for a subscription
+   */
+  public SubscriptionMailboxes(final int capacity) {
+    this.capacity = capacity;
+  }
+
+  /** Try to claim the subscription. If it is already claimed the notification
+   * is put in the mailbox and will be handed to the claimant, unless a full
+   * synch waiting there already covers it or the mailbox is full.
+   *
+   * @param subscriptionId
+   * @param note
+   * @return Claim
+   */
+  public Claim claimOrDefer(final String subscriptionId,
+                            final Notification<NotificationItem> note) {
+    while (true) {
+      Mailbox mb = mailboxes.putIfAbsent(subscriptionId, new Mailbox());
+      if (mb == null) {
+        return Claim.claimed;
+      }
+
+      synchronized (mb) {
+        if (mb.closed) {
+          // Released while we were looking - try again
+          continue;
+        }
+
+        boolean fullSynch = fullSynch(note);
+
+        if (mb.fullSynch && (fullSynch || itemChange(note))) {
+          mergedCt.inc();
+          return Claim.merged;
+        }
+
+        if (mb.notes.size() >= capacity) {
+          fullCt.inc();
+          return Claim.full;
+        }
+
+        mb.notes.add(note);
+        mb.fullSynch |= fullSynch;
+        deferred.inc();
+        maxDeferred.setMax(mb.notes.size());
+
+        return Claim.deferred;
+      }
+    }
+  }
+
+  /** Wait until we can claim the subscription.
+   *
+   * @param subscriptionId
+   * @throws InterruptedException
+   */
+  public void claim(final String subscriptionId) throws InterruptedException {
+    while (true) {
+      Mailbox mb = mailboxes.putIfAbsent(subscriptionId, new Mailbox());
+      if (mb == null) {
+        return;
+      }
+
+      claimWaits.inc();
+
+      synchronized (mb) {
+        while (!mb.closed) {
+          mb.wait();
+        }
+      }
+    }
+  }
+
+  /** Called by the claimant when it is done with the current notification.
+   * If there is more work in the mailbox the claim is retained and the next
+   * notification returned. Otherwise the claim is released.
+   *
+   * @param subscriptionId
+   * @return next notification or null if the claim was released.
+   */
+  public Notification<NotificationItem> next(final String subscriptionId) {
+    Mailbox mb = mailboxes.get(subscriptionId);
+
+    if (mb == null) {
+      return null;
+    }
+
+    synchronized (mb) {
+      Notification<NotificationItem> note = mb.notes.poll();
+
+      if (note == null) {
+        close(subscriptionId, mb);
+      } else if (fullSynch(note)) {
+        mb.fullSynch = false;
+      }
+
+      return note;
+    }
+  }
+
+  /** Release the claim. Anything still in the mailbox is returned so the
+   * caller can queue it for processing elsewhere.
+   *
+   * @param subscriptionId
+   * @return notifications in the mailbox - never null
+   */
+  public List<Notification<NotificationItem>> release(final String subscriptionId) {
+    Mailbox mb = mailboxes.get(subscriptionId);
+
+    if (mb == null) {
+      return new ArrayList<Notification<NotificationItem>>();
+    }
+
+    synchronized (mb) {
+      List<Notification<NotificationItem>> notes =
+          new ArrayList<Notification<NotificationItem>>(mb.notes);
+
+      close(subscriptionId, mb);
+
+      return notes;
+    }
+  }
+
+  /** Take everything waiting in the mailboxes. The claims are kept - the
+   * claimants will find their mailboxes empty. Used when we shut down.
+   *
+   * @return notifications in the mailboxes - never null
+   */
+  public List<Notification<NotificationItem>> takeWaiting() {
+    List<Notification<NotificationItem>> notes =
+        new ArrayList<Notification<NotificationItem>>();
+
+    for (Mailbox mb: mailboxes.values()) {
+      synchronized (mb) {
+        notes.addAll(mb.notes);
+        mb.notes.clear();
+        mb.fullSynch = false;
+      }
+    }
+
+    return notes;
+  }
+
+  /**
+   * @return number of subscriptions currently claimed
+   */
+  public int getClaimedCt() {
+    return mailboxes.size();
+  }
+
+  /** Get the current stats
+   *
+   * @return List of Stat
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    stats.add(new Stat("subscriptions in process", getClaimedCt()));
+    stats.add(deferred);
+    stats.add(maxDeferred);
+    stats.add(claimWaits);
+    stats.add(mergedCt);
+    stats.add(fullCt);
+
+    return stats;
+  }
+
+  /* Must hold the mailbox lock */
+  private void close(final String subscriptionId,
+                     final Mailbox mb) {
+    mb.notes.clear();
+    mb.fullSynch = false;
+    mb.closed = true;
+    mailboxes.remove(subscriptionId, mb);
+    mb.notifyAll();
+  }
+
+  private static boolean fullSynch(final Notification<NotificationItem> note) {
+    return !note.getNotifications().isEmpty() &&
+        (note.getNotifications().get(0).getAction() == ActionType.FullSynch);
+  }
+
+  /* True if this is a change to an item which a full synch would cover */
+  private static boolean itemChange(final Notification<NotificationItem> note) {
+    if (note.getNotifications().isEmpty()) {
+      return false;
+    }
+
+    for (NotificationItem ni: note.getNotifications()) {
+      switch (ni.getAction()) {
+      case CopiedEvent:
+      case CreatedEvent:
+      case DeletedEvent:
+      case ModifiedEvent:
+      case MovedEvent:
+        continue;
+
+      default:
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
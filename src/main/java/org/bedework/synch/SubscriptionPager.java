@@ -0,0 +1,91 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.db.Subscription;
+import org.bedework.synch.exception.SynchException;
+
+import java.util.List;
+
+/** Walk the subscriptions a page at a time in subscription id order. Each
+ * page is fetched after the last id of the one before so the whole table is
+ * never held in memory and no offsets are needed.
+ *
+ */
+abstract class SubscriptionPager {
+  private final int pageSize;
+
+  /**
+   * @param pageSize - values below 1 are taken as 1
+   */
+  SubscriptionPager(final int pageSize) {
+    this.pageSize = Math.max(1, pageSize);
+  }
+
+  /**
+   * @param afterId - null for the first page
+   * @param max - max number returned
+   * @return page in subscription id order - fewer than max for the last
+   * @throws SynchException
+   */
+  abstract List<Subscription> getPage(String afterId,
+                                      int max) throws SynchException;
+
+  /**
+   * @param sub
+   * @return true if the subscription was accepted
+   * @throws SynchException
+   */
+  abstract boolean process(Subscription sub) throws SynchException;
+
+  /**
+   * @return true to give up before the next page
+   */
+  boolean stopped() {
+    return false;
+  }
+
+  /** Process every page.
+   *
+   * @return number accepted
+   * @throws SynchException
+   */
+  long run() throws SynchException {
+    String lastId = null;
+    long accepted = 0;
+
+    while (!stopped()) {
+      List<Subscription> page = getPage(lastId, pageSize);
+
+      for (Subscription sub: page) {
+        if (process(sub)) {
+          accepted++;
+        }
+      }
+
+      if (page.size() < pageSize) {
+        break;
+      }
+
+      lastId = page.get(page.size() - 1).getSubscriptionId();
+    }
+
+    return accepted;
+  }
+}
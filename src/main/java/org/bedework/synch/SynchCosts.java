@@ -0,0 +1,134 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.db.Subscription;
+import org.bedework.synch.exception.SynchException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Per subscription history of what a full synch cost: the items enumerated,
+ * the wall time and the bytes read. It is kept in the properties of the end
+ * whose refresh delay we use so it survives a restart.
+ *
+ * <p>The expected wall time is a moving average so one unusual synch doesn't
+ * move it far. It is used to order the full synchs waiting in the queue.
+ */
+public class SynchCosts {
+  /** Items at both ends at the last synch */
+  public static final String propnameLastItems = "lastSynchItems";
+
+  /** Wall time of the last synch in millisecs */
+  public static final String propnameLastMillis = "lastSynchMillis";
+
+  /** Bytes read at the last synch */
+  public static final String propnameLastBytes = "lastSynchBytes";
+
+  /** Moving average of the wall time in millisecs */
+  public static final String propnameExpectedMillis = "expectedSynchMillis";
+
+  /* Weight of the latest synch in the average */
+  private static final double weight = 0.3;
+
+  private StatLong recordedCt = new StatLong("synch costs recorded");
+
+  private StatLong maxMillis = new StatLong("synch max millisecs");
+
+  private StatLong maxItems = new StatLong("synch max items");
+
+  private StatLong bytesCt = new StatLong("synch bytes read");
+
+  /** Record what the synch we just did cost.
+   *
+   * @param sub
+   * @param items - number enumerated at both ends - 0 if nothing changed
+   * @param millis - wall time
+   * @param bytes - bytes read from both ends if known
+   * @throws SynchException
+   */
+  public void record(final Subscription sub,
+                     final long items,
+                     final long millis,
+                     final long bytes) throws SynchException {
+    BaseSubscriptionInfo info = sub.refreshInfo();
+
+    info.setProperty(propnameLastItems, String.valueOf(items));
+    info.setProperty(propnameLastMillis, String.valueOf(millis));
+    info.setProperty(propnameLastBytes, String.valueOf(bytes));
+
+    long expected = getLong(info, propnameExpectedMillis, -1);
+
+    if (expected < 0) {
+      expected = millis;
+    } else {
+      expected = Math.round((weight * millis) + ((1 - weight) * expected));
+    }
+
+    info.setProperty(propnameExpectedMillis, String.valueOf(expected));
+
+    recordedCt.inc();
+    maxMillis.setMax(millis);
+    maxItems.setMax(items);
+    bytesCt.add(bytes);
+  }
+
+  /**
+   * @param sub
+   * @return expected wall time of a full synch in millisecs - 0 if we have
+   *         no history
+   */
+  public long expected(final Subscription sub) {
+    try {
+      return getLong(sub.refreshInfo(), propnameExpectedMillis, 0);
+    } catch (Throwable t) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return stats
+   */
+  public List<Stat> getStats() {
+    List<Stat> stats = new ArrayList<Stat>();
+
+    stats.add(recordedCt);
+    stats.add(maxMillis);
+    stats.add(maxItems);
+    stats.add(bytesCt);
+
+    return stats;
+  }
+
+  private long getLong(final BaseSubscriptionInfo info,
+                       final String name,
+                       final long def) throws SynchException {
+    String s = info.getProperty(name);
+
+    if (s == null) {
+      return def;
+    }
+
+    try {
+      return Long.valueOf(s);
+    } catch (NumberFormatException nfe) {
+      return def;
+    }
+  }
+}
@@ -20,13 +20,19 @@ package org.bedework.synch;
 
 import org.bedework.http.client.dav.DavClient;
 import org.bedework.synch.Notification.NotificationItem;
+import org.bedework.synch.Notification.NotificationItem.ActionType;
+import org.bedework.synch.NotificationAdmission.Result;
+import org.bedework.synch.NotificationAdmission.Source;
 import org.bedework.synch.cnctrs.Connector;
+import org.bedework.synch.cnctrs.ConnectorConfigWrapper;
 import org.bedework.synch.cnctrs.Connector.NotificationBatch;
 import org.bedework.synch.cnctrs.ConnectorInstance;
 import org.bedework.synch.db.ConnectorConfig;
+import org.bedework.synch.db.PartitionLease;
 import org.bedework.synch.db.Subscription;
 import org.bedework.synch.db.SynchConfig;
 import org.bedework.synch.db.SynchDb;
+import org.bedework.synch.db.SynchItemState;
 import org.bedework.synch.exception.SynchException;
 import org.bedework.synch.wsmessages.SynchEndType;
 
@@ -36,20 +42,35 @@ import edu.rpi.cmt.timezones.Timezones;
 import edu.rpi.cmt.timezones.TimezonesImpl;
 import edu.rpi.sss.util.Util;
 
+import net.fortuna.ical4j.data.CalendarBuilder;
 import net.fortuna.ical4j.model.TimeZone;
 
 import org.apache.log4j.Logger;
 import org.oasis_open.docs.ws_calendar.ns.soap.StatusType;
 
+import java.io.StringReader;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /** Synch processor.
  * <p>The synch processor manages subscriptions made by a subscriber to a target.
@@ -127,7 +148,7 @@ public class SynchEngine extends TzGetter {
    * for which we get change messages from the remote system(s).
    */
   private final Map<String, Subscription> activeSubs =
-      new HashMap<String, Subscription>();
+      new ConcurrentHashMap<String, Subscription>();
 
   private boolean starting;
 
@@ -149,115 +170,66 @@ public class SynchEngine extends TzGetter {
 
   private SynchTimer synchTimer;
 
-  private BlockingQueue<Notification<NotificationItem>> notificationInQueue;
+  private StartupCatchup catchup;
 
-  /* Where we keep subscriptions that come in while we are starting */
-  private List<Subscription> subsList;
+  private AdaptiveRefresh adaptiveRefresh = new AdaptiveRefresh();
 
-  private SynchDb db;
+  private SynchCosts costs = new SynchCosts();
 
-  private Map<String, Connector> connectorMap = new HashMap<String, Connector>();
+  private StatLong loadedCt = new StatLong("startup subscriptions loaded");
 
-  /* Some counts */
+  private ConnectorLimits connectorLimits = new ConnectorLimits();
 
-  private StatLong notificationsCt = new StatLong("notifications");
+  private NotificationDispatcher dispatcher;
 
-  private StatLong notificationsAddWt = new StatLong("notifications add wait");
+  private NotificationQueue notificationInQueue;
 
-  /** This process handles startup notifications and (un)subscriptions.
-   *
-   */
-  private class NotificationInThread extends Thread {
-    long lastTrace;
+  private NotificationAdmission admission;
 
-    /**
-     */
-    public NotificationInThread() {
-      super("NotifyIn");
-    }
+  private WarmUp warmUp;
 
-    @Override
-    public void run() {
-      while (true) {
-        if (debug) {
-          trace("About to wait for notification");
-        }
+  /* Engine wide and per connector windows for large full synchs */
+  private MaintenanceWindows maintenanceWindows;
 
-        try {
-          Notification<NotificationItem> note = notificationInQueue.take();
-          if (note == null) {
-            continue;
-          }
+  private Map<String, MaintenanceWindows> connectorWindows =
+      new HashMap<String, MaintenanceWindows>();
 
-          if (debug) {
-            trace("Received notification");
-          }
+  private StatLong deferredCt = new StatLong("full synchs deferred to window");
 
-          if ((note.getSub() != null) && note.getSub().getDeleted()) {
-            // Drop it
+  /* Runs one end of a synch while the synchling works on the other */
+  private ExecutorService endExecutor;
 
-            if (debug) {
-              trace("Dropping deleted notification");
-            }
+  private StatLong concurrentEndsCt = new StatLong("concurrent end calls");
 
-            continue;
-          }
+  private StatLong concurrentEndsDeclinedCt =
+      new StatLong("concurrent end calls declined");
 
-          notificationsCt.inc();
-          Synchling sl = null;
+  /* Only set in cluster mode */
+  private PartitionLeaseManager leases;
 
-          try {
-            /* Get a synchling from the pool */
-            while (true) {
-              if (stopping) {
-                return;
-              }
+  /* Only set if due times are kept in the db rather than the timer */
+  private DueQueuePoller duePoller;
 
-              sl = synchlingPool.getNoException();
-              if (sl != null) {
-                break;
-              }
-            }
+  /* Where we keep subscriptions that come in while we are starting */
+  private List<Subscription> subsList;
 
-            /* The synchling needs to be running it's own thread. */
-            StatusType st = handleNotification(sl, note);
+  private SynchDb db;
 
-            if (st == StatusType.WARNING) {
-              /* Back on the queue - these need to be flagged so we don't get an
-               * endless loop - perhaps we need a delay queue
-               */
+  /* Notifications are processed by a number of threads at once. Each gets its
+   * own db object - and hibernate session.
+   */
+  private final ThreadLocal<SynchDb> threadDb = new ThreadLocal<SynchDb>() {
+    @Override
+    protected SynchDb initialValue() {
+      return new SynchDb();
+    }
+  };
 
-              notificationInQueue.put(note);
-            }
-          } finally {
-            synchlingPool.add(sl);
-          }
+  private Map<String, Connector> connectorMap = new HashMap<String, Connector>();
 
-          /* If this is a poll kind then we should add it to a poll queue
-           */
-          // XXX Add it to poll queue
-        } catch (InterruptedException ie) {
-          warn("Notification handler shutting down");
-          break;
-        } catch (Throwable t) {
-          if (debug) {
-            error(t);
-          } else {
-            // Try not to flood the log with error traces
-            long now = System.currentTimeMillis();
-            if ((now - lastTrace) > (30 * 1000)) {
-              error(t);
-              lastTrace = now;
-            } else {
-              error(t.getMessage());
-            }
-          }
-        }
-      }
-    }
-  }
+  /* Some counts */
 
-  private static NotificationInThread notifyInHandler;
+  private StatLong notificationsAddWt = new StatLong("notifications add wait");
 
   /** Constructor
    *
@@ -343,7 +315,6 @@ public class SynchEngine extends TzGetter {
       config = new Configurator(db);
 
       timezones = new TimezonesImpl();
-      timezones.init(config.getSynchConfig().getTimezonesURI());
 
       tzgetter = this;
 
@@ -355,7 +326,12 @@ public class SynchEngine extends TzGetter {
                           config.getSynchConfig().getSynchlingPoolSize(),
                           config.getSynchConfig().getSynchlingPoolTimeout());
 
-      notificationInQueue = new ArrayBlockingQueue<Notification<NotificationItem>>(100);
+      notificationInQueue = new NotificationQueue(100);
+      notificationInQueue.setCostOrdering(costs,
+                                          config.getSynchConfig().getBulkAgingBound());
+
+      synchlingPool.setElastic(config.getSynchConfig().getSynchlingPoolMaxSize(),
+                               config.getSynchConfig().getSynchlingIdleTimeout());
 
       info("**************************************************");
       info("Starting synch");
@@ -370,73 +346,107 @@ public class SynchEngine extends TzGetter {
       Set<ConnectorConfig> connectors = config.getSynchConfig().getConnectors();
       String callbackUriBase = config.getSynchConfig().getCallbackURI();
 
-      /* Register the connectors and start them */
-      for (ConnectorConfig conf: connectors) {
-        String cnctrId = conf.getName();
-        info("Register and start connector " + cnctrId);
+      maintenanceWindows = MaintenanceWindows.parse(
+                config.getSynchConfig().getMaintenanceWindows());
 
-        registerConnector(cnctrId, conf);
+      startConnectors(connectors, callbackUriBase);
 
-        Connector conn = getConnector(cnctrId);
+      /* Nothing is dispatched until this is done */
+      warmUp();
 
-        conn.start(cnctrId,
-                   conf,
-                   callbackUriBase + cnctrId + "/",
-                   this);
+      synchTimer = new SynchTimer(this);
 
-        while (!conn.isStarted()) {
-          /* Wait for it to start */
-          synchronized (this) {
-            this.wait(250);
-          }
+      catchup = new StartupCatchup(
+                config.getSynchConfig().getStartupCatchupWindow());
 
-          if (conn.isFailed()) {
-            error("Connector " + cnctrId + " failed to start");
-            break;
-          }
+      /* Get the list of subscriptions from our database and process them.
+       * While starting, new subscribe requests get added to the list.
+       */
+
+      dispatcher = new NotificationDispatcher();
+
+      if (config.getSynchConfig().getSynchThreads()) {
+        SynchThreadFactory tf = new SynchThreadFactory();
+        int limit = config.getSynchConfig().getMaxConcurrentSynchs();
+
+        if (!tf.isVirtual()) {
+          /* No more platform threads than we'd have synchlings */
+          limit = Math.min(limit, synchlingPool.getMaxSize());
         }
+
+        info("Synchs run on their own " +
+             (tf.isVirtual() ? "virtual" : "platform") + " threads - at most " +
+             limit);
+
+        dispatcher.useSynchThreads(tf, limit);
       }
 
-      synchTimer = new SynchTimer(this);
+      if (config.getSynchConfig().getConcurrentEnds()) {
+        /* At most one extra call for each synchling. When they are all busy
+         * the caller makes the call itself.
+         */
+        endExecutor = new ThreadPoolExecutor(0,
+                                             Math.max(1, synchlingPool.getMaxSize()),
+                                             60, TimeUnit.SECONDS,
+                                             new SynchronousQueue<Runnable>(),
+                                             new SynchThreadFactory());
+      }
 
-      /* Get the list of subscriptions from our database and process them.
-       * While starting, new subscribe requests get added to the list.
-       */
+      /* Enough workers to use the pool at its largest */
+      dispatcher.start(this, synchlingPool, notificationInQueue,
+                       synchlingPool.getMaxSize());
+
+      admission = new NotificationAdmission(notificationInQueue,
+                                            dispatcher.getRetryQueue());
+      admission.setPolicy(Source.timer,
+                          config.getSynchConfig().getTimerAdmissionPolicy());
+      admission.setPolicy(Source.callback,
+                          config.getSynchConfig().getCallbackAdmissionPolicy());
+      admission.setPolicy(Source.internal,
+                          config.getSynchConfig().getInternalAdmissionPolicy());
+
+      if (config.getSynchConfig().getDueQueuePollInterval() > 0) {
+        duePoller = new DueQueuePoller(this,
+                                       config.getSynchConfig().getDueQueuePollInterval(),
+                                       config.getSynchConfig().getDueQueueBatchSize());
+      }
 
-      notifyInHandler = new NotificationInThread();
-      notifyInHandler.start();
+      startCluster();
 
       try {
-        db.open();
-        List<Subscription> startList = db.getAll();
-        db.close();
-
-        startup:
-        while (starting) {
-          if (debug) {
-            trace("startList has " + startList.size() + " subscriptions");
-          }
+        loadSubscriptions(null);
 
-          for (Subscription sub: startList) {
-            setConnectors(sub);
+        if (duePoller != null) {
+          duePoller.start();
+        }
 
-            reschedule(sub);
-          }
+        /* Subscribe requests which came in while we were loading */
+        while (starting) {
+          List<Subscription> startList;
 
           synchronized (this) {
             if (subsList == null) {
               // Nothing came in as we started
               starting = false;
-              if (stopping) {
-                break startup;
+              if (!stopping) {
+                running = true;
               }
-              running = true;
               break;
             }
 
             startList = subsList;
             subsList = null;
           }
+
+          if (debug) {
+            trace("startList has " + startList.size() + " subscriptions");
+          }
+
+          for (Subscription sub: startList) {
+            setConnectors(sub);
+
+            startupSchedule(sub);
+          }
         }
       } finally {
         if ((db != null) && db.isOpen()) {
@@ -460,6 +470,421 @@ public class SynchEngine extends TzGetter {
     }
   }
 
+  /* Register the connectors and start them in parallel. We wait for them to
+   * be ready up to the startup deadline. A connector which is slower than that
+   * carries on starting in the background.
+   */
+  private void startConnectors(final Set<ConnectorConfig> connectors,
+                               final String callbackUriBase) throws SynchException {
+    for (ConnectorConfig conf: connectors) {
+      info("Register connector " + conf.getName());
+
+      registerConnector(conf.getName(), conf);
+    }
+
+    if (connectors.isEmpty()) {
+      return;
+    }
+
+    long timeout = config.getSynchConfig().getConnectorStartupTimeout();
+
+    if (timeout <= 0) {
+      timeout = SynchConfig.DEFAULT_CONNECTOR_STARTUP_TIMEOUT;
+    }
+
+    final long deadline = System.currentTimeMillis() + timeout;
+
+    ExecutorService starter = Executors.newFixedThreadPool(connectors.size(),
+                                                           new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        Thread t = new Thread(r, "ConnectorStart");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    Map<String, Future<Boolean>> ready = new HashMap<String, Future<Boolean>>();
+
+    try {
+      for (final ConnectorConfig conf: connectors) {
+        final String cnctrId = conf.getName();
+        final Connector conn = getConnector(cnctrId);
+
+        ready.put(cnctrId, starter.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            info("Start connector " + cnctrId);
+
+            conn.start(cnctrId,
+                       conf,
+                       callbackUriBase + cnctrId + "/",
+                       SynchEngine.this);
+
+            return conn.awaitStarted(deadline - System.currentTimeMillis());
+          }
+        }));
+      }
+
+      for (Map.Entry<String, Future<Boolean>> ent: ready.entrySet()) {
+        String cnctrId = ent.getKey();
+
+        try {
+          long wait = Math.max(0, deadline - System.currentTimeMillis());
+
+          if (ent.getValue().get(wait, TimeUnit.MILLISECONDS)) {
+            continue;
+          }
+
+          if (getConnector(cnctrId).isFailed()) {
+            error("Connector " + cnctrId + " failed to start");
+          } else {
+            warn("Connector " + cnctrId + " not started by deadline - continuing");
+          }
+        } catch (TimeoutException te) {
+          warn("Connector " + cnctrId + " not started by deadline - continuing");
+        } catch (ExecutionException ee) {
+          error("Connector " + cnctrId + " failed to start");
+          error(ee.getCause());
+        } catch (InterruptedException ie) {
+          throw new SynchException(ie);
+        }
+      }
+    } finally {
+      // Anything still starting carries on
+      starter.shutdown();
+    }
+  }
+
+  /* Build the shared objects the first synchs would otherwise build. */
+  private void warmUp() throws SynchException {
+    final String tzUri = config.getSynchConfig().getTimezonesURI();
+
+    warmUp = new WarmUp();
+
+    warmUp.add("timezones", new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        timezones.init(tzUri);
+        return null;
+      }
+    }, true);
+
+    warmUp.add("ical4j", new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        // Loads and initialises most of the classes a conversion needs
+        return new CalendarBuilder().build(new StringReader(
+            "BEGIN:VCALENDAR\r\n" +
+            "VERSION:2.0\r\n" +
+            "PRODID:-//Bedework//Synch warm-up//EN\r\n" +
+            "BEGIN:VEVENT\r\n" +
+            "UID:warm-up\r\n" +
+            "DTSTAMP:20120101T000000Z\r\n" +
+            "DTSTART:20120101T000000Z\r\n" +
+            "SUMMARY:warm-up\r\n" +
+            "END:VEVENT\r\n" +
+            "END:VCALENDAR\r\n"));
+      }
+    }, false);
+
+    warmUp.add("fingerprints", new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        Fingerprinter.init();
+        return null;
+      }
+    }, false);
+
+    for (final Connector conn: getConnectors()) {
+      warmUp.add("connector " + conn.getId(), new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          conn.warmUp();
+          return null;
+        }
+      }, false);
+    }
+
+    warmUp.run(config.getSynchConfig().getWarmUpTimeout());
+  }
+
+  /* Read the subscriptions a page at a time and schedule each page as it
+   * arrives. The dispatcher is already running so callbacks are handled
+   * while we load. In cluster mode we only schedule those we own, and if
+   * partitions is non-null only those in the given partitions.
+   */
+  private void loadSubscriptions(final Set<Integer> partitions) throws SynchException {
+    final SynchDb db = getDb();
+
+    SubscriptionPager pager =
+        new SubscriptionPager(config.getSynchConfig().getStartupPageSize()) {
+      @Override
+      List<Subscription> getPage(final String afterId,
+                                 final int max) throws SynchException {
+        db.open();
+        try {
+          List<Subscription> page = db.getPage(afterId, max);
+
+          if (debug) {
+            trace("Loaded page of " + page.size() + " subscriptions");
+          }
+
+          return page;
+        } finally {
+          db.close();
+        }
+      }
+
+      @Override
+      boolean process(final Subscription sub) throws SynchException {
+        if ((partitions != null) &&
+            !partitions.contains(leases.partition(sub.getSubscriptionId()))) {
+          return false;
+        }
+
+        if (!owns(sub)) {
+          return false;
+        }
+
+        setConnectors(sub);
+
+        startupSchedule(sub);
+
+        return true;
+      }
+
+      @Override
+      boolean stopped() {
+        return stopping;
+      }
+    };
+
+    long loaded = pager.run();
+
+    loadedCt.add(loaded);
+
+    info("Loaded " + loaded + " subscriptions");
+  }
+
+  /* In cluster mode claim our share of the partitions before we load. Later
+   * gains are loaded on their own thread so the heartbeat is never held up.
+   * Subscriptions in partitions we lose are dropped when their timer expires.
+   */
+  private void startCluster() throws SynchException {
+    final SynchConfig conf = config.getSynchConfig();
+
+    if (conf.getClusterPartitions() <= 0) {
+      return;
+    }
+
+    String nodeId = conf.getClusterNodeId();
+
+    if (nodeId == null) {
+      try {
+        nodeId = InetAddress.getLocalHost().getHostName();
+      } catch (Throwable t) {
+        nodeId = "synch";
+      }
+
+      nodeId += "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    leases = new PartitionLeaseManager(nodeId,
+                                       conf.getClusterPartitions(),
+                                       conf.getClusterLeaseDuration(),
+                                       new DbLeaseStore());
+
+    leases.start();
+
+    info("Cluster node " + nodeId + " owns partitions " + leases.getOwned());
+
+    leases.setListener(new PartitionLeaseManager.Listener() {
+      @Override
+      public void gained(final Set<Integer> partitions) {
+        Thread loader = new Thread("SynchPartitionLoad") {
+          @Override
+          public void run() {
+            try {
+              loadSubscriptions(partitions);
+            } catch (Throwable t) {
+              error(t);
+            }
+          }
+        };
+
+        loader.setDaemon(true);
+        loader.start();
+      }
+
+      @Override
+      public void lost(final Set<Integer> partitions) {
+        info("Cluster node lost partitions " + partitions);
+      }
+    });
+  }
+
+  /* Leases in the synch db. Each call is its own transaction so a lost race
+   * on one lease doesn't affect the others.
+   */
+  private class DbLeaseStore implements PartitionLeaseManager.LeaseStore {
+    @Override
+    public List<PartitionLease> getLeases() throws SynchException {
+      SynchDb db = getDb();
+      boolean opened = db.open();
+
+      try {
+        return db.getLeases();
+      } finally {
+        if (opened) {
+          db.close();
+        }
+      }
+    }
+
+    @Override
+    public boolean add(final PartitionLease lease) throws SynchException {
+      SynchDb db = getDb();
+
+      try {
+        db.open();
+        try {
+          db.addLease(lease);
+        } finally {
+          db.close();
+        }
+
+        return true;
+      } catch (SynchException se) {
+        if (debug) {
+          trace("Lost race to add lease " + lease.getPartition() +
+                ": " + se.getMessage());
+        }
+
+        return false;
+      }
+    }
+
+    @Override
+    public boolean update(final PartitionLease lease) throws SynchException {
+      SynchDb db = getDb();
+
+      try {
+        db.open();
+        try {
+          db.updateLease(lease);
+        } finally {
+          db.close();
+        }
+
+        return true;
+      } catch (SynchException se) {
+        if (debug) {
+          trace("Lost race to update lease " + lease.getPartition() +
+                ": " + se.getMessage());
+        }
+
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @param sub
+   * @return true if this node schedules and synchs the subscription
+   */
+  public boolean owns(final Subscription sub) {
+    return (leases == null) || leases.owns(sub.getSubscriptionId());
+  }
+
+  /* Overdue polled subscriptions are spread over the catch-up window.
+   * Everything else is scheduled as usual.
+   */
+  private void startupSchedule(final Subscription sub) throws SynchException {
+    /* Work left over when we last stopped goes first - unless the due queue
+     * poller will find it.
+     */
+    if (sub.refreshInfo().getResynchPending() &&
+        !(sub.polling() && (duePoller != null))) {
+      synchTimer.schedule(sub,
+                          catchup.isEnabled() ?
+                              catchup.delay(sub.getSubscriptionId()) : 0);
+      return;
+    }
+
+    /* The due queue poller paces overdue subscriptions itself */
+    if (sub.polling() && catchup.isEnabled() && (duePoller == null) &&
+        (sub.nextRefresh().getTime() <= System.currentTimeMillis())) {
+      long delay = catchup.delay(sub.getSubscriptionId());
+
+      if (debug) {
+        trace("Overdue subscription " + sub.getSubscriptionId() +
+              " delayed " + delay + " millisecs");
+      }
+
+      synchTimer.schedule(sub, delay);
+      return;
+    }
+
+    reschedule(sub);
+  }
+
+  /** Adjust the refresh delay of a polled subscription after a refresh.
+   *
+   * @param sub
+   * @param changes - number of items created, updated or deleted
+   * @throws SynchException
+   */
+  public void adaptRefreshDelay(final Subscription sub,
+                                final long changes) throws SynchException {
+    SynchConfig conf = getConfig();
+
+    adaptiveRefresh.update(sub, changes,
+                           conf.getAdaptiveRefresh(),
+                           conf.getMaxRefreshDelay());
+  }
+
+  /** Record what a full synch of the subscription cost.
+   *
+   * @param sub
+   * @param items - number enumerated at both ends
+   * @param millis - wall time
+   * @param bytes - bytes read if known
+   * @throws SynchException
+   */
+  public void recordCost(final Subscription sub,
+                         final long items,
+                         final long millis,
+                         final long bytes) throws SynchException {
+    costs.record(sub, items, millis, bytes);
+  }
+
+  /** Start a call for one end of a synch on another thread so the caller
+   * can work on the other end at the same time. If all the threads are busy
+   * the caller makes the call itself.
+   *
+   * @param sub
+   * @param call
+   * @return future or null if the caller should make the call itself
+   */
+  public <T> Future<T> runConcurrently(final Subscription sub,
+                                       final Callable<T> call) {
+    if ((endExecutor == null) || !connectorLimits.concurrentEnds(sub)) {
+      return null;
+    }
+
+    try {
+      Future<T> f = endExecutor.submit(call);
+      concurrentEndsCt.inc();
+
+      return f;
+    } catch (RejectedExecutionException ree) {
+      // All busy or stopping
+      concurrentEndsDeclinedCt.inc();
+      return null;
+    }
+  }
+
   /** Reschedule a subscription for updates.
    *
    * @param sub
@@ -470,8 +895,25 @@ public class SynchEngine extends TzGetter {
       trace("reschedule subscription " + sub);
     }
 
+    if (!owns(sub)) {
+      // Another node has it now
+      return;
+    }
+
     if (sub.polling()) {
-      synchTimer.schedule(sub, sub.nextRefresh());
+      if (duePoller == null) {
+        synchTimer.schedule(sub, sub.nextRefresh());
+        return;
+      }
+
+      /* The db holds the due time - make sure it's there */
+      duePoller.done(sub.getSubscriptionId());
+
+      if (sub.getNextRefreshTime() == 0) {
+        sub.updateNextRefresh();
+        updateSubscription(sub);
+      }
+
       return;
     }
 
@@ -493,14 +935,48 @@ public class SynchEngine extends TzGetter {
   public List<Stat> getStats() {
     List<Stat> stats = new ArrayList<Stat>();
 
-    stats.addAll(synchlingPool.getStats());
-    stats.addAll(synchTimer.getStats());
-    stats.add(notificationsCt);
+    if (warmUp != null) {
+      stats.addAll(warmUp.getStats());
+    }
+
+    stats.addAll(synchlingPool.getStats());
+    stats.addAll(synchTimer.getStats());
+    stats.add(loadedCt);
+    stats.add(deferredCt);
+    stats.add(concurrentEndsCt);
+    stats.add(concurrentEndsDeclinedCt);
+    stats.addAll(catchup.getStats());
+    stats.addAll(adaptiveRefresh.getStats());
+    stats.addAll(costs.getStats());
+    stats.addAll(dispatcher.getStats());
+    stats.addAll(notificationInQueue.getStats());
+    stats.addAll(admission.getStats());
+    stats.addAll(connectorLimits.getStats());
+
+    if (leases != null) {
+      stats.addAll(leases.getStats());
+    }
+
+    if (duePoller != null) {
+      stats.addAll(duePoller.getStats());
+    }
+
     stats.add(notificationsAddWt);
 
     return stats;
   }
 
+  /**
+   * @return progress through the startup catch-up window
+   */
+  public String getStartupProgress() {
+    if (catchup == null) {
+      return "Not started";
+    }
+
+    return catchup.getProgress();
+  }
+
   /** Stop synch process.
    *
    */
@@ -511,6 +987,39 @@ public class SynchEngine extends TzGetter {
 
     stopping = true;
 
+    if (admission != null) {
+      admission.stop();
+    }
+
+    if (duePoller != null) {
+      duePoller.stop();
+    }
+
+    if (synchTimer != null) {
+      synchTimer.stop();
+    }
+
+    /* Let running synchs finish and save what's left. The connectors are
+     * needed until then.
+     */
+    if (dispatcher != null) {
+      try {
+        long drainTimeout = getConfig().getDrainTimeout();
+
+        if (drainTimeout <= 0) {
+          drainTimeout = SynchConfig.DEFAULT_DRAIN_TIMEOUT;
+        }
+
+        checkpoint(dispatcher.drain(drainTimeout));
+      } catch (Throwable t) {
+        error(t);
+      }
+    }
+
+    if (endExecutor != null) {
+      endExecutor.shutdown();
+    }
+
     /* Call stop on each connector
      */
     for (Connector conn: getConnectors()) {
@@ -532,6 +1041,11 @@ public class SynchEngine extends TzGetter {
       synchlingPool.stop();
     }
 
+    /* Only let the partitions go once we have stopped synching them */
+    if (leases != null) {
+      leases.stop();
+    }
+
     syncher = null;
 
     info("**************************************************");
@@ -540,22 +1054,246 @@ public class SynchEngine extends TzGetter {
   }
 
   /**
-   * @param note
-   * @throws SynchException
+   * @return true if running synchs should stop at the next safe point
    */
-  public void handleNotification(final Notification<NotificationItem> note) throws SynchException {
-    try {
-      while (true) {
-        if (stopping) {
-          return;
+  public boolean cancelling() {
+    return (dispatcher != null) && dispatcher.isCancelling();
+  }
+
+  /* Flag every subscription with unprocessed work so it is synched as soon
+   * as we start again. That full synch covers item changes. It does not
+   * cover manager requests so we carry those out now, while the connectors
+   * are still there. Anything else we can't keep is logged.
+   */
+  private void checkpoint(final List<Notification<NotificationItem>> notes) {
+    Set<String> saved = new HashSet<String>();
+    int dropped = 0;
+
+    for (Notification<NotificationItem> note: notes) {
+      Subscription sub = note.getSub();
+
+      if (managerRequest(note)) {
+        if (!finishManagerRequest(note)) {
+          dropped++;
+        }
+        continue;
+      }
+
+      if ((sub == null) || sub.getDeleted()) {
+        lost(note);
+        dropped++;
+        continue;
+      }
+
+      if (!saved.add(sub.getSubscriptionId())) {
+        continue;
+      }
+
+      try {
+        sub.refreshInfo().setResynchPending(true);
+
+        if (sub.polling()) {
+          sub.setNextRefreshTime(System.currentTimeMillis());
         }
 
-        if (notificationInQueue.offer(note, 5, TimeUnit.SECONDS)) {
-          break;
+        updateSubscription(sub);
+      } catch (Throwable t) {
+        error(t);
+      }
+    }
+
+    info("Saved " + saved.size() + " subscriptions with pending work. " +
+         dropped + " notifications dropped");
+  }
+
+  private static boolean managerRequest(final Notification<NotificationItem> note) {
+    for (NotificationItem ni: note.getNotifications()) {
+      switch (ni.getAction()) {
+      case NewSubscription:
+      case Unsubscribe:
+      case SubscriptionStatus:
+        return true;
+
+      default:
+        continue;
+      }
+    }
+
+    return false;
+  }
+
+  /* Returns false if it failed and was lost */
+  private boolean finishManagerRequest(final Notification<NotificationItem> note) {
+    SynchDb db = getDb();
+    boolean opened = false;
+
+    try {
+      opened = db.open();
+
+      StatusType st = handleNotification(new Synchling(this), note);
+
+      if (st == StatusType.OK) {
+        return true;
+      }
+
+      warn("Status " + st + " finishing request when stopping");
+    } catch (Throwable t) {
+      error(t);
+    } finally {
+      if (opened) {
+        try {
+          db.close();
+        } catch (Throwable t) {
+          error(t);
         }
       }
-    } catch (InterruptedException ie) {
     }
+
+    lost(note);
+
+    return false;
+  }
+
+  /* Full synchs of deleted subscriptions don't matter - anything else is
+   * worth a mention.
+   */
+  private void lost(final Notification<NotificationItem> note) {
+    List<ActionType> actions = new ArrayList<ActionType>();
+
+    for (NotificationItem ni: note.getNotifications()) {
+      if (ni.getAction() != ActionType.FullSynch) {
+        actions.add(ni.getAction());
+      }
+    }
+
+    if (actions.isEmpty()) {
+      return;
+    }
+
+    warn("Lost notification " + actions + " for subscription " +
+         note.getSubscriptionId());
+  }
+
+  /** Queue a notification according to the internal admission policy.
+   *
+   * @param note
+   * @return result - rejected if the caller should try again later
+   * @throws SynchException
+   */
+  public Result handleNotification(final Notification<NotificationItem> note) throws SynchException {
+    Result res = handleNotification(note, Source.internal);
+
+    if (res == Result.rejected) {
+      warn("Notification for " + note.getSubscriptionId() +
+           " rejected: queue full or stopping");
+    }
+
+    return res;
+  }
+
+  /** Queue a notification according to the admission policy for the source.
+   *
+   * @param note
+   * @param src - where it came from
+   * @return result - rejected if the caller should try again later
+   * @throws SynchException
+   */
+  public Result handleNotification(final Notification<NotificationItem> note,
+                                   final Source src) throws SynchException {
+    if (stopping) {
+      return Result.rejected;
+    }
+
+    return admission.admit(note, src);
+  }
+
+  /** Queue a batch of notifications from the timer.
+   *
+   * @param notes
+   * @return notifications which were rejected - never null
+   * @throws SynchException
+   */
+  public List<Notification<NotificationItem>> queueNotifications(
+               final List<Notification<NotificationItem>> notes) throws SynchException {
+    List<Notification<NotificationItem>> rejected =
+        new ArrayList<Notification<NotificationItem>>();
+
+    for (Notification<NotificationItem> note: notes) {
+      if (!owns(note.getSub())) {
+        // Partition was taken over since it was scheduled
+        continue;
+      }
+
+      if (deferToWindow(note.getSub())) {
+        continue;
+      }
+
+      if (handleNotification(note, Source.timer) == Result.rejected) {
+        rejected.add(note);
+      }
+    }
+
+    return rejected;
+  }
+
+  /* A full synch of a large subscription outside its maintenance window is
+   * put off to its place in the next window. Work left over from a stop is
+   * never put off.
+   */
+  private boolean deferToWindow(final Subscription sub) throws SynchException {
+    int threshold = getConfig().getFullSynchSizeThreshold();
+
+    if ((threshold <= 0) || (sub == null)) {
+      return false;
+    }
+
+    MaintenanceWindows mw = connectorWindows.get(
+                  sub.getEndAConnectorInfo().getConnectorId());
+
+    if (mw == null) {
+      mw = connectorWindows.get(sub.getEndBConnectorInfo().getConnectorId());
+    }
+
+    if (mw == null) {
+      mw = maintenanceWindows;
+    }
+
+    if (mw == null) {
+      return false;
+    }
+
+    int items = Math.max(
+        new BaseSubscriptionInfo(sub.getEndAConnectorInfo()).getItemCount(),
+        new BaseSubscriptionInfo(sub.getEndBConnectorInfo()).getItemCount());
+
+    if ((items < threshold) || sub.refreshInfo().getResynchPending()) {
+      return false;
+    }
+
+    long now = System.currentTimeMillis();
+    long delay = mw.delay(sub.getSubscriptionId(), now);
+
+    if (delay == 0) {
+      return false;
+    }
+
+    if (debug) {
+      trace("Full synch of " + sub.getSubscriptionId() + " with " + items +
+            " items deferred " + delay + " millisecs to window " + mw);
+    }
+
+    deferredCt.inc();
+
+    if (duePoller == null) {
+      synchTimer.schedule(sub, delay);
+      return true;
+    }
+
+    sub.setNextRefreshTime(now + delay);
+    updateSubscription(sub);
+    duePoller.done(sub.getSubscriptionId());
+
+    return true;
   }
 
   /**
@@ -716,6 +1454,18 @@ public class SynchEngine extends TzGetter {
 
       Connector c = (Connector)cl.newInstance();
       connectorMap.put(id, c);
+
+      ConnectorConfigWrapper<?> wrapper =
+          new ConnectorConfigWrapper<ConnectorConfigWrapper<?>>(conf);
+
+      connectorLimits.setLimit(id, wrapper.getMaxConcurrentSynchs());
+
+      MaintenanceWindows mw =
+          MaintenanceWindows.parse(wrapper.getMaintenanceWindows());
+
+      if (mw != null) {
+        connectorWindows.put(id, mw);
+      }
     } catch (Throwable t) {
       throw new SynchException(t);
     }
@@ -724,34 +1474,133 @@ public class SynchEngine extends TzGetter {
   /** Processes a batch of notifications. This must be done in a timely manner
    * as a request is usually hanging on this.
    *
+   * <p>We wait for any other processing of the subscription to complete
+   * before handling each notification.
+   *
    * @param notes
    * @throws SynchException
    */
   public void handleNotifications(
             final NotificationBatch<Notification<NotificationItem>> notes) throws SynchException {
+    SynchDb db = getDb();
+    SubscriptionMailboxes mailboxes = dispatcher.getMailboxes();
+
     for (Notification<NotificationItem> note: notes.getNotifications()) {
-      db.open();
+      if (note.getSub() == null) {
+        continue;
+      }
+
+      String subid = note.getSubscriptionId();
+
+      try {
+        mailboxes.claim(subid);
+      } catch (InterruptedException ie) {
+        throw new SynchException(ie);
+      }
+
       Synchling sl = null;
+      List<Semaphore> permits = null;
+      Throwable failure = null;
+      List<Notification<NotificationItem>> deferred;
 
       try {
-        if (note.getSub() != null) {
-          sl = synchlingPool.get();
+        /* Wait for the connectors before we tie up a synchling */
+        permits = connectorLimits.acquire(note.getSub());
 
-          handleNotification(sl, note);
-        }
+        db.open();
+        sl = synchlingPool.get();
+
+        handleNotification(sl, note);
+      } catch (Throwable t) {
+        failure = t;
       } finally {
         db.close();
         if (sl != null) {
           synchlingPool.add(sl);
         }
+
+        if (permits != null) {
+          connectorLimits.release(permits);
+        }
+
+        deferred = mailboxes.release(subid);
+      }
+
+      /* Anything which arrived while we were busy goes back on the queue */
+      requeueDeferred(subid, deferred);
+
+      if (failure instanceof SynchException) {
+        throw (SynchException)failure;
+      }
+
+      if (failure != null) {
+        throw new SynchException(failure);
       }
     }
 
     return;
   }
 
-  private StatusType handleNotification(final Synchling sl,
-                                        final Notification<NotificationItem> note) throws SynchException {
+  /* Requeue each notification on its own so one failure doesn't lose the
+   * rest. If the queue won't take them they wait in the retry queue or, if we
+   * are stopping, are saved with the subscription.
+   */
+  private void requeueDeferred(final String subid,
+                               final List<Notification<NotificationItem>> deferred) {
+    List<Notification<NotificationItem>> unqueued =
+        new ArrayList<Notification<NotificationItem>>();
+
+    for (Notification<NotificationItem> n: deferred) {
+      try {
+        if (handleNotification(n, Source.callback) != Result.rejected) {
+          continue;
+        }
+
+        if (stopping) {
+          unqueued.add(n);
+        } else {
+          dispatcher.getRetryQueue().spill(n);
+        }
+      } catch (Throwable t) {
+        error("Unable to requeue deferred notification for " + subid);
+        error(t);
+      }
+    }
+
+    if (!unqueued.isEmpty()) {
+      checkpoint(unqueued);
+    }
+  }
+
+  /** Take the connector permits for a synch of the subscription if they are
+   * available now. Callers must not hold a synchling while they wait for
+   * permits.
+   *
+   * @param sub
+   * @return permits to release or null if a connector is at its limit
+   */
+  List<Semaphore> tryAcquirePermits(final Subscription sub) {
+    return connectorLimits.tryAcquire(sub);
+  }
+
+  /**
+   * @param permits - from tryAcquirePermits
+   */
+  void releasePermits(final List<Semaphore> permits) {
+    connectorLimits.release(permits);
+  }
+
+  /** Process a notification with the given synchling. Called by the
+   * dispatcher workers and for callbacks. The caller holds the connector
+   * permits.
+   *
+   * @param sl
+   * @param note
+   * @return status from synchling
+   * @throws SynchException
+   */
+  StatusType handleNotification(final Synchling sl,
+                                final Notification<NotificationItem> note) throws SynchException {
     StatusType st = sl.handleNotification(note);
 
     Subscription sub = note.getSub();
@@ -771,12 +1620,38 @@ public class SynchEngine extends TzGetter {
    *                        db methods
    * ==================================================================== */
 
+  /** Get a batch of polled subscriptions due for refresh.
+   *
+   * @param now - due at or before this
+   * @param afterTime - due time of last of previous batch
+   * @param afterId - id of last of previous batch or null
+   * @param max - batch size
+   * @return subscriptions in due order
+   * @throws SynchException
+   */
+  public List<Subscription> getDue(final long now,
+                                   final long afterTime,
+                                   final String afterId,
+                                   final int max) throws SynchException {
+    SynchDb db = getDb();
+    boolean opened = db.open();
+
+    try {
+      return db.getDue(now, afterTime, afterId, max);
+    } finally {
+      if (opened) {
+        db.close();
+      }
+    }
+  }
+
   /**
    * @param id
    * @return subscription
    * @throws SynchException
    */
   public Subscription getSubscription(final String id) throws SynchException {
+    SynchDb db = getDb();
     boolean opened = db.open();
 
     try {
@@ -794,7 +1669,7 @@ public class SynchEngine extends TzGetter {
    * @throws SynchException
    */
   public void addSubscription(final Subscription sub) throws SynchException {
-    db.add(sub);
+    getDb().add(sub);
     sub.resetChanged();
   }
 
@@ -803,14 +1678,50 @@ public class SynchEngine extends TzGetter {
    * @throws SynchException
    */
   public void updateSubscription(final Subscription sub) throws SynchException {
+    SynchDb db = getDb();
+
+    /* Both ends of a synch may be updating it from their own threads */
+    synchronized (sub) {
+      boolean opened = db.open();
+
+      try {
+        db.update(sub);
+        sub.resetChanged();
+      } finally {
+        if (opened) {
+          // It's a one-shot
+          db.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * @param sub
+   * @throws SynchException
+   */
+  public void deleteSubscription(final Subscription sub) throws SynchException {
+    getDb().delete(sub);
+    synchTimer.cancel(sub.getSubscriptionId());
+
+    if (duePoller != null) {
+      duePoller.done(sub.getSubscriptionId());
+    }
+  }
+
+  /**
+   * @param sub
+   * @return all item states for the subscription
+   * @throws SynchException
+   */
+  public List<SynchItemState> getItemStates(final Subscription sub) throws SynchException {
+    SynchDb db = getDb();
     boolean opened = db.open();
 
     try {
-      db.update(sub);
-      sub.resetChanged();
+      return db.getItemStates(sub.getSubscriptionId());
     } finally {
       if (opened) {
-        // It's a one-shot
         db.close();
       }
     }
@@ -818,10 +1729,44 @@ public class SynchEngine extends TzGetter {
 
   /**
    * @param sub
+   * @param uids - a batch of uids
+   * @return item states for those uids we have seen before
    * @throws SynchException
    */
-  public void deleteSubscription(final Subscription sub) throws SynchException {
-    db.delete(sub);
+  public List<SynchItemState> getItemStates(final Subscription sub,
+                                            final Collection<String> uids) throws SynchException {
+    SynchDb db = getDb();
+    boolean opened = db.open();
+
+    try {
+      return db.getItemStates(sub.getSubscriptionId(), uids);
+    } finally {
+      if (opened) {
+        db.close();
+      }
+    }
+  }
+
+  /** Apply a batch of item state changes in one transaction.
+   *
+   * @param adds
+   * @param updates
+   * @param deletes
+   * @throws SynchException
+   */
+  public void updateItemStates(final Collection<SynchItemState> adds,
+                               final Collection<SynchItemState> updates,
+                               final Collection<SynchItemState> deletes) throws SynchException {
+    SynchDb db = getDb();
+    boolean opened = db.open();
+
+    try {
+      db.updateItemStates(adds, updates, deletes);
+    } finally {
+      if (opened) {
+        db.close();
+      }
+    }
   }
 
   /** Find any subscription that matches this one. There can only be one with
@@ -832,6 +1777,7 @@ public class SynchEngine extends TzGetter {
    * @throws SynchException
    */
   public Subscription find(final Subscription sub) throws SynchException {
+    SynchDb db = getDb();
     boolean opened = db.open();
 
     try {
@@ -848,6 +1794,13 @@ public class SynchEngine extends TzGetter {
    *                        private methods
    * ==================================================================== */
 
+  /**
+   * @return the db object for the current thread
+   */
+  private SynchDb getDb() {
+    return threadDb.get();
+  }
+
   private Logger getLogger() {
     if (log == null) {
       log = Logger.getLogger(this.getClass());
@@ -0,0 +1,107 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/** Creates the threads synchs run on when each synch gets its own thread.
+ *
+ * <p>These are virtual threads if the jvm supports them. We find them by
+ * reflection so we still build and run on older jvms, where we fall back to
+ * daemon platform threads. Platform threads are costly so callers should
+ * limit how many they ask for when isVirtual() is false.
+ */
+public class SynchThreadFactory implements ThreadFactory {
+  protected transient Logger log;
+
+  /* Set once we have said virtual threads are not available */
+  private static volatile boolean reportedPlatform;
+
+  private ThreadFactory virtualFactory;
+
+  private long threadCt;
+
+  /**
+   */
+  public SynchThreadFactory() {
+    virtualFactory = getVirtualFactory();
+
+    if ((virtualFactory == null) && !reportedPlatform) {
+      reportedPlatform = true;
+      getLogger().info("Virtual threads not supported by this jvm - " +
+                       "synchs will use platform threads");
+    }
+  }
+
+  /**
+   * @return true if we create virtual threads
+   */
+  public boolean isVirtual() {
+    return virtualFactory != null;
+  }
+
+  @Override
+  public Thread newThread(final Runnable r) {
+    if (virtualFactory != null) {
+      return virtualFactory.newThread(r);
+    }
+
+    Thread t;
+
+    synchronized (this) {
+      threadCt++;
+      t = new Thread(r, "Synch-" + threadCt);
+    }
+
+    t.setDaemon(true);
+
+    return t;
+  }
+
+  /* Thread.ofVirtual().name("Synch-v-", 0).factory() */
+  private static ThreadFactory getVirtualFactory() {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+      Method ofVirtual = Thread.class.getMethod("ofVirtual");
+      Object builder = ofVirtual.invoke(null);
+
+      Method name = builderClass.getMethod("name", String.class, long.class);
+      builder = name.invoke(builder, "Synch-v-", 0L);
+
+      Method factory = builderClass.getMethod("factory");
+
+      return (ThreadFactory)factory.invoke(builder);
+    } catch (Throwable t) {
+      // Not supported
+      return null;
+    }
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+}
@@ -28,16 +28,25 @@ import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /** Subscriptions which are waiting for a period before resynching. These are
  * generally the polled kind but other subscriptions may be made to wait before
  * retrying failed operations.
  *
+ * <p>Waiting subscriptions are held in a hashed timing wheel. Each slot covers
+ * one tick and an entry is placed in the slot for the tick at which it is due.
+ * Entries more than one revolution away stay in their slot until the wheel
+ * gets round to them. Scheduling and cancelling are constant time.
+ *
+ * <p>A subscription has at most one entry. Scheduling it again replaces
+ * the existing entry. On each tick the expired subscriptions are handed to
+ * the engine as a single batch.
+ *
  *   @author Mike Douglass   douglm   rpi.edu
  */
 public class SynchTimer {
@@ -47,78 +56,163 @@ public class SynchTimer {
 
   private SynchEngine syncher;
 
-  /** This is the class that goes into a wait. The run method MUST only take  a
-   * short period or it will hang the timer. Usually it will allocate a synchling
-   * then return.
+  /** Length of a tick in millis */
+  private static final long tickLength = 1000;
+
+  /** Number of slots - must be a power of 2 */
+  private static final int wheelSize = 512;
+
+  private static final int wheelMask = wheelSize - 1;
+
+  /** Millisecs before we try again with a subscription the engine could not
+   * accept */
+  private static final long rejectedDelay = 30 * 1000;
+
+  /** A waiting subscription.
    *
    */
-  class SynchTask extends TimerTask {
+  private static class Entry {
     private Subscription sub;
 
-    SynchTask(final Subscription sub) {
+    /* Tick at which we expire - set under the slot lock */
+    private volatile long dueTick;
+
+    Entry(final Subscription sub,
+          final long dueTick) {
       this.sub = sub;
+      this.dueTick = dueTick;
+    }
+  }
 
-      synchronized (waiting) {
-        waiting.put(sub.getSubscriptionId(), this);
-        maxWaitingCt = Math.max(maxWaitingCt, waiting.size());
-      }
+  private final List<Set<Entry>> wheel = new ArrayList<Set<Entry>>(wheelSize);
+
+  /* The current entry for each subscription */
+  private ConcurrentMap<String, Entry> waiting =
+      new ConcurrentHashMap<String, Entry>();
+
+  private final long startTime;
+
+  /* Last tick processed by the ticker. Only changed with the lock held on
+   * the slot for the new value. */
+  private volatile long currentTick;
+
+  private TickerThread ticker;
+
+  private volatile boolean stopping;
+
+  /* Some counts */
+
+  private StatLong maxWaitingCt = new StatLong("max waiting");
+
+  private StatLong expiredCt = new StatLong("timer expired");
+
+  private StatLong replacedCt = new StatLong("timer replaced");
+
+  private StatLong lateTicks = new StatLong("timer late ticks");
+
+  private StatLong rejectedCt = new StatLong("timer rejected");
+
+  /** This is the thread that turns the wheel. Processing of each tick MUST
+   * only take a short period. Expired subscriptions are queued for the engine
+   * and we move on.
+   *
+   */
+  private class TickerThread extends Thread {
+    TickerThread() {
+      super("SynchTimer");
     }
 
     @Override
     public void run() {
-      synchronized (waiting) {
-        waiting.remove(sub.getSubscriptionId());
-      }
-
-      if (debug){
-        trace("About to send resynch notification for " + sub.getSubscriptionId());
-      }
-
-      NotificationItem ni = new NotificationItem(ActionType.FullSynch,
-                                                 null, null);
-      Notification<NotificationItem> note = new Notification<NotificationItem>(
-          sub, SynchEndType.NONE, ni);
-
-      try {
-        syncher.handleNotification(note);
-      } catch (SynchException se) {
-        if (debug) {
-          error(se);
-        } else {
-          error(se.getMessage());
+      while (!stopping) {
+        try {
+          long nextTick = currentTick + 1;
+          long wait = (startTime + (nextTick * tickLength)) -
+              System.currentTimeMillis();
+
+          if (wait > 0) {
+            Thread.sleep(wait);
+            continue;
+          }
+
+          if (wait < -tickLength) {
+            lateTicks.inc();
+          }
+
+          List<Notification<NotificationItem>> expired =
+              expire(nextTick);
+
+          if (expired.isEmpty()) {
+            continue;
+          }
+
+          if (debug){
+            trace("About to send " + expired.size() +
+                  " resynch notifications");
+          }
+
+          List<Notification<NotificationItem>> rejected =
+              syncher.queueNotifications(expired);
+
+          /* The engine is busy - try these later */
+          for (Notification<NotificationItem> note: rejected) {
+            rejectedCt.inc();
+            schedule(note.getSub(), rejectedDelay);
+          }
+        } catch (InterruptedException ie) {
+          break;
+        } catch (Throwable t) {
+          if (debug) {
+            error(t);
+          } else {
+            error(t.getMessage());
+          }
         }
       }
     }
   }
 
-  Timer timer;
-
-  private Map<String, SynchTask> waiting = new HashMap<String, SynchTask>();
-
-  private long maxWaitingCt;
-
   /** Start the SynchTimer
    *
    * @param syncher
    */
   public SynchTimer(final SynchEngine syncher){
-    this.syncher = syncher;
+    this(syncher, true);
+  }
 
-    timer = new Timer("SynchTimer", true);
+  /* The tests drive the wheel by calling expire themselves */
+  SynchTimer(final SynchEngine syncher,
+             final boolean runTicker) {
+    this.syncher = syncher;
 
     debug = getLogger().isDebugEnabled();
+
+    for (int i = 0; i < wheelSize; i++) {
+      wheel.add(new HashSet<Entry>());
+    }
+
+    startTime = System.currentTimeMillis();
+
+    if (!runTicker) {
+      return;
+    }
+
+    ticker = new TickerThread();
+    ticker.setDaemon(true);
+    ticker.start();
   }
 
   /** Stop our timer thread.
    *
    */
   public void stop() {
-    if (timer == null) {
+    if (ticker == null) {
       return;
     }
 
-    timer.cancel();
-    timer = null;
+    stopping = true;
+    ticker.interrupt();
+    ticker = null;
   }
 
   /** Schedule a subscription for the given time
@@ -133,11 +227,11 @@ public class SynchTimer {
       trace("reschedule " + sub.getSubscriptionId() + " for " + when);
     }
 
-    SynchTask st = new SynchTask(sub);
-    timer.schedule(st, when);
+    schedule(sub, when.getTime() - System.currentTimeMillis());
   }
 
-  /** Schedule a subscription after the given delay
+  /** Schedule a subscription after the given delay. Any existing schedule for
+   * the subscription is replaced.
    *
    * @param sub
    * @param delay - delay in milliseconds before subscription is processed.
@@ -145,8 +239,47 @@ public class SynchTimer {
    */
   public void schedule(final Subscription sub,
                        final long delay) throws SynchException {
-    SynchTask st = new SynchTask(sub);
-    timer.schedule(st, delay);
+    long dueTick = (System.currentTimeMillis() + Math.max(0, delay) -
+        startTime + tickLength - 1) / tickLength;
+
+    Entry e = new Entry(sub, dueTick);
+
+    /* Publish first so the ticker finds it the moment it is in a slot */
+    Entry old = waiting.put(sub.getSubscriptionId(), e);
+    maxWaitingCt.setMax(waiting.size());
+
+    if (old != null) {
+      replacedCt.inc();
+      cancel(old);
+    }
+
+    while (true) {
+      /* Never in the past - the ticker may have passed that slot */
+      long tick = Math.max(dueTick, currentTick + 1);
+
+      Set<Entry> slot = slot(tick);
+      synchronized (slot) {
+        /* The ticker moves on to a tick only while holding its slot so if
+         * it has not reached the tick yet it will see the entry. */
+        if (tick > currentTick) {
+          e.dueTick = tick;
+          slot.add(e);
+          return;
+        }
+      }
+    }
+  }
+
+  /** Remove any schedule for the subscription.
+   *
+   * @param subscriptionId
+   */
+  public void cancel(final String subscriptionId) {
+    Entry e = waiting.remove(subscriptionId);
+
+    if (e != null) {
+      cancel(e);
+    }
   }
 
   /**
@@ -160,7 +293,7 @@ public class SynchTimer {
    * @return number waiting
    */
   public long getMaxWaitingCt() {
-    return maxWaitingCt;
+    return maxWaitingCt.getLongValue();
   }
 
   /** Get the current stats
@@ -171,11 +304,68 @@ public class SynchTimer {
     List<Stat> stats = new ArrayList<Stat>();
 
     stats.add(new Stat("waiting", getWaitingCt()));
-    stats.add(new Stat("max waiting", getMaxWaitingCt()));
+    stats.add(maxWaitingCt);
+    stats.add(expiredCt);
+    stats.add(replacedCt);
+    stats.add(lateTicks);
+    stats.add(rejectedCt);
 
     return stats;
   }
 
+  /* ====================================================================
+   *                        private methods
+   * ==================================================================== */
+
+  private Set<Entry> slot(final long tick) {
+    return wheel.get((int)(tick & wheelMask));
+  }
+
+  private void cancel(final Entry e) {
+    Set<Entry> slot = slot(e.dueTick);
+    synchronized (slot) {
+      slot.remove(e);
+    }
+  }
+
+  /* Remove and return notifications for everything due at or before tick in
+   * the slot for that tick. The tick becomes the current tick.
+   */
+  List<Notification<NotificationItem>> expire(final long tick) {
+    List<Notification<NotificationItem>> expired =
+        new ArrayList<Notification<NotificationItem>>();
+    List<Entry> due = new ArrayList<Entry>();
+
+    Set<Entry> slot = slot(tick);
+    synchronized (slot) {
+      for (Entry e: slot) {
+        if (e.dueTick <= tick) {
+          due.add(e);
+        }
+      }
+
+      slot.removeAll(due);
+
+      currentTick = tick;
+    }
+
+    for (Entry e: due) {
+      /* Only if it's still the current entry for the subscription */
+      if (!waiting.remove(e.sub.getSubscriptionId(), e)) {
+        continue;
+      }
+
+      expiredCt.inc();
+
+      NotificationItem ni = new NotificationItem(ActionType.FullSynch,
+                                                 null, null);
+      expired.add(new Notification<NotificationItem>(
+          e.sub, SynchEndType.NONE, ni));
+    }
+
+    return expired;
+  }
+
   private Logger getLogger() {
     if (log == null) {
       log = Logger.getLogger(this.getClass());
@@ -22,8 +22,10 @@ import org.bedework.synch.BaseSubscriptionInfo.CrudCts;
 import org.bedework.synch.Notification.NotificationItem;
 import org.bedework.synch.cnctrs.ConnectorInstance;
 import org.bedework.synch.cnctrs.ConnectorInstance.ItemInfo;
+import org.bedework.synch.cnctrs.ConnectorInstance.SynchItemsDelta;
 import org.bedework.synch.cnctrs.ConnectorInstance.SynchItemsInfo;
 import org.bedework.synch.db.Subscription;
+import org.bedework.synch.db.SynchItemState;
 import org.bedework.synch.exception.SynchException;
 import org.bedework.synch.wsmessages.CalProcessingType;
 import org.bedework.synch.wsmessages.SubscribeResponseType;
@@ -36,6 +38,7 @@ import org.bedework.synch.wsmessages.UnsubscribeResponseType;
 
 import edu.rpi.cmt.calendar.XcalUtil;
 import edu.rpi.cmt.calendar.diff.XmlIcalCompare;
+import edu.rpi.sss.util.xml.tagdefs.XcalTags;
 
 import org.apache.log4j.Logger;
 import org.oasis_open.docs.ws_calendar.ns.soap.AddItemResponseType;
@@ -53,19 +56,25 @@ import ietf.params.xml.ns.icalendar_2.AttendeePropType;
 import ietf.params.xml.ns.icalendar_2.BaseComponentType;
 import ietf.params.xml.ns.icalendar_2.BasePropertyType;
 import ietf.params.xml.ns.icalendar_2.IcalendarType;
+import ietf.params.xml.ns.icalendar_2.LastModifiedPropType;
 import ietf.params.xml.ns.icalendar_2.MethodPropType;
 import ietf.params.xml.ns.icalendar_2.OrganizerPropType;
 import ietf.params.xml.ns.icalendar_2.ValarmType;
 import ietf.params.xml.ns.icalendar_2.VcalendarType;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.xml.bind.JAXBElement;
-import javax.xml.ws.Holder;
 
 /** The synchling handles the processing of a single subscription when there is
  * some activity.
@@ -91,12 +100,21 @@ public class Synchling {
 
   private XmlIcalCompare diff;
 
+  // Built with the same skip list as the diff object.
+  private Fingerprinter fingerprinter;
+
   // Subscription id used when getting the diff object.
   private String diffSubid;
 
   /* Max number of items we fetch at a time */
   private final int getItemsBatchSize = 20;
 
+  /* Max number of fetched batches waiting to be applied */
+  private final int pipelineDepth = 2;
+
+  /* Max number of item states we read or write at a time */
+  private final int stateBatchSize = 200;
+
   /** Constructor
    *
    * @param syncher
@@ -421,6 +439,9 @@ public class Synchling {
     /** both ends changed since last synch */
     public boolean conflict;
 
+    /** From a delta - the update end may not have it yet */
+    public boolean addIfMissing;
+
     /** Constructor
      *
      * @param itemInfo
@@ -441,17 +462,38 @@ public class Synchling {
     }
   }
 
+  /** A batch of items fetched from the source end
+   */
+  private static class FetchedBatch {
+    List<SynchInfo> sis;
+    List<FetchItemResponseType> firs;
+
+    FetchedBatch(final List<SynchInfo> sis,
+                 final List<FetchItemResponseType> firs) {
+      this.sis = sis;
+      this.firs = firs;
+    }
+  }
+
   /** Information and objects needed to process one end of a resynch
    */
-  private static class ResynchInfo {
+  private static class ResynchInfo extends EndStates {
     Subscription sub;
-    SynchEndType end;
     boolean trustLastmod;
     ConnectorInstance inst;
-    Map<String, ItemInfo> items;
+    BaseSubscriptionInfo info;
     CrudCts lastCts;
     CrudCts totalCts;
 
+    /* Changes since the stored delta token - null if we listed everything */
+    SynchItemsDelta delta;
+
+    /* Token to store if the synch completes cleanly */
+    String newToken;
+
+    /* Uids of changes which could not be applied to this end */
+    Set<String> failed = new HashSet<String>();
+
     Map<String, Object> stripMap = new HashMap<String, Object>();
 
     // True if our target is missing.
@@ -461,11 +503,18 @@ public class Synchling {
                 final SynchEndType end,
                 final boolean trustLastmod,
                 final ConnectorInstance inst) throws SynchException {
+      super(end);
+
       this.sub = sub;
-      this.end = end;
       this.trustLastmod = trustLastmod;
       this.inst = inst;
 
+      if (end == SynchEndType.A) {
+        info = new BaseSubscriptionInfo(sub.getEndAConnectorInfo());
+      } else {
+        info = new BaseSubscriptionInfo(sub.getEndBConnectorInfo());
+      }
+
       makeStripMap(stripMap, sub);
 
       lastCts = new CrudCts();
@@ -477,11 +526,42 @@ public class Synchling {
       inst.setLastCrudCts(lastCts);
       inst.setTotalCrudCts(totalCts);
     }
+
+    long changes() {
+      return lastCts.created + lastCts.updated + lastCts.deleted;
+    }
+
+    /* A failed change is picked up again from the old token next time */
+    void saveToken() throws SynchException {
+      if ((newToken != null) && failed.isEmpty()) {
+        info.setDeltaToken(newToken);
+      }
+    }
   }
 
   private StatusType reSynch(final Notification<NotificationItem> note) throws SynchException {
     Subscription sub = note.getSub();
 
+    /* Number of changes we made - left negative if we failed */
+    long changes = -1;
+
+    /* Set if the engine stopped us part way */
+    boolean interrupted = false;
+
+    /* For the cost history */
+    long start = System.currentTimeMillis();
+    long items = 0;
+    long bytes = 0;
+    ResynchInfo ainfo = null;
+    ResynchInfo binfo = null;
+    ConnectorInstance ainst = null;
+    ConnectorInstance binst = null;
+    long aBytesStart = 0;
+    long bBytesStart = 0;
+
+    /* Work was owed or cut short when the engine last stopped */
+    boolean resume = sub.refreshInfo().getResynchPending();
+
     try {
       /* The action here depends on which way we are synching.
        *
@@ -514,72 +594,128 @@ public class Synchling {
        */
 
       boolean bothWays = sub.getDirection() == SynchDirectionType.BOTH_WAYS;
-
-      ResynchInfo ainfo = new ResynchInfo(sub,
-                                          SynchEndType.A,
-                                          sub.getEndAConn().getTrustLastmod(),
-                                          syncher.getConnectorInstance(sub,
-                                                                       SynchEndType.A));
-      ResynchInfo binfo = new ResynchInfo(sub,
-                                          SynchEndType.B,
-                                          sub.getEndBConn().getTrustLastmod(),
-                                          syncher.getConnectorInstance(sub,
-                                                                       SynchEndType.B));
+      boolean readA = (sub.getDirection() == SynchDirectionType.A_TO_B) ||
+                      bothWays;
+      boolean readB = (sub.getDirection() == SynchDirectionType.B_TO_A) ||
+                      bothWays;
+
+      ainfo = new ResynchInfo(sub,
+                              SynchEndType.A,
+                              sub.getEndAConn().getTrustLastmod(),
+                              syncher.getConnectorInstance(sub,
+                                                           SynchEndType.A));
+      binfo = new ResynchInfo(sub,
+                              SynchEndType.B,
+                              sub.getEndBConn().getTrustLastmod(),
+                              syncher.getConnectorInstance(sub,
+                                                           SynchEndType.B));
+
+      ainst = ainfo.inst;
+      binst = binfo.inst;
+      aBytesStart = ainst.getBytesTransferred();
+      bBytesStart = binst.getBytesTransferred();
 
       boolean aChanged = false;
       boolean bChanged = false;
 
-      if ((sub.getDirection() == SynchDirectionType.A_TO_B) || bothWays) {
-        aChanged = ainfo.inst.changed();
-      }
-
-      if ((sub.getDirection() == SynchDirectionType.B_TO_A) || bothWays) {
-        bChanged = binfo.inst.changed();
+      /* If we are resuming the change token may already have been updated
+       * so don't trust it.
+       */
+      if (resume) {
+        aChanged = readA;
+        bChanged = readB;
+      } else {
+        List<Boolean> chgs = bothEnds(sub,
+                                      changedCall(ainfo, readA),
+                                      changedCall(binfo, readB));
+
+        aChanged = Boolean.TRUE.equals(chgs.get(0));
+        bChanged = Boolean.TRUE.equals(chgs.get(1));
       }
 
       if (!aChanged && !bChanged) {
         // Nothing to do. last refresh updated on the way out.
+        changes = 0;
         return StatusType.OK;
       }
 
       sub.setMissingTarget(false);
 
-      ainfo.items = getItemsMap(ainfo);
-      if (ainfo.items == null) {
-        if (ainfo.missingTarget) {
-          sub.setMissingTarget(true);
+      /* updateInfo is a list of changes we need to apply to one or both ends
+       */
+      List<SynchInfo> updateInfo = new ArrayList<SynchInfo>();
+
+      /* What we knew of the items involved after the last synch */
+      Map<String, SynchItemState> states;
+
+      /* If the ends we read from can tell us what changed since the last
+       * synch we need not list everything. The stored tokens only move on
+       * when a synch completes, so a resume picks up from the last complete
+       * one. What was applied since then matches the item states and is
+       * skipped.
+       */
+      boolean delta = (!readA || getDelta(ainfo)) &&
+                      (!readB || getDelta(binfo));
+
+      if (delta) {
+        ainfo.items = getDeltaMap(ainfo);
+        binfo.items = getDeltaMap(binfo);
+
+        items = ainfo.items.size() + binfo.items.size();
+
+        states = getStates(sub, ainfo, binfo, delta);
+
+        if (readA) {
+          getDeltaResynchs(updateInfo, ainfo, binfo, states, bothWays);
         }
-        return StatusType.ERROR;
-      }
 
-      binfo.items = getItemsMap(binfo);
-      if (binfo.items == null) {
-        if (binfo.missingTarget) {
-          sub.setMissingTarget(true);
+        if (readB) {
+          getDeltaResynchs(updateInfo, binfo, ainfo, states, bothWays);
         }
-        return StatusType.ERROR;
-      }
+      } else {
+        List<Map<String, ItemInfo>> lists =
+            bothEnds(sub, listCall(ainfo, readA), listCall(binfo, readB));
 
-      /* updateInfo is a list of changes we need to apply to one or both ends
-       */
-      List<SynchInfo> updateInfo = new ArrayList<SynchInfo>();
+        ainfo.items = lists.get(0);
+        binfo.items = lists.get(1);
 
-      /* First see what we need to transfer from A to B */
-      if ((sub.getDirection() == SynchDirectionType.A_TO_B) || bothWays) {
-        getResynchs(updateInfo, ainfo, binfo);
-      }
+        if ((ainfo.items == null) || (binfo.items == null)) {
+          sub.setErrorCt(sub.getErrorCt() + 1);
 
-      /* Now B to A */
-      if ((sub.getDirection() == SynchDirectionType.B_TO_A) || bothWays) {
-        getResynchs(updateInfo, binfo, ainfo);
-      }
+          if (ainfo.missingTarget || binfo.missingTarget) {
+            sub.setMissingTarget(true);
+          }
+          return StatusType.ERROR;
+        }
 
-      if ((sub.getDirection() == SynchDirectionType.A_TO_B) || bothWays) {
-        checkDeletes(updateInfo, binfo);
-      }
+        items = ainfo.items.size() + binfo.items.size();
+
+        /* Remembered so the engine can tell a large synch from a small one */
+        new BaseSubscriptionInfo(sub.getEndAConnectorInfo()).setItemCount(
+                                                     ainfo.items.size());
+        new BaseSubscriptionInfo(sub.getEndBConnectorInfo()).setItemCount(
+                                                     binfo.items.size());
 
-      if ((sub.getDirection() == SynchDirectionType.B_TO_A) || bothWays) {
-        checkDeletes(updateInfo, ainfo);
+        states = getStates(sub, ainfo, binfo, delta);
+
+        /* First see what we need to transfer from A to B */
+        if ((sub.getDirection() == SynchDirectionType.A_TO_B) || bothWays) {
+          getResynchs(updateInfo, ainfo, binfo, states, bothWays);
+        }
+
+        /* Now B to A */
+        if ((sub.getDirection() == SynchDirectionType.B_TO_A) || bothWays) {
+          getResynchs(updateInfo, binfo, ainfo, states, bothWays);
+        }
+
+        /* Both ways the passes above found the deletions from the states */
+        if (sub.getDirection() == SynchDirectionType.A_TO_B) {
+          checkDeletes(updateInfo, binfo);
+        }
+
+        if (sub.getDirection() == SynchDirectionType.B_TO_A) {
+          checkDeletes(updateInfo, ainfo);
+        }
       }
 
       if (debug) {
@@ -591,33 +727,32 @@ public class Synchling {
       }
 
       if (updateInfo.size() > 0) {
-        Holder<List<SynchInfo>> unprocessedRes = new Holder<List<SynchInfo>>();
-
         /* Now update end A from end B.
          */
         if ((sub.getDirection() == SynchDirectionType.B_TO_A) || bothWays) {
-          while ((updateInfo.size() > 0) &&
-                 processUpdates(note, updateInfo, unprocessedRes,
-                                binfo, ainfo)) {
-            updateInfo = unprocessedRes.value;
-          }
+          processUpdates(note, updateInfo, binfo, ainfo);
 
           ainfo.updateCts();
         }
 
         /* Now update end B from end A.
          */
-        if ((sub.getDirection() == SynchDirectionType.A_TO_B) || bothWays) {
-          while ((updateInfo.size() > 0) &&
-                 processUpdates(note, updateInfo, unprocessedRes,
-                                ainfo, binfo)) {
-            updateInfo = unprocessedRes.value;
-          }
+        if (((sub.getDirection() == SynchDirectionType.A_TO_B) || bothWays) &&
+            !syncher.cancelling()) {
+          processUpdates(note, updateInfo, ainfo, binfo);
 
           binfo.updateCts();
         }
       }
 
+      if (syncher.cancelling()) {
+        /* What we applied stays applied. The rest is found again by the
+         * comparison when we resume.
+         */
+        interrupted = true;
+        return StatusType.WARNING;
+      }
+
       /* -------------------- Deletions ------------------------ */
 
       if (((updateInfo.size() > 0) &&
@@ -630,30 +765,76 @@ public class Synchling {
         processDeletes(note, updateInfo, binfo);
       }
 
+      saveStates(sub, states, ainfo, binfo, delta);
+
       sub.setErrorCt(0);
 
+      changes = ainfo.changes() + binfo.changes();
+
       return StatusType.OK;
     } catch (SynchException se) {
       throw se;
     } catch (Throwable t) {
       throw new SynchException(t);
     } finally {
-      sub.updateLastRefresh();
-      syncher.updateSubscription(sub);
-      syncher.reschedule(sub);
+      if (interrupted) {
+        /* Leave the last refresh alone and make it due now */
+        sub.refreshInfo().setResynchPending(true);
+
+        if (sub.polling()) {
+          sub.setNextRefreshTime(System.currentTimeMillis());
+        }
+
+        syncher.updateSubscription(sub);
+      } else {
+        if (changes >= 0) {
+          // Completed - nothing is owed now
+          if (resume) {
+            sub.refreshInfo().setResynchPending(false);
+          }
+
+          syncher.adaptRefreshDelay(sub, changes);
+
+          ainfo.saveToken();
+          binfo.saveToken();
+        }
+
+        if (ainst != null) {
+          bytes = (ainst.getBytesTransferred() - aBytesStart) +
+                  (binst.getBytesTransferred() - bBytesStart);
+
+          syncher.recordCost(sub, items,
+                             System.currentTimeMillis() - start, bytes);
+        }
+
+        sub.updateLastRefresh();
+
+        if (sub.polling()) {
+          sub.updateNextRefresh();
+        }
+
+        syncher.updateSubscription(sub);
+        syncher.reschedule(sub);
+      }
     }
   }
 
   private void getResynchs(final List<SynchInfo> updateInfo,
                            final ResynchInfo fromInfo,
-                           final ResynchInfo toInfo) throws SynchException {
+                           final ResynchInfo toInfo,
+                           final Map<String, SynchItemState> states,
+                           final boolean bothWays) throws SynchException {
     boolean useLastmods = fromInfo.trustLastmod && toInfo.trustLastmod;
 
     for (ItemInfo fromIi: fromInfo.items.values()) {
       ItemInfo toIi = toInfo.items.get(fromIi.uid);
+      boolean synched = states.containsKey(fromIi.uid);
 
       if (toIi == null) {
-        /* It's not in the to list - add to list to fetch from the from end */
+        /* It's not in the to list - add to list to fetch from the from end.
+         * Deletions are not propagated so if we synched it before it is
+         * put back.
+         */
         if (debug) {
           trace("Need to add to end " + toInfo.end + ": uid:" + fromIi.uid);
         }
@@ -669,16 +850,36 @@ public class Synchling {
        */
       toIi.seen = true;
 
-      boolean update = true;
+      boolean conflict = false;
 
-      if (useLastmods) {
-        update = cmpLastMods(toIi.lastMod, fromIi.lastMod) < 0;
-      }
+      if (synched) {
+        if (!EndStates.changedSince(fromIi)) {
+          if (debug) {
+            trace("No need to update end " + toInfo.end + ": uid:" + fromIi.uid);
+          }
+
+          continue;
+        }
+
+        if (EndStates.changedSince(toIi)) {
+          conflict = true;
 
-      if (!update) {
+          if (bothWays && !wins(fromInfo, toInfo, fromIi, toIi)) {
+            if (debug) {
+              trace("Conflict - keeping end " + toInfo.end +
+                    ": uid:" + fromIi.uid);
+            }
+
+            continue;
+          }
+        }
+      } else if (useLastmods &&
+                 (cmpLastMods(toIi.lastMod, fromIi.lastMod) >= 0)) {
         if (debug) {
           trace("No need to update end " + toInfo.end + ": uid:" + fromIi.uid);
         }
+
+        continue;
       }
 
       if (debug) {
@@ -688,10 +889,53 @@ public class Synchling {
       SynchInfo si = new SynchInfo(fromIi);
 
       si.updateEnd = toInfo.end;
+      si.conflict = conflict;
       updateInfo.add(si);
     }
   }
 
+  /* Changed at both ends. The master end wins, then the later lastmod if we
+   * can trust them. Otherwise end A wins so we at least agree with ourselves.
+   */
+  private boolean wins(final ResynchInfo fromInfo,
+                       final ResynchInfo toInfo,
+                       final ItemInfo fromIi,
+                       final ItemInfo toIi) throws SynchException {
+    /* No recorded lastmod means we wrote the item there last time and could
+     * not tell what it looked like after, so that "change" is most likely
+     * our own write.
+     */
+    if ((toIi.lastSynch == null) && (fromIi.lastSynch != null)) {
+      return true;
+    }
+
+    if ((fromIi.lastSynch == null) && (toIi.lastSynch != null)) {
+      return false;
+    }
+
+    if (fromInfo.sub.getMaster() != null) {
+      String master = fromInfo.sub.getMaster().name();
+
+      if (master.equals(fromInfo.end.name())) {
+        return true;
+      }
+
+      if (master.equals(toInfo.end.name())) {
+        return false;
+      }
+    }
+
+    if (fromInfo.trustLastmod && toInfo.trustLastmod) {
+      int res = cmpLastMods(toIi.lastMod, fromIi.lastMod);
+
+      if (res != 0) {
+        return res < 0;
+      }
+    }
+
+    return fromInfo.end == SynchEndType.A;
+  }
+
   private void checkDeletes(final List<SynchInfo> updateInfo,
                             final ResynchInfo toInfo) throws SynchException {
     for (ItemInfo ii: toInfo.items.values()) {
@@ -711,6 +955,401 @@ public class Synchling {
     }
   }
 
+  /* Updates are all tentative adds - an item created at one end may be our
+   * own earlier add coming back, and the update end has not been listed.
+   *
+   * Deletions are not propagated. Both ways an item we synched before is
+   * put back from the other end, as a full synch would.
+   */
+  private void getDeltaResynchs(final List<SynchInfo> updateInfo,
+                                final ResynchInfo fromInfo,
+                                final ResynchInfo toInfo,
+                                final Map<String, SynchItemState> states,
+                                final boolean bothWays) throws SynchException {
+    boolean useLastmods = fromInfo.trustLastmod && toInfo.trustLastmod;
+
+    for (ItemInfo fromIi: fromInfo.items.values()) {
+      ItemInfo toIi = toInfo.items.get(fromIi.uid);
+
+      if (states.containsKey(fromIi.uid) && !EndStates.changedSince(fromIi)) {
+        // Nothing new since we synched it
+        continue;
+      }
+
+      if (useLastmods && (toIi != null) &&
+          (cmpLastMods(toIi.lastMod, fromIi.lastMod) >= 0)) {
+        /* Changed at both ends - the other one wins */
+        if (debug) {
+          trace("No need to update end " + toInfo.end + ": uid:" + fromIi.uid);
+        }
+
+        continue;
+      }
+
+      if (debug) {
+        trace("Need to update end " + toInfo.end + ": uid:" + fromIi.uid);
+      }
+
+      SynchInfo si = new SynchInfo(fromIi);
+
+      si.updateEnd = toInfo.end;
+      si.addIfMissing = true;
+      updateInfo.add(si);
+    }
+
+    if (fromInfo.delta.deleted == null) {
+      return;
+    }
+
+    for (String uid: fromInfo.delta.deleted) {
+      if (!states.containsKey(uid)) {
+        // Never got to the other end
+        continue;
+      }
+
+      SynchInfo si = new SynchInfo(new ItemInfo(uid, null, null));
+
+      if (!bothWays) {
+        si.deleteFrom = toInfo.end;
+        updateInfo.add(si);
+        continue;
+      }
+
+      if (toInfo.items.containsKey(uid) || deleted(toInfo, uid)) {
+        // Changed or gone at the other end as well
+        continue;
+      }
+
+      if (debug) {
+        trace("Need to add back to end " + fromInfo.end + ": uid:" + uid);
+      }
+
+      si.addTo = fromInfo.end;
+      updateInfo.add(si);
+    }
+  }
+
+  /**
+   * @param rinfo
+   * @return true if we have the changes since the stored token
+   * @throws SynchException
+   */
+  private boolean getDelta(final ResynchInfo rinfo) throws SynchException {
+    String token = rinfo.info.getDeltaToken();
+
+    if (token == null) {
+      return false;
+    }
+
+    SynchItemsDelta sid = rinfo.inst.getItemsDelta(token);
+
+    if ((sid == null) || (sid.getStatus() != StatusType.OK) ||
+        (sid.token == null)) {
+      if (debug) {
+        trace("No delta for end " + rinfo.end + " - listing all items");
+      }
+
+      /* Don't try it again till we have a new one */
+      rinfo.info.setDeltaToken(null);
+      return false;
+    }
+
+    rinfo.delta = sid;
+    rinfo.newToken = sid.token;
+
+    return true;
+  }
+
+  private void startToken(final ResynchInfo rinfo) throws SynchException {
+    if (rinfo.newToken != null) {
+      // Got one with the delta
+      return;
+    }
+
+    SynchItemsDelta sid = rinfo.inst.getItemsDelta(null);
+
+    if ((sid != null) && (sid.getStatus() == StatusType.OK)) {
+      rinfo.newToken = sid.token;
+    }
+  }
+
+  private Map<String, ItemInfo> getDeltaMap(final ResynchInfo rinfo) {
+    Map<String, ItemInfo> items = new HashMap<String, ItemInfo>();
+
+    if (rinfo.delta == null) {
+      // Not an end we read from
+      return items;
+    }
+
+    if (rinfo.delta.created != null) {
+      for (ItemInfo ii: rinfo.delta.created) {
+        items.put(ii.uid, ii);
+      }
+    }
+
+    if (rinfo.delta.modified != null) {
+      for (ItemInfo ii: rinfo.delta.modified) {
+        items.put(ii.uid, ii);
+      }
+    }
+
+    return items;
+  }
+
+  /** Fetch the states of the items we are dealing with and set the lastmods
+   * they record for each end into the items.
+   *
+   * @param sub
+   * @param ainfo
+   * @param binfo
+   * @param delta - true if the items are only the changes
+   * @return states by uid
+   * @throws SynchException
+   */
+  private Map<String, SynchItemState> getStates(final Subscription sub,
+                                                final ResynchInfo ainfo,
+                                                final ResynchInfo binfo,
+                                                final boolean delta) throws SynchException {
+    Map<String, SynchItemState> states = new HashMap<String, SynchItemState>();
+
+    if (!delta) {
+      // We listed everything anyway
+      for (SynchItemState st: syncher.getItemStates(sub)) {
+        states.put(st.getUid(), st);
+      }
+    } else {
+      Set<String> uids = new HashSet<String>(ainfo.items.keySet());
+      uids.addAll(binfo.items.keySet());
+
+      if ((ainfo.delta != null) && (ainfo.delta.deleted != null)) {
+        uids.addAll(ainfo.delta.deleted);
+      }
+
+      if ((binfo.delta != null) && (binfo.delta.deleted != null)) {
+        uids.addAll(binfo.delta.deleted);
+      }
+
+      List<String> batch = new ArrayList<String>();
+
+      for (String uid: uids) {
+        batch.add(uid);
+
+        if (batch.size() == stateBatchSize) {
+          addStates(states, sub, batch);
+          batch.clear();
+        }
+      }
+
+      if (batch.size() > 0) {
+        addStates(states, sub, batch);
+      }
+    }
+
+    for (SynchItemState st: states.values()) {
+      ainfo.load(st);
+      binfo.load(st);
+    }
+
+    return states;
+  }
+
+  private void addStates(final Map<String, SynchItemState> states,
+                         final Subscription sub,
+                         final Collection<String> uids) throws SynchException {
+    for (SynchItemState st: syncher.getItemStates(sub, uids)) {
+      states.put(st.getUid(), st);
+    }
+  }
+
+  /** Record what the items we dealt with look like now. Items with a failed
+   * change keep their old state so they are tried again.
+   *
+   * @param sub
+   * @param states - from getStates
+   * @param ainfo
+   * @param binfo
+   * @param delta - true if the items are only the changes
+   * @throws SynchException
+   */
+  private void saveStates(final Subscription sub,
+                          final Map<String, SynchItemState> states,
+                          final ResynchInfo ainfo,
+                          final ResynchInfo binfo,
+                          final boolean delta) throws SynchException {
+    long now = System.currentTimeMillis();
+
+    List<SynchItemState> adds = new ArrayList<SynchItemState>();
+    List<SynchItemState> updates = new ArrayList<SynchItemState>();
+    List<SynchItemState> deletes = new ArrayList<SynchItemState>();
+
+    /* Items we listed and items we fetched or wrote */
+    Set<String> uids = new HashSet<String>(ainfo.items.keySet());
+    uids.addAll(binfo.items.keySet());
+    uids.addAll(ainfo.etags.keySet());
+    uids.addAll(binfo.etags.keySet());
+
+    for (String uid: uids) {
+      SynchItemState st = states.remove(uid);
+
+      if (ainfo.failed.contains(uid) || binfo.failed.contains(uid)) {
+        continue;
+      }
+
+      boolean added = st == null;
+
+      if (added) {
+        st = new SynchItemState(sub.getSubscriptionId(), uid);
+      }
+
+      boolean aChanged = ainfo.record(st, uid, delta);
+      boolean bChanged = binfo.record(st, uid, delta);
+
+      if (!added && !aChanged && !bChanged) {
+        continue;
+      }
+
+      st.setLastSynch(now);
+
+      if (added) {
+        adds.add(st);
+      } else {
+        updates.add(st);
+      }
+
+      if ((adds.size() + updates.size()) == stateBatchSize) {
+        syncher.updateItemStates(adds, updates, deletes);
+        adds.clear();
+        updates.clear();
+      }
+    }
+
+    /* With a full listing what's left has gone from both ends. With a delta
+     * what's left is the items deleted which we did not put back.
+     */
+    for (SynchItemState st: states.values()) {
+      String uid = st.getUid();
+
+      if (delta && !deleted(ainfo, uid) && !deleted(binfo, uid)) {
+        continue;
+      }
+
+      if (ainfo.failed.contains(uid) || binfo.failed.contains(uid)) {
+        // We failed to put it back - try again next time
+        continue;
+      }
+
+      deletes.add(st);
+
+      if ((adds.size() + updates.size() + deletes.size()) == stateBatchSize) {
+        syncher.updateItemStates(adds, updates, deletes);
+        adds.clear();
+        updates.clear();
+        deletes.clear();
+      }
+    }
+
+    if ((adds.size() + updates.size() + deletes.size()) > 0) {
+      syncher.updateItemStates(adds, updates, deletes);
+    }
+  }
+
+  /* True if the delta for the end says the item was deleted */
+  private boolean deleted(final ResynchInfo rinfo,
+                          final String uid) {
+    return (rinfo.delta != null) && (rinfo.delta.deleted != null) &&
+           rinfo.delta.deleted.contains(uid);
+  }
+
+  /* Make the calls for the two ends, at the same time if the engine lets us.
+   * Either call may be null. Results are in end order - null for no call.
+   */
+  private <T> List<T> bothEnds(final Subscription sub,
+                               final Callable<T> aCall,
+                               final Callable<T> bCall) throws SynchException {
+    Future<T> af = null;
+
+    if ((aCall != null) && (bCall != null)) {
+      af = syncher.runConcurrently(sub, aCall);
+    }
+
+    boolean done = false;
+
+    try {
+      T a = null;
+      T b = null;
+
+      if ((aCall != null) && (af == null)) {
+        a = aCall.call();
+      }
+
+      if (bCall != null) {
+        b = bCall.call();
+      }
+
+      if (af != null) {
+        a = af.get();
+      }
+
+      done = true;
+
+      List<T> res = new ArrayList<T>(2);
+
+      res.add(a);
+      res.add(b);
+
+      return res;
+    } catch (SynchException se) {
+      throw se;
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof SynchException) {
+        throw (SynchException)ee.getCause();
+      }
+
+      throw new SynchException(ee.getCause());
+    } catch (Throwable t) {
+      throw new SynchException(t);
+    } finally {
+      if (!done && (af != null)) {
+        /* Don't leave it working on a synch we have given up on */
+        try {
+          af.get();
+        } catch (Throwable ignored) {
+        }
+      }
+    }
+  }
+
+  private Callable<Boolean> changedCall(final ResynchInfo rinfo,
+                                        final boolean read) {
+    if (!read) {
+      return null;
+    }
+
+    return new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return rinfo.inst.changed();
+      }
+    };
+  }
+
+  /* Takes the token before listing so nothing changed during the listing
+   * gets lost.
+   */
+  private Callable<Map<String, ItemInfo>> listCall(final ResynchInfo rinfo,
+                                                   final boolean read) {
+    return new Callable<Map<String, ItemInfo>>() {
+      @Override
+      public Map<String, ItemInfo> call() throws Exception {
+        if (read) {
+          startToken(rinfo);
+        }
+
+        return getItemsMap(rinfo);
+      }
+    };
+  }
+
   /**
    * @param rinfo
    * @return map or null for error
@@ -731,7 +1370,6 @@ public class Synchling {
           rinfo.missingTarget = true;
         }
       }
-      rinfo.sub.setErrorCt(rinfo.sub.getErrorCt() + 1);
       return null;
     }
 
@@ -747,87 +1385,135 @@ public class Synchling {
   }
 
   /** Do the adds and updates for the end specified by toInfo.
+   *
+   * <p>Items are fetched from the other end in batches. If the engine lets
+   * us, the next batches are fetched on another thread while we apply the
+   * current one - see {@link FetchPipeline}. Only this thread touches the
+   * counts and the per item state.
    *
    * @param note
    * @param updateInfo
-   * @param unprocessedRes
    * @param fromInfo
    * @param toInfo
-   * @return true if there are unprocessed entries for this end
    * @throws SynchException
    */
-  private boolean processUpdates(final Notification<NotificationItem> note,
-                                 final List<SynchInfo> updateInfo,
-                                 final Holder<List<SynchInfo>> unprocessedRes,
-                                 final ResynchInfo fromInfo,
-                                 final ResynchInfo toInfo) throws SynchException {
-    boolean callAgain = false;
-    List<SynchInfo> unProcessed = new ArrayList<SynchInfo>();
-    unprocessedRes.value = unProcessed;
+  private void processUpdates(final Notification<NotificationItem> note,
+                              final List<SynchInfo> updateInfo,
+                              final ResynchInfo fromInfo,
+                              final ResynchInfo toInfo) throws SynchException {
+    List<List<SynchInfo>> batches = new ArrayList<List<SynchInfo>>();
+    List<SynchInfo> batch = null;
 
-    List<String> uids = new ArrayList<String>();
-    List<SynchInfo> sis = new ArrayList<SynchInfo>();
+    for (SynchInfo si: updateInfo) {
+      // Skip if it's not one of ours
+      if ((si.addTo != toInfo.end) && (si.updateEnd != toInfo.end)) {
+        continue;
+      }
 
-    int i = 0;
-    /* First make a batch of items to fetch */
+      if ((batch == null) || (batch.size() == getItemsBatchSize)) {
+        batch = new ArrayList<SynchInfo>();
+        batches.add(batch);
+      }
 
-    while (i < updateInfo.size()) {
-      SynchInfo si = updateInfo.get(i);
-      i++;
+      batch.add(si);
+    }
 
-      // Add to unprocessed if it's not one of ours
-      if ((si.addTo != toInfo.end) && (si.updateEnd != toInfo.end)) {
-        unProcessed.add(si);
-        continue;
+    if (batches.isEmpty()) {
+      // Nothing to do
+      return;
+    }
+
+    new FetchPipeline<List<SynchInfo>, FetchedBatch>(pipelineDepth) {
+      @Override
+      FetchedBatch fetch(final List<SynchInfo> sis) throws SynchException {
+        return Synchling.this.fetch(sis, fromInfo);
       }
 
-      // Add to unprocessed if the batch is big enough
-      if (uids.size() == getItemsBatchSize) {
-        unProcessed.add(si);
-        callAgain = true;
-        continue;
+      @Override
+      void apply(final FetchedBatch fb) throws SynchException {
+        applyBatch(note, fb, fromInfo, toInfo);
+      }
+
+      @Override
+      Future<Object> start(final Callable<Object> call) {
+        return syncher.runConcurrently(fromInfo.sub, call);
       }
 
+      @Override
+      boolean cancelled() {
+        return syncher.cancelling();
+      }
+    }.run(batches);
+  }
+
+  private FetchedBatch fetch(final List<SynchInfo> sis,
+                             final ResynchInfo fromInfo) throws SynchException {
+    List<String> uids = new ArrayList<String>();
+
+    for (SynchInfo si: sis) {
       uids.add(si.itemInfo.uid);
-      sis.add(si);
     }
 
-    if (uids.size() == 0) {
-      // Nothing left to do
-      return false;
-    }
+    return new FetchedBatch(sis, fromInfo.inst.fetchItems(uids));
+  }
 
-    List<FetchItemResponseType> firs = fromInfo.inst.fetchItems(uids);
+  private void applyBatch(final Notification<NotificationItem> note,
+                          final FetchedBatch fb,
+                          final ResynchInfo fromInfo,
+                          final ResynchInfo toInfo) throws SynchException {
+    List<SynchInfo> sis = fb.sis;
+    List<FetchItemResponseType> firs = fb.firs;
 
     Iterator<SynchInfo> siit = sis.iterator();
     for (FetchItemResponseType fir: firs) {
       SynchInfo si = siit.next();
 
-      if (si.addTo == toInfo.end) {
-        IcalendarType stripped = stripIcal(toInfo.stripMap, fir.getIcalendar());
-        AddItemResponseType air = toInfo.inst.addItem(stripped);
-
-        toInfo.lastCts.created++;
-        toInfo.totalCts.created++;
+      if (fir.getStatus() != StatusType.OK) {
+        warn("Unable to fetch source entity: message was " +
+             fir.getMessage());
+        toInfo.failed.add(si.itemInfo.uid);
+        continue;
+      }
 
-        if (debug) {
-          trace("Add: status=" + air.getStatus() +
-                " msg=" + air.getMessage());
-        }
+      String fp = getFingerprinter(note).fingerprint(fir.getIcalendar());
+      fromInfo.fetched(si.itemInfo.uid, fir.getChangeToken(), fp);
 
+      if (si.addTo == toInfo.end) {
+        addItem(si.itemInfo.uid, fir, fp, toInfo);
         continue;
       }
 
       if (si.updateEnd == toInfo.end) {
+        if (fp.equals(toInfo.lastFingerprints.get(si.itemInfo.uid)) &&
+            !toInfo.changedAt(si.itemInfo.uid)) {
+          /* Same content as we left at the other end and nobody touched it
+           * since - typically a feed which changes lastmod on every export.
+           */
+          if (debug) {
+            trace("Same fingerprint - no update needed for " + si.itemInfo.uid);
+          }
+
+          continue;
+        }
+
         // Update the instance
         FetchItemResponseType toFir = toInfo.inst.fetchItem(si.itemInfo.uid);
 
+        if (si.addIfMissing &&
+            (toFir.getStatus() == StatusType.NOT_FOUND)) {
+          addItem(si.itemInfo.uid, fir, fp, toInfo);
+          continue;
+        }
+
         if (toFir.getStatus() != StatusType.OK) {
           warn("Unable to fetch destination entity for update: message was " +
                toFir.getMessage());
+          toInfo.failed.add(si.itemInfo.uid);
           continue;
         }
 
+        toInfo.etags.put(si.itemInfo.uid, toFir.getChangeToken());
+
         ComponentSelectionType cst = getDiffer(note).diff(fir.getIcalendar(),
                                                           toFir.getIcalendar());
 
@@ -836,6 +1522,7 @@ public class Synchling {
             trace("No update needed for " + si.itemInfo.uid);
           }
 
+          toInfo.fingerprints.put(si.itemInfo.uid, fp);
           continue;
         }
 
@@ -853,9 +1540,12 @@ public class Synchling {
 
         if (uir.getStatus() != StatusType.OK) {
           warn("Unable to update destination entity");
+          toInfo.failed.add(si.itemInfo.uid);
           continue;
         }
 
+        recordWrite(toInfo, si.itemInfo.uid, fp);
+
         toInfo.lastCts.updated++;
         toInfo.totalCts.updated++;
 
@@ -864,8 +1554,68 @@ public class Synchling {
 
       warn("Should not get here");
     }
+  }
+
+  private void addItem(final String uid,
+                       final FetchItemResponseType fir,
+                       final String fp,
+                       final ResynchInfo toInfo) throws SynchException {
+    IcalendarType stripped = stripIcal(toInfo.stripMap, fir.getIcalendar());
+    AddItemResponseType air = toInfo.inst.addItem(stripped);
+
+    if (air.getStatus() != StatusType.OK) {
+      toInfo.failed.add(uid);
+    } else {
+      recordWrite(toInfo, uid, fp);
+
+      toInfo.lastCts.created++;
+      toInfo.totalCts.created++;
+    }
+
+    if (debug) {
+      trace("Add: status=" + air.getStatus() +
+            " msg=" + air.getMessage());
+    }
+  }
+
+  /* Fetch what we left at the end so the next synch knows the item as we
+   * wrote it there. The connectors list the LAST-MODIFIED of an item as its
+   * lastmod.
+   */
+  private void recordWrite(final ResynchInfo toInfo,
+                           final String uid,
+                           final String fp) throws SynchException {
+    FetchItemResponseType fir = toInfo.inst.fetchItem(uid);
+
+    if (fir.getStatus() != StatusType.OK) {
+      // Taken as changed there next time
+      toInfo.wrote(uid, null, null, fp);
+      return;
+    }
+
+    toInfo.wrote(uid, getLastmod(fir.getIcalendar()), fir.getChangeToken(), fp);
+  }
+
+  private static String getLastmod(final IcalendarType ical) {
+    if ((ical == null) || ical.getVcalendar().isEmpty()) {
+      return null;
+    }
+
+    ArrayOfComponents comps = ical.getVcalendar().get(0).getComponents();
+
+    if ((comps == null) || comps.getBaseComponent().isEmpty()) {
+      return null;
+    }
+
+    LastModifiedPropType lm = (LastModifiedPropType)XcalUtil.findProperty(
+                  comps.getBaseComponent().get(0).getValue(),
+                  XcalTags.lastModified);
+
+    if ((lm == null) || (lm.getUtcDateTime() == null)) {
+      return null;
+    }
 
-    return callAgain;
+    return lm.getUtcDateTime().toXMLFormat();
   }
 
   /* Remove all the properties or components we are not sending to the "to" end.
@@ -992,7 +1742,11 @@ public class Synchling {
     return props;
   }
 
-  /**
+  /** Connector instances have no delete operation so deletions are not
+   * applied. Items marked for deletion one way are left at the target and
+   * both ways a deleted item is put back from the other end. Adding a delete
+   * needs the operation in every connector first.
+   *
    * @param note
    * @param updateInfo
    * @param toInfo
@@ -1072,9 +1826,16 @@ public class Synchling {
 
     diffSubid = sub.getSubscriptionId();
     diff = new XmlIcalCompare(skipList, SynchEngine.getTzGetter());
+    fingerprinter = new Fingerprinter(skipMap);
     return diff;
   }
 
+  private Fingerprinter getFingerprinter(final Notification<NotificationItem> note) throws SynchException {
+    getDiffer(note);
+
+    return fingerprinter;
+  }
+
   /** This adds the properties we are going to strip out of an event we add to
    * either end. This depends upon the global subscription properties. These are
    * also properties we ignore when comparing entries.
@@ -25,13 +25,27 @@ import org.bedework.synch.exception.SynchTimeout;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** manage a pool of synchlings.
+ *
+ * <p>Idle synchlings are held in a lock free queue. A semaphore counts
+ * them so callers can wait with a timeout. Counts are striped across threads
+ * and the wait for a synchling is recorded in a histogram.
+ *
+ * <p>The pool is elastic. When a caller has waited a while for a synchling
+ * we add one, up to the max size. A reaper looks at the smallest number of
+ * idle synchlings over each idle timeout period. Those were never needed, so
+ * that many are discarded, down to the configured size. Nothing is discarded
+ * while callers are waiting.
  *
  * @author Mike Douglass
  *
@@ -41,17 +55,72 @@ public class SynchlingPool {
 
   private SynchEngine syncher;
 
-  private ArrayBlockingQueue<Synchling> pool;
+  private final ConcurrentLinkedQueue<Synchling> idle =
+      new ConcurrentLinkedQueue<Synchling>();
+
+  /* One permit for each idle synchling */
+  private final Semaphore available = new Semaphore(0);
+
+  private final Map<Long, Synchling> active =
+      new ConcurrentHashMap<Long, Synchling>();
+
+  /* Target size */
+  private volatile int size;
+
+  /* We grow to this */
+  private volatile int maxSize;
+
+  /* Millisecs before spare synchlings are discarded */
+  private volatile long idleTimeout;
+
+  /* Millisecs wait before we consider growing */
+  private static final long growWait = 100;
+
+  /* Smallest number idle since the reaper last ran */
+  private final AtomicInteger minIdle = new AtomicInteger();
+
+  /* Callers in get */
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  private Timer reaper;
 
-  private Map<Long, Synchling> active = new HashMap<Long, Synchling>();
+  /* Number in existence - idle or active */
+  private final AtomicInteger created = new AtomicInteger();
 
-  private long timeout; // millisecs
+  /* Active synchlings to discard when returned after a resize */
+  private final AtomicInteger surplus = new AtomicInteger();
 
-  private long waitTimes;
+  private volatile long timeout; // millisecs
 
-  private long gets;
+  /* Set while stop waits for active synchlings to come back */
+  private volatile boolean stopping;
 
-  private long getSynchlingFailures;
+  private final StripedCounter waitTimes = new StripedCounter();
+
+  private final StripedCounter gets = new StripedCounter();
+
+  private final StripedCounter getSynchlingFailures = new StripedCounter();
+
+  private final LatencyHistogram waitHistogram =
+      new LatencyHistogram("synchling wait");
+
+  private final StatLong grownCt = new StatLong("synchling pool grown");
+
+  private final StatLong shrunkCt = new StatLong("synchling pool shrunk");
+
+  /** Discard synchlings we didn't need.
+   *
+   */
+  private class ReaperTask extends TimerTask {
+    @Override
+    public void run() {
+      try {
+        shrink();
+      } catch (Throwable t) {
+        warn("Synchling pool reaper: " + t.getMessage());
+      }
+    }
+  }
 
   /** Create a pool with the given size
    *
@@ -68,9 +137,36 @@ public class SynchlingPool {
     resize(size);
   }
 
+  /** Allow the pool to grow when busy.
+   *
+   * @param maxSize - no larger than the size for a fixed size pool
+   * @param idleTimeout - millisecs before spare synchlings are discarded
+   */
+  public void setElastic(final int maxSize,
+                         final long idleTimeout) {
+    this.maxSize = maxSize;
+    this.idleTimeout = idleTimeout;
+
+    if ((maxSize <= size) || (idleTimeout <= 0)) {
+      return;
+    }
+
+    minIdle.set(getCurrentAvailable());
+
+    reaper = new Timer("SynchlingPoolReaper", true);
+    reaper.schedule(new ReaperTask(), idleTimeout, idleTimeout);
+  }
+
   /** Shut down active synchlings
    */
   public void stop() {
+    if (reaper != null) {
+      reaper.cancel();
+      reaper = null;
+    }
+
+    stopping = true;
+
     long maxWait = 1000 * 90; // 90 seconds - needs to be longer than longest poll interval
     long startTime = System.currentTimeMillis();
     long delay = 1000 * 5; // 5 sec delay
@@ -91,32 +187,36 @@ public class SynchlingPool {
       info("**************************************************");
 
       try {
-        wait(delay);
+        synchronized (this) {
+          wait(delay);
+        }
       } catch (InterruptedException ie) {
         maxWait = 0; // Force exit
       }
     }
   }
 
-  /** Resize the pool
+  /** Resize the pool. When shrinking, idle synchlings are discarded now and
+   * active ones as they are returned.
    *
    * @param size
    * @throws SynchException
    */
-  public void resize(final int size) throws SynchException {
-    ArrayBlockingQueue<Synchling> oldPool = getPool();
-    pool = new ArrayBlockingQueue<Synchling>(size);
-    int oldSize = 0;
-
-    if (oldPool != null) {
-      oldSize = oldPool.size();
-      pool.drainTo(oldPool, Math.max(size, oldSize));
+  public synchronized void resize(final int size) throws SynchException {
+    this.size = size;
+
+    while (created.get() < size) {
+      created.incrementAndGet();
+      idle.add(new Synchling(syncher));
+      available.release();
     }
 
-    while (size > oldSize) {
-      pool.add(new Synchling(syncher));
-      oldSize++;
+    while ((created.get() > size) && available.tryAcquire()) {
+      idle.poll();
+      created.decrementAndGet();
     }
+
+    surplus.set(Math.max(0, created.get() - size));
   }
 
   /**
@@ -144,33 +244,42 @@ public class SynchlingPool {
    * @return total waitTimes in millisecs
    */
   public long getWaitTimes() {
-    return waitTimes;
+    return waitTimes.sum();
   }
 
   /**
    * @return number of gets
    */
   public long getGets() {
-    return gets;
+    return gets.sum();
   }
 
   /**
    * @return number of get failures
    */
   public long getGetSynchlingFailures() {
-    return getSynchlingFailures;
+    return getSynchlingFailures.sum();
   }
 
   /**
    * @return current size of pool
    */
   public int getCurrentMaxSize() {
-    ArrayBlockingQueue<Synchling> thePool = pool;
-    if (thePool == null) {
-      return 0;
-    }
+    return size;
+  }
 
-    return thePool.size();
+  /**
+   * @return number of synchlings idle or active
+   */
+  public int getCurrentSize() {
+    return created.get();
+  }
+
+  /**
+   * @return size we grow to
+   */
+  public int getMaxSize() {
+    return Math.max(size, maxSize);
   }
 
   /** Return approximate number of available synchlings
@@ -178,24 +287,47 @@ public class SynchlingPool {
    * @return current avail
    */
   public int getCurrentAvailable() {
-    ArrayBlockingQueue<Synchling> thePool = pool;
-    if (thePool == null) {
-      return 0;
-    }
-
-    return thePool.remainingCapacity();
+    return available.availablePermits();
   }
 
-  /** Put a synchling back in the pool if there's room else discard it
+  /** Put a synchling back in the pool unless a resize left us above the
+   * target size, in which case discard it. Synchlings added by growth are
+   * kept until the reaper finds them idle.
    *
    * @param s
    * @throws SynchException
    */
   public void add(final Synchling s) throws SynchException {
-    synchronized (active) {
-      active.remove(s.getSynchlingId());
+    active.remove(s.getSynchlingId());
+
+    if (stopping) {
+      // Wake up stop()
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+
+    while (true) {
+      int sp = surplus.get();
+
+      if (sp <= 0) {
+        break;
+      }
+
+      if (created.get() <= size) {
+        surplus.compareAndSet(sp, 0);
+        continue;
+      }
+
+      if (surplus.compareAndSet(sp, sp - 1)) {
+        // Pool shrank - discard it
+        created.decrementAndGet();
+        return;
+      }
     }
-    getPool().offer(s);
+
+    idle.add(s);
+    available.release();
   }
 
   /** Get a synchling from the pool if possible
@@ -218,36 +350,51 @@ public class SynchlingPool {
 
   private Synchling get(final boolean throwOnFailure) throws SynchException {
     Synchling s = null;
-    gets++;
+    gets.inc();
     long st = System.currentTimeMillis();
 
+    waiters.incrementAndGet();
     try {
-      s = getPool().poll(getTimeout(), TimeUnit.MILLISECONDS);
+      long firstWait = Math.min(growWait, getTimeout());
+
+      if (available.tryAcquire(firstWait, TimeUnit.MILLISECONDS)) {
+        s = idle.poll();
+      } else {
+        s = grow();
+
+        if ((s == null) &&
+            available.tryAcquire(getTimeout() - firstWait,
+                                 TimeUnit.MILLISECONDS)) {
+          s = idle.poll();
+        }
+      }
+    } catch (SynchException se) {
+      throw se;
     } catch (Throwable t) {
       throw new SynchException(t);
+    } finally {
+      waiters.decrementAndGet();
     }
 
-    waitTimes += System.currentTimeMillis() - st;
+    updateMinIdle();
+
+    long wait = System.currentTimeMillis() - st;
+    waitTimes.add(wait);
+    waitHistogram.record(wait);
 
     if (s == null) {
-      getSynchlingFailures++;
+      getSynchlingFailures.inc();
 
       if (throwOnFailure) {
         throw new SynchTimeout("Synchling pool wait");
       }
     } else {
-      synchronized (active) {
-        active.put(s.getSynchlingId(), s);
-      }
+      active.put(s.getSynchlingId(), s);
     }
 
     return s;
   }
 
-  private synchronized ArrayBlockingQueue<Synchling> getPool() {
-    return pool;
-  }
-
   /** Get the current stats
    *
    * @return List of Stat
@@ -262,6 +409,12 @@ public class SynchlingPool {
     stats.add(new Stat("synchling get failures", getGetSynchlingFailures()));
     stats.add(new Stat("synchling currentMaxSize", getCurrentMaxSize()));
     stats.add(new Stat("synchling currentAvailable", getCurrentAvailable()));
+    stats.add(new Stat("synchling currentSize", getCurrentSize()));
+    stats.add(new Stat("synchling maxSize", getMaxSize()));
+    stats.add(new Stat("synchling waiters", waiters.get()));
+    stats.add(grownCt);
+    stats.add(shrunkCt);
+    stats.addAll(waitHistogram.getStats());
 
     return stats;
   }
@@ -297,6 +450,59 @@ public class SynchlingPool {
    *                        private methods
    * ==================================================================== */
 
+  /* Create a synchling if we're below the max. Called by a caller which has
+   * waited so we're short of synchlings.
+   */
+  private Synchling grow() throws SynchException {
+    while (true) {
+      int ct = created.get();
+
+      if (ct >= maxSize) {
+        return null;
+      }
+
+      if (created.compareAndSet(ct, ct + 1)) {
+        break;
+      }
+    }
+
+    grownCt.inc();
+
+    return new Synchling(syncher);
+  }
+
+  private void updateMinIdle() {
+    int avail = getCurrentAvailable();
+
+    while (true) {
+      int m = minIdle.get();
+
+      if ((avail >= m) || minIdle.compareAndSet(m, avail)) {
+        break;
+      }
+    }
+  }
+
+  /* Synchlings which were idle for the whole period were not needed */
+  private void shrink() {
+    if (waiters.get() > 0) {
+      // Still needed
+      minIdle.set(getCurrentAvailable());
+      return;
+    }
+
+    int spare = Math.min(minIdle.get(), created.get() - size);
+
+    while ((spare > 0) && available.tryAcquire()) {
+      idle.poll();
+      created.decrementAndGet();
+      shrunkCt.inc();
+      spare--;
+    }
+
+    minIdle.set(getCurrentAvailable());
+  }
+
   private Logger getLogger() {
     if (log == null) {
       log = Logger.getLogger(this.getClass());
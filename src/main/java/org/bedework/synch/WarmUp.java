@@ -0,0 +1,178 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.exception.SynchException;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** Build the expensive shared objects before any synch runs, so the first
+ * wave of synchs doesn't pay for them and time out.
+ *
+ * <p>The tasks run in parallel and each one is timed. A task which fails or
+ * doesn't finish by the deadline is logged and otherwise ignored unless it was
+ * added as required.
+ */
+public class WarmUp {
+  private transient Logger log;
+
+  private final Map<String, Callable<?>> tasks =
+      new LinkedHashMap<String, Callable<?>>();
+
+  private final Set<String> required = new HashSet<String>();
+
+  private final List<Stat> stats = new ArrayList<Stat>();
+
+  /** Add a task.
+   *
+   * @param name - for the stats and log
+   * @param task
+   * @param isRequired - true if we can't start without it
+   */
+  public void add(final String name,
+                  final Callable<?> task,
+                  final boolean isRequired) {
+    tasks.put(name, task);
+
+    if (isRequired) {
+      required.add(name);
+    }
+  }
+
+  /** Run all the tasks and wait for them.
+   *
+   * @param timeout - millisecs
+   * @throws SynchException if a required task failed or was too slow
+   */
+  public void run(final long timeout) throws SynchException {
+    if (tasks.isEmpty()) {
+      return;
+    }
+
+    long start = System.currentTimeMillis();
+    long deadline = start + timeout;
+
+    ExecutorService exec = Executors.newFixedThreadPool(tasks.size(),
+                                                        new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        Thread t = new Thread(r, "SynchWarmUp");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    Map<String, Future<Long>> running = new LinkedHashMap<String, Future<Long>>();
+    SynchException failure = null;
+
+    try {
+      for (Map.Entry<String, Callable<?>> ent: tasks.entrySet()) {
+        final Callable<?> task = ent.getValue();
+
+        running.put(ent.getKey(), exec.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws Exception {
+            long taskStart = System.currentTimeMillis();
+
+            task.call();
+
+            return System.currentTimeMillis() - taskStart;
+          }
+        }));
+      }
+
+      for (Map.Entry<String, Future<Long>> ent: running.entrySet()) {
+        String name = ent.getKey();
+        String result;
+
+        try {
+          long wait = Math.max(0, deadline - System.currentTimeMillis());
+          long elapsed = ent.getValue().get(wait, TimeUnit.MILLISECONDS);
+
+          result = elapsed + " millisecs";
+        } catch (TimeoutException te) {
+          result = "not done by deadline";
+        } catch (ExecutionException ee) {
+          result = "failed";
+          error(ee.getCause());
+        } catch (InterruptedException ie) {
+          throw new SynchException(ie);
+        }
+
+        info("Warm-up " + name + ": " + result);
+        stats.add(new Stat("warm-up " + name, result));
+
+        if (required.contains(name) && !result.endsWith("millisecs") &&
+            (failure == null)) {
+          failure = new SynchException("Warm-up " + name + " " + result);
+        }
+      }
+    } finally {
+      // Anything still running carries on
+      exec.shutdown();
+    }
+
+    long elapsed = System.currentTimeMillis() - start;
+
+    info("Warm-up complete in " + elapsed + " millisecs");
+    stats.add(new Stat("warm-up total", elapsed + " millisecs"));
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * @return the time each task took
+   */
+  public List<Stat> getStats() {
+    return stats;
+  }
+
+  private Logger getLogger() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+
+  private void error(final Throwable t) {
+    getLogger().error(this, t);
+  }
+
+  private void info(final String msg) {
+    getLogger().info(msg);
+  }
+}
@@ -34,6 +34,8 @@ import org.w3c.dom.Document;
 import java.io.OutputStream;
 import java.net.URL;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.bind.JAXBContext;
@@ -75,7 +77,9 @@ public abstract class AbstractConnector<T,
 
   protected boolean debug;
 
-  protected boolean running;
+  protected volatile boolean running;
+
+  private final Object readyLock = new Object();
 
   protected boolean stopped;
 
@@ -84,6 +88,15 @@ public abstract class AbstractConnector<T,
   protected MessageFactory soapMsgFactory;
   protected JAXBContext jc;
 
+  /* Thread safe and expensive to build - shared by all connectors */
+  private static JAXBContext synchJc;
+
+  /* Services are thread safe and each one fetches the wsdl - ports are not so
+   * we make one per call.
+   */
+  private final Map<String, SynchRemoteService> services =
+      new ConcurrentHashMap<String, SynchRemoteService>();
+
   protected PropertiesInfo propInfo;
 
   protected AbstractConnector(final PropertiesInfo propInfo) {
@@ -118,6 +131,25 @@ public abstract class AbstractConnector<T,
     return running;
   }
 
+  @Override
+  public boolean awaitStarted(final long timeout) throws InterruptedException {
+    long end = System.currentTimeMillis() + timeout;
+
+    synchronized (readyLock) {
+      while (!isStarted() && !isFailed()) {
+        long wait = end - System.currentTimeMillis();
+
+        if (wait <= 0) {
+          break;
+        }
+
+        readyLock.wait(wait);
+      }
+    }
+
+    return isStarted();
+  }
+
   @Override
   public boolean isFailed() {
     return false;
@@ -160,21 +192,47 @@ public abstract class AbstractConnector<T,
 
   @Override
   public void stop() throws SynchException {
-    running = false;
+    setRunning(false);
   }
 
   /* ====================================================================
    *                   Protected methods
    * ==================================================================== */
 
+  /** Set the running flag and wake up anyone waiting for us to start.
+   *
+   * @param val
+   */
+  protected void setRunning(final boolean val) {
+    synchronized (readyLock) {
+      running = val;
+      readyLock.notifyAll();
+    }
+  }
+
+  /** Build the synch JAXB context and the soap message factory.
+   *
+   * @throws SynchException
+   */
+  @Override
+  public void warmUp() throws SynchException {
+    getSynchJAXBContext();
+    getSoapMsgFactory();
+  }
+
   protected SynchRemoteServicePortType getPort(final String uri) throws SynchException {
     try {
-      URL wsURL = new URL(uri);
+      SynchRemoteService ers = services.get(uri);
+
+      if (ers == null) {
+        URL wsURL = new URL(uri);
+
+        ers = new SynchRemoteService(wsURL,
+                                     new QName(SynchDefs.synchNamespace,
+                                               "SynchRemoteService"));
+        services.put(uri, ers);
+      }
 
-      SynchRemoteService ers =
-        new SynchRemoteService(wsURL,
-                               new QName(SynchDefs.synchNamespace,
-                                         "SynchRemoteService"));
       SynchRemoteServicePortType port = ers.getSynchRSPort();
 
       return port;
@@ -278,8 +336,7 @@ public abstract class AbstractConnector<T,
   JAXBContext getSynchJAXBContext() throws SynchException {
     try {
       if (jc == null) {
-        jc = JAXBContext.newInstance("org.bedework.synch.wsmessages:" +
-                                     "ietf.params.xml.ns.icalendar_2");
+        jc = getSharedSynchJAXBContext();
       }
 
       return jc;
@@ -287,4 +344,13 @@ public abstract class AbstractConnector<T,
       throw new SynchException(t);
     }
   }
+
+  private static synchronized JAXBContext getSharedSynchJAXBContext() throws Throwable {
+    if (synchJc == null) {
+      synchJc = JAXBContext.newInstance("org.bedework.synch.wsmessages:" +
+                                        "ietf.params.xml.ns.icalendar_2");
+    }
+
+    return synchJc;
+  }
 }
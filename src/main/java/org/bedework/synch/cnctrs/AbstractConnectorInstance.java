@@ -48,6 +48,9 @@ public abstract class AbstractConnectorInstance implements ConnectorInstance {
 
   protected BaseSubscriptionInfo baseInfo;
 
+  /* Connectors which can count what they read add to this */
+  protected volatile long bytesTransferred;
+
   protected AbstractConnectorInstance(final Subscription sub,
                                       final SynchEndType end,
                                       final BaseSubscriptionInfo baseInfo) {
@@ -134,6 +137,18 @@ public abstract class AbstractConnectorInstance implements ConnectorInstance {
     return baseInfo.getTotalCrudCts();
   }
 
+  /** Default is no delta support.
+   */
+  @Override
+  public SynchItemsDelta getItemsDelta(final String token) throws SynchException {
+    return null;
+  }
+
+  @Override
+  public long getBytesTransferred() {
+    return bytesTransferred;
+  }
+
   /* ====================================================================
    *                   Protected methods
    * ==================================================================== */
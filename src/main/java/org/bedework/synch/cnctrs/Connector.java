@@ -90,6 +90,21 @@ public interface Connector<C extends ConnectorInstance,
    */
   boolean isFailed();
 
+  /** Wait for the connector to start or fail.
+   *
+   * @param timeout - millisecs
+   * @return true if we started
+   * @throws InterruptedException
+   */
+  boolean awaitStarted(long timeout) throws InterruptedException;
+
+  /** Build anything expensive the first synch would otherwise pay for, e.g.
+   * JAXB contexts and web service ports. Called once after start.
+   *
+   * @throws SynchException
+   */
+  void warmUp() throws SynchException;
+
   /**
    * @return true if we're stopped
    */
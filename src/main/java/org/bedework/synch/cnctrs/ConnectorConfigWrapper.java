@@ -33,6 +33,12 @@ import java.util.Set;
  */
 public class ConnectorConfigWrapper<T extends ConnectorConfigWrapper>
       implements Comparable<T>, ConnectorConfigI {
+  /** Max number of synchs using this connector at once */
+  public static final String propMaxConcurrentSynchs = "maxConcurrentSynchs";
+
+  /** Maintenance windows for this connector - overrides the engine's */
+  public static final String propMaintenanceWindows = "maintenanceWindows";
+
   ConnectorConfig conf;
 
   /**
@@ -121,6 +127,51 @@ public class ConnectorConfigWrapper<T extends ConnectorConfigWrapper>
     return conf.getTrustLastmod();
   }
 
+  /** Max number of synchs using this connector at once
+   *
+   * @param val    int
+   * @throws SynchException
+   */
+  public void setMaxConcurrentSynchs(final int val) throws SynchException {
+    setProperty(propMaxConcurrentSynchs, String.valueOf(val));
+  }
+
+  /** Max number of synchs using this connector at once
+   *
+   * @return Integer - null for no limit
+   * @throws SynchException
+   */
+  public Integer getMaxConcurrentSynchs() throws SynchException {
+    if (getNumProperties() == 0) {
+      return null;
+    }
+
+    return getIntPropertyValue(propMaxConcurrentSynchs);
+  }
+
+  /** Maintenance windows for large full synchs using this connector, e.g.
+   * "01:00-05:00,22:00-23:30"
+   *
+   * @param val    String
+   * @throws SynchException
+   */
+  public void setMaintenanceWindows(final String val) throws SynchException {
+    setProperty(propMaintenanceWindows, val);
+  }
+
+  /** Maintenance windows for large full synchs using this connector
+   *
+   * @return String - null to use the engine's windows
+   * @throws SynchException
+   */
+  public String getMaintenanceWindows() throws SynchException {
+    if (getNumProperties() == 0) {
+      return null;
+    }
+
+    return getPropertyValue(propMaintenanceWindows);
+  }
+
   /* ====================================================================
    *                   Property methods
    * ==================================================================== */
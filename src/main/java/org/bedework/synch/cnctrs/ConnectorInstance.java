@@ -142,6 +142,12 @@ public interface ConnectorInstance {
    */
   public CrudCts getTotalCrudCts() throws SynchException;
 
+  /**
+   * @return bytes read from the remote end by this instance - 0 if the
+   *         connector doesn't count them
+   */
+  public long getBytesTransferred();
+
 
   /** Information used to synch ends A and B
    * This information is only valid in the context of a given subscription.
@@ -153,7 +159,9 @@ public interface ConnectorInstance {
     /** */
     public String lastMod;
 
-    /** */
+    /** lastmod of the item at this end when we last synched it - null if
+     * never or if we wrote it. Filled in by the synchling.
+     */
     public String lastSynch;
 
     /** */
@@ -207,6 +215,39 @@ public interface ConnectorInstance {
    */
   SynchItemsInfo getItemsInfo() throws SynchException;
 
+  /** The changes to the subscribed calendar since a change token was handed
+   * out.
+   */
+  public class SynchItemsDelta extends BaseResponseType {
+    /** items created since the token.
+     */
+    public List<ItemInfo> created;
+
+    /** items modified since the token.
+     */
+    public List<ItemInfo> modified;
+
+    /** uids of items deleted since the token.
+     */
+    public List<String> deleted;
+
+    /** opaque token to hand back on the next call.
+     */
+    public String token;
+  }
+
+  /** Get only the items which changed since the state identified by token.
+   * Called with a null token to obtain a starting token only - the lists may
+   * then be empty. Connectors which cannot do this, or which no longer
+   * recognize the token, return null and the caller falls back to
+   * getItemsInfo.
+   *
+   * @param token as returned by a previous call or null.
+   * @return changes or null for no delta.
+   * @throws SynchException
+   */
+  SynchItemsDelta getItemsDelta(String token) throws SynchException;
+
   /** Add a calendar component
    *
    * @param val
@@ -116,7 +116,7 @@ public class BedeworkConnector
           if (remoteToken == null) {
             initConnection();
             if (remoteToken != null) {
-              running = true;
+              setRunning(true);
             }
           } else {
             ping();
@@ -175,7 +175,7 @@ public class BedeworkConnector
     }
 
     stopped = false;
-    running = true;
+    setRunning(true);
   }
 
   @Override
@@ -256,6 +256,17 @@ public class BedeworkConnector
    *                         Package methods
    * ==================================================================== */
 
+  /** Also fetch the wsdl and build the service.
+   *
+   * @throws SynchException
+   */
+  @Override
+  public void warmUp() throws SynchException {
+    super.warmUp();
+
+    getPort();
+  }
+
   SynchRemoteServicePortType getPort() throws SynchException {
     return getPort(((BedeworkConnectorConfig)config).getBwWSDLURI());
   }
@@ -293,7 +304,7 @@ public class BedeworkConnector
       warn("Received status " + kar.getStatus() + " for ping");
       remoteToken = null; // Force reinit after wait
 
-      running = false;
+      setRunning(false);
     }
   }
 
@@ -33,13 +33,16 @@ import org.oasis_open.docs.ws_calendar.ns.soap.StatusType;
 
 import ietf.params.xml.ns.icalendar_2.IcalendarType;
 
+import java.net.URL;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
 
+import com.microsoft.schemas.exchange.services._2006.messages.ExchangeWebService;
 import com.microsoft.schemas.exchange.services._2006.messages.ObjectFactory;
 import com.microsoft.schemas.exchange.services._2006.messages.ResponseMessageType;
 import com.microsoft.schemas.exchange.services._2006.messages.SendNotificationResponseMessageType;
@@ -86,6 +89,8 @@ public class ExchangeConnector
   // Are these thread safe?
   private JAXBContext ewsjc;
 
+  private ExchangeWebService ews;
+
   /**
    */
   public ExchangeConnector() {
@@ -108,7 +113,7 @@ public class ExchangeConnector
     info("**************************************************");
 
     stopped = false;
-    running = true;
+    setRunning(true);
   }
 
   @Override
@@ -251,13 +256,43 @@ public class ExchangeConnector
 
   @Override
   public void stop() throws SynchException {
-    running = false;
+    setRunning(false);
   }
 
   /* ====================================================================
    *                        package methods
    * ==================================================================== */
 
+  /** Also build the EWS JAXB context and fetch the wsdl.
+   *
+   * @throws SynchException
+   */
+  @Override
+  public void warmUp() throws SynchException {
+    super.warmUp();
+
+    getEwsJAXBContext();
+    getExchangeWebService();
+  }
+
+  /* Thread safe so we build it once - fetches the wsdl
+   */
+  synchronized ExchangeWebService getExchangeWebService() throws SynchException {
+    try {
+      if (ews == null) {
+        URL wsdlURL = new URL(((ExchangeConnectorConfig)config).getExchangeWSDLURI());
+
+        ews = new ExchangeWebService(wsdlURL,
+                                     new QName("http://schemas.microsoft.com/exchange/services/2006/messages",
+                                               "ExchangeWebService"));
+      }
+
+      return ews;
+    } catch(Throwable t) {
+      throw new SynchException(t);
+    }
+  }
+
   JAXBContext getEwsJAXBContext() throws SynchException {
     try {
       if (ewsjc == null) {
@@ -41,12 +41,10 @@ import ietf.params.xml.ns.icalendar_2.IcalendarType;
 
 import java.net.Authenticator;
 import java.net.PasswordAuthentication;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.bind.JAXBElement;
-import javax.xml.namespace.QName;
 import javax.xml.ws.Holder;
 
 import com.microsoft.schemas.exchange.services._2006.messages.ExchangeServicePortType;
@@ -342,8 +340,6 @@ public class ExchangeConnectorInstance extends AbstractConnectorInstance {
   private ExchangeServicePortType getExchangeServicePort(final String user,
                                                          final char[] pw) throws SynchException {
     try {
-      URL wsdlURL = new URL(config.getExchangeWSDLURI());
-
       Authenticator.setDefault(new Authenticator() {
         @Override
         protected PasswordAuthentication getPasswordAuthentication() {
@@ -353,10 +349,7 @@ public class ExchangeConnectorInstance extends AbstractConnectorInstance {
         }
     });
 
-      ExchangeWebService ews =
-        new ExchangeWebService(wsdlURL,
-                               new QName("http://schemas.microsoft.com/exchange/services/2006/messages",
-                                         "ExchangeWebService"));
+      ExchangeWebService ews = cnctr.getExchangeWebService();
       ExchangeServicePortType port = ews.getExchangeWebPort();
 
 //      Map<String, Object> context = ((BindingProvider)port).getRequestContext();
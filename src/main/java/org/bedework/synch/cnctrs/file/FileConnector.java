@@ -80,7 +80,7 @@ private static PropertiesInfo fPropInfo = new PropertiesInfo();
     config = new FileConnectorConfig(conf);
 
     stopped = false;
-    running = true;
+    setRunning(true);
   }
 
   @Override
@@ -156,7 +156,7 @@ private static PropertiesInfo fPropInfo = new PropertiesInfo();
 
   @Override
   public void stop() throws SynchException {
-    running = false;
+    setRunning(false);
   }
 
   /* ====================================================================
@@ -55,6 +55,8 @@ import ietf.params.xml.ns.icalendar_2.UidPropType;
 import ietf.params.xml.ns.icalendar_2.VcalendarType;
 import ietf.params.xml.ns.icalendar_2.VersionPropType;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -93,6 +95,46 @@ public class FileConnectorInstance extends AbstractConnectorInstance {
 
   private Map<String, MapEntry> uidMap;
 
+  /* Adds what is read to our byte count */
+  private class CountingInputStream extends FilterInputStream {
+    CountingInputStream(final InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+
+      if (b >= 0) {
+        bytesTransferred++;
+      }
+
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b,
+                    final int off,
+                    final int len) throws IOException {
+      int n = super.read(b, off, len);
+
+      if (n > 0) {
+        bytesTransferred += n;
+      }
+
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      long skipped = super.skip(n);
+
+      bytesTransferred += skipped;
+
+      return skipped;
+    }
+  }
+
   private ObjectFactory of = new ObjectFactory();
 
   FileConnectorInstance(final FileConnectorConfig config,
@@ -348,7 +390,8 @@ public class FileConnectorInstance extends AbstractConnectorInstance {
 
       CalendarBuilder builder = new CalendarBuilder();
 
-      InputStream is = client.getResponse().getContentStream();
+      InputStream is = new CountingInputStream(
+                             client.getResponse().getContentStream());
 
       Calendar ical = builder.build(is);
 
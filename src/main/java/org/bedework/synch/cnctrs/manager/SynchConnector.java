@@ -83,7 +83,7 @@ public class SynchConnector
     super.start(connectorId, conf, callbackUri, syncher);
 
     stopped = false;
-    running = true;
+    setRunning(true);
   }
 
   @Override
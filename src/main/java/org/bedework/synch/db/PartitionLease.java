@@ -0,0 +1,159 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch.db;
+
+import edu.rpi.sss.util.Util;
+
+/** A time-bounded claim by one synch node on one partition of the
+ * subscriptions. There is one row per partition. The owner renews the expiry
+ * while it is alive; once it has passed any node may take the partition over.
+ * Rows with a negative partition number are membership leases which show a
+ * node is alive.
+ *
+ * <p>The seq is the hibernate version so two nodes racing to take the same
+ * partition cannot both succeed.
+ */
+public class PartitionLease extends DbItem<PartitionLease> {
+  private int partition;
+
+  private String owner;
+
+  private long expires;
+
+  /** Constructor
+   */
+  public PartitionLease() {
+    super();
+  }
+
+  /**
+   * @param partition
+   */
+  public PartitionLease(final int partition) {
+    super();
+    this.partition = partition;
+  }
+
+  /** Set the partition number
+   *
+   * @param val    int partition
+   */
+  public void setPartition(final int val) {
+    partition = val;
+  }
+
+  /** Get the partition number
+   *
+   * @return int   partition
+   */
+  public int getPartition() {
+    return partition;
+  }
+
+  /** Set the id of the node holding the lease
+   *
+   * @param val    String node id
+   */
+  public void setOwner(final String val) {
+    owner = val;
+  }
+
+  /** Get the id of the node holding the lease
+   *
+   * @return String   node id - null if never claimed
+   */
+  public String getOwner() {
+    return owner;
+  }
+
+  /** Set the expiry
+   *
+   * @param val    long millisecs since epoch
+   */
+  public void setExpires(final long val) {
+    expires = val;
+  }
+
+  /** Get the expiry
+   *
+   * @return long   millisecs since epoch
+   */
+  public long getExpires() {
+    return expires;
+  }
+
+  /* ====================================================================
+   *                        Convenience methods
+   * ==================================================================== */
+
+  /**
+   * @param now
+   * @return true if the lease is held by somebody at the given time
+   */
+  public boolean held(final long now) {
+    return (getOwner() != null) && (getExpires() > now);
+  }
+
+  /* ====================================================================
+   *                        Object methods
+   * ==================================================================== */
+
+  @Override
+  public int compareTo(final PartitionLease that) {
+    if (that == this) {
+      return 0;
+    }
+
+    if (that == null) {
+      return -1;
+    }
+
+    if (getPartition() != that.getPartition()) {
+      return getPartition() < that.getPartition() ? -1 : 1;
+    }
+
+    return Util.cmpObjval(getOwner(), that.getOwner());
+  }
+
+  @Override
+  public int hashCode() {
+    return getPartition();
+  }
+
+  @Override
+  protected void toStringSegment(final StringBuilder sb) {
+    super.toStringSegment(sb);
+    sb.append(", partition=");
+    sb.append(getPartition());
+    sb.append(", owner=");
+    sb.append(getOwner());
+    sb.append(", expires=");
+    sb.append(getExpires());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append("{");
+
+    toStringSegment(sb);
+    sb.append("}");
+
+    return sb.toString();
+  }
+}
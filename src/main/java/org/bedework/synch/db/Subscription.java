@@ -97,6 +97,8 @@ public class Subscription extends DbItem<Subscription> {
 
 	private String lastRefresh;
 
+	private Long nextRefreshTime;
+
 	private int errorCt;
 
 	private boolean missingTarget;
@@ -182,6 +184,29 @@ public class Subscription extends DbItem<Subscription> {
 		return lastRefresh;
 	}
 
+	/**
+	 * When the next refresh is due in millisecs since the epoch. Indexed so
+	 * due subscriptions can be found without loading them all. 0 if not
+	 * polled or not yet calculated. The column is nullable so rows from
+	 * before it was added still load - null is treated as 0.
+	 * 
+	 * @param val
+	 */
+	public void setNextRefreshTime(final Long val) {
+		nextRefreshTime = val;
+	}
+
+	/**
+	 * @return long next refresh time - 0 if not set
+	 */
+	public long getNextRefreshTime() {
+		if (nextRefreshTime == null) {
+			return 0;
+		}
+
+		return nextRefreshTime;
+	}
+
 	/**
 	 * int consecutive errors
 	 * 
@@ -463,18 +488,28 @@ public class Subscription extends DbItem<Subscription> {
 	}
 
 	/**
-	 * @return the delay in millisecs.
+	 * @return info for the end whose refresh delay we use.
+	 * @throws SynchException
+	 */
+	public BaseSubscriptionInfo refreshInfo() throws SynchException {
+		if (getDirection() == SynchDirectionType.A_TO_B) {
+			return new BaseSubscriptionInfo(getEndAConnectorInfo());
+		}
+
+		return new BaseSubscriptionInfo(getEndBConnectorInfo());
+	}
+
+	/**
+	 * @return the delay in millisecs. The adaptive delay if we have one.
 	 * @throws SynchException
 	 */
 	public long refreshDelay() throws SynchException {
-		String delay = "31536000000"; // About a year
+		BaseSubscriptionInfo info = refreshInfo();
 
-		if (getDirection() == SynchDirectionType.A_TO_B) {
-			delay = new BaseSubscriptionInfo(getEndAConnectorInfo())
-					.getRefreshDelay();
-		} else {
-			delay = new BaseSubscriptionInfo(getEndBConnectorInfo())
-					.getRefreshDelay();
+		String delay = info.getAdaptiveRefreshDelay();
+
+		if (delay == null) {
+			delay = info.getRefreshDelay();
 		}
 
 		return Long.valueOf(delay);
@@ -486,15 +521,36 @@ public class Subscription extends DbItem<Subscription> {
 	 */
 	public void updateLastRefresh() {
 		setLastRefresh(new DtStamp(new DateTime(true)).getValue());
+
+		/* No longer valid */
+		setNextRefreshTime(0L);
+	}
+
+	/**
+	 * Set the next refresh time from the last refresh, error count and delay.
+	 * 
+	 * @throws SynchException
+	 */
+	public void updateNextRefresh() throws SynchException {
+		setNextRefreshTime(calcNextRefresh().getTime());
 	}
 
 	/**
-	 * Get a next refresh date based on the last refresh value
+	 * Get a next refresh date. The stored value if we have one, otherwise
+	 * calculated from the last refresh value.
 	 * 
 	 * @return date value incremented by delay.
 	 * @throws SynchException
 	 */
 	public Date nextRefresh() throws SynchException {
+		if (getNextRefreshTime() > 0) {
+			return new Date(getNextRefreshTime());
+		}
+
+		return calcNextRefresh();
+	}
+
+	private Date calcNextRefresh() throws SynchException {
 		if (getLastRefresh() == null) {
 			return new Date();
 		}
@@ -528,6 +584,8 @@ public class Subscription extends DbItem<Subscription> {
 
 		sb.append(", lastRefresh = ");
 		sb.append(getLastRefresh());
+		sb.append(", nextRefreshTime = ");
+		sb.append(getNextRefreshTime());
 
 		sb.append(",\n");
 		sb.append(indent);
@@ -26,6 +26,29 @@ import java.util.SortedSet;
  * @author Mike Douglass
  */
 public class SynchConfig extends DbItem<SynchConfig> {
+  /* Defaults for the properties added after the original schema. Those
+   * columns are nullable so that existing configuration rows still load;
+   * the getters fall back to these values when a column is null.
+   */
+  public static final long DEFAULT_STARTUP_CATCHUP_WINDOW = 600000L;
+  public static final boolean DEFAULT_ADAPTIVE_REFRESH = false;
+  public static final long DEFAULT_MAX_REFRESH_DELAY = 86400000L;
+  public static final boolean DEFAULT_SYNCH_THREADS = false;
+  public static final int DEFAULT_MAX_CONCURRENT_SYNCHS = 1000;
+  public static final int DEFAULT_SYNCHLING_POOL_MAX_SIZE = 100;
+  public static final long DEFAULT_SYNCHLING_IDLE_TIMEOUT = 300000L;
+  public static final int DEFAULT_STARTUP_PAGE_SIZE = 500;
+  public static final long DEFAULT_CONNECTOR_STARTUP_TIMEOUT = 60000L;
+  public static final int DEFAULT_CLUSTER_PARTITIONS = 0;
+  public static final long DEFAULT_CLUSTER_LEASE_DURATION = 30000L;
+  public static final long DEFAULT_DUE_QUEUE_POLL_INTERVAL = 0;
+  public static final int DEFAULT_DUE_QUEUE_BATCH_SIZE = 100;
+  public static final long DEFAULT_DRAIN_TIMEOUT = 60000L;
+  public static final long DEFAULT_WARM_UP_TIMEOUT = 60000L;
+  public static final int DEFAULT_FULL_SYNCH_SIZE_THRESHOLD = 5000;
+  public static final long DEFAULT_BULK_AGING_BOUND = 300000L;
+  public static final boolean DEFAULT_CONCURRENT_ENDS = true;
+
   /* Size of synchling pool */
   private int synchlingPoolSize;
 
@@ -49,6 +72,75 @@ public class SynchConfig extends DbItem<SynchConfig> {
   /* Path to keystores  */
   private String pubKeys;
 
+  /* millisecs over which overdue subscriptions are spread at startup - 0 for no spreading */
+  private Long startupCatchupWindow;
+
+  /* true to adapt the refresh delay of polled subscriptions to their change rate */
+  private Boolean adaptiveRefresh;
+
+  /* upper bound in millisecs for adaptive refresh delays - 0 for no bound */
+  private Long maxRefreshDelay;
+
+  /* what to do with timer notifications when the queue is full */
+  private String timerAdmissionPolicy;
+
+  /* what to do with callback notifications when the queue is full */
+  private String callbackAdmissionPolicy;
+
+  /* what to do with other internal notifications when the queue is full */
+  private String internalAdmissionPolicy;
+
+  /* true if each synch runs on its own (virtual where supported) thread */
+  private Boolean synchThreads;
+
+  /* max synchs in progress when each synch runs on its own thread */
+  private Integer maxConcurrentSynchs;
+
+  /* max size the synchling pool grows to when busy */
+  private Integer synchlingPoolMaxSize;
+
+  /* millisecs before spare synchlings are discarded */
+  private Long synchlingIdleTimeout;
+
+  /* number of subscriptions read at a time at startup */
+  private Integer startupPageSize;
+
+  /* millisecs we wait for connectors to start - 0 or less for the default */
+  private Long connectorStartupTimeout;
+
+  /* Number of partitions subscriptions are shared over between nodes. 0 for no cluster */
+  private Integer clusterPartitions;
+
+  /* Id of this node in a cluster. Generated if not set */
+  private String clusterNodeId;
+
+  /* Millisecs a partition lease lasts without renewal */
+  private Long clusterLeaseDuration;
+
+  /* Millisecs between polls of the db for due subscriptions. 0 to use the in-memory timer */
+  private Long dueQueuePollInterval;
+
+  /* Number of due subscriptions read from the db at a time */
+  private Integer dueQueueBatchSize;
+
+  /* Millisecs running synchs get to finish when stopping. 0 or less for the default */
+  private Long drainTimeout;
+
+  /* Millisecs to wait for the warm-up before synchs are released */
+  private Long warmUpTimeout;
+
+  /* Daily local time windows for large full synchs, e.g. 01:00-05:00,22:00-23:30 */
+  private String maintenanceWindows;
+
+  /* Full synchs of subscriptions with at least this many items wait for a maintenance window */
+  private Integer fullSynchSizeThreshold;
+
+  /* Most millisecs a full synch's expected cost can hold it back in the queue. 0 for first in first out */
+  private Long bulkAgingBound;
+
+  /* true to list both ends of a synch at the same time */
+  private Boolean concurrentEnds;
+
   private Set<ConnectorConfig> connectors;
 
   private SortedSet<IpAddrInfo> ipInfo;
@@ -176,6 +268,423 @@ public class SynchConfig extends DbItem<SynchConfig> {
     return pubKeys;
   }
 
+  /** millisecs over which overdue subscriptions are spread at startup - 0 for no spreading
+   *
+   * @param val
+   */
+  public void setStartupCatchupWindow(final Long val) {
+    startupCatchupWindow = val;
+  }
+
+  /**
+   * @return millisecs over which overdue subscriptions are spread at startup - 0 for no spreading
+   */
+  public long getStartupCatchupWindow() {
+    if (startupCatchupWindow == null) {
+      return DEFAULT_STARTUP_CATCHUP_WINDOW;
+    }
+
+    return startupCatchupWindow;
+  }
+
+  /** true to adapt the refresh delay of polled subscriptions to their change rate
+   *
+   * @param val
+   */
+  public void setAdaptiveRefresh(final Boolean val) {
+    adaptiveRefresh = val;
+  }
+
+  /**
+   * @return true to adapt the refresh delay of polled subscriptions to their change rate
+   */
+  public boolean getAdaptiveRefresh() {
+    if (adaptiveRefresh == null) {
+      return DEFAULT_ADAPTIVE_REFRESH;
+    }
+
+    return adaptiveRefresh;
+  }
+
+  /** upper bound in millisecs for adaptive refresh delays - 0 for no bound
+   *
+   * @param val
+   */
+  public void setMaxRefreshDelay(final Long val) {
+    maxRefreshDelay = val;
+  }
+
+  /**
+   * @return upper bound in millisecs for adaptive refresh delays - 0 for no bound
+   */
+  public long getMaxRefreshDelay() {
+    if (maxRefreshDelay == null) {
+      return DEFAULT_MAX_REFRESH_DELAY;
+    }
+
+    return maxRefreshDelay;
+  }
+
+  /** what to do with timer notifications when the queue is full
+   *
+   * @param val
+   */
+  public void setTimerAdmissionPolicy(final String val) {
+    timerAdmissionPolicy = val;
+  }
+
+  /**
+   * @return what to do with timer notifications when the queue is full
+   */
+  public String getTimerAdmissionPolicy() {
+    return timerAdmissionPolicy;
+  }
+
+  /** what to do with callback notifications when the queue is full
+   *
+   * @param val
+   */
+  public void setCallbackAdmissionPolicy(final String val) {
+    callbackAdmissionPolicy = val;
+  }
+
+  /**
+   * @return what to do with callback notifications when the queue is full
+   */
+  public String getCallbackAdmissionPolicy() {
+    return callbackAdmissionPolicy;
+  }
+
+  /** what to do with other internal notifications when the queue is full
+   *
+   * @param val
+   */
+  public void setInternalAdmissionPolicy(final String val) {
+    internalAdmissionPolicy = val;
+  }
+
+  /**
+   * @return what to do with other internal notifications when the queue is full
+   */
+  public String getInternalAdmissionPolicy() {
+    return internalAdmissionPolicy;
+  }
+
+  /** true if each synch runs on its own (virtual where supported) thread
+   *
+   * @param val
+   */
+  public void setSynchThreads(final Boolean val) {
+    synchThreads = val;
+  }
+
+  /**
+   * @return true if each synch runs on its own (virtual where supported) thread
+   */
+  public boolean getSynchThreads() {
+    if (synchThreads == null) {
+      return DEFAULT_SYNCH_THREADS;
+    }
+
+    return synchThreads;
+  }
+
+  /** max synchs in progress when each synch runs on its own thread
+   *
+   * @param val
+   */
+  public void setMaxConcurrentSynchs(final Integer val) {
+    maxConcurrentSynchs = val;
+  }
+
+  /**
+   * @return max synchs in progress when each synch runs on its own thread
+   */
+  public int getMaxConcurrentSynchs() {
+    if (maxConcurrentSynchs == null) {
+      return DEFAULT_MAX_CONCURRENT_SYNCHS;
+    }
+
+    return maxConcurrentSynchs;
+  }
+
+  /** max size the synchling pool grows to when busy
+   *
+   * @param val
+   */
+  public void setSynchlingPoolMaxSize(final Integer val) {
+    synchlingPoolMaxSize = val;
+  }
+
+  /**
+   * @return max size the synchling pool grows to when busy
+   */
+  public int getSynchlingPoolMaxSize() {
+    if (synchlingPoolMaxSize == null) {
+      return DEFAULT_SYNCHLING_POOL_MAX_SIZE;
+    }
+
+    return synchlingPoolMaxSize;
+  }
+
+  /** millisecs before spare synchlings are discarded
+   *
+   * @param val
+   */
+  public void setSynchlingIdleTimeout(final Long val) {
+    synchlingIdleTimeout = val;
+  }
+
+  /**
+   * @return millisecs before spare synchlings are discarded
+   */
+  public long getSynchlingIdleTimeout() {
+    if (synchlingIdleTimeout == null) {
+      return DEFAULT_SYNCHLING_IDLE_TIMEOUT;
+    }
+
+    return synchlingIdleTimeout;
+  }
+
+  /** number of subscriptions read at a time at startup
+   *
+   * @param val
+   */
+  public void setStartupPageSize(final Integer val) {
+    startupPageSize = val;
+  }
+
+  /**
+   * @return number of subscriptions read at a time at startup
+   */
+  public int getStartupPageSize() {
+    if (startupPageSize == null) {
+      return DEFAULT_STARTUP_PAGE_SIZE;
+    }
+
+    return startupPageSize;
+  }
+
+  /** millisecs we wait for connectors to start - 0 or less for the default
+   *
+   * @param val
+   */
+  public void setConnectorStartupTimeout(final Long val) {
+    connectorStartupTimeout = val;
+  }
+
+  /**
+   * @return millisecs we wait for connectors to start
+   */
+  public long getConnectorStartupTimeout() {
+    if (connectorStartupTimeout == null) {
+      return DEFAULT_CONNECTOR_STARTUP_TIMEOUT;
+    }
+
+    return connectorStartupTimeout;
+  }
+
+  /** Number of partitions subscriptions are shared over between nodes. 0 for no cluster
+   *
+   * @param val
+   */
+  public void setClusterPartitions(final Integer val) {
+    clusterPartitions = val;
+  }
+
+  /**
+   * @return Number of partitions subscriptions are shared over between nodes. 0 for no cluster
+   */
+  public int getClusterPartitions() {
+    if (clusterPartitions == null) {
+      return DEFAULT_CLUSTER_PARTITIONS;
+    }
+
+    return clusterPartitions;
+  }
+
+  /** Id of this node in a cluster. Generated if not set
+   *
+   * @param val
+   */
+  public void setClusterNodeId(final String val) {
+    clusterNodeId = val;
+  }
+
+  /**
+   * @return Id of this node in a cluster. Generated if not set
+   */
+  public String getClusterNodeId() {
+    return clusterNodeId;
+  }
+
+  /** Millisecs a partition lease lasts without renewal
+   *
+   * @param val
+   */
+  public void setClusterLeaseDuration(final Long val) {
+    clusterLeaseDuration = val;
+  }
+
+  /**
+   * @return Millisecs a partition lease lasts without renewal
+   */
+  public long getClusterLeaseDuration() {
+    if (clusterLeaseDuration == null) {
+      return DEFAULT_CLUSTER_LEASE_DURATION;
+    }
+
+    return clusterLeaseDuration;
+  }
+
+  /** Millisecs between polls of the db for due subscriptions. 0 to use the in-memory timer
+   *
+   * @param val
+   */
+  public void setDueQueuePollInterval(final Long val) {
+    dueQueuePollInterval = val;
+  }
+
+  /**
+   * @return Millisecs between polls of the db for due subscriptions. 0 to use the in-memory timer
+   */
+  public long getDueQueuePollInterval() {
+    if (dueQueuePollInterval == null) {
+      return DEFAULT_DUE_QUEUE_POLL_INTERVAL;
+    }
+
+    return dueQueuePollInterval;
+  }
+
+  /** Number of due subscriptions read from the db at a time
+   *
+   * @param val
+   */
+  public void setDueQueueBatchSize(final Integer val) {
+    dueQueueBatchSize = val;
+  }
+
+  /**
+   * @return Number of due subscriptions read from the db at a time
+   */
+  public int getDueQueueBatchSize() {
+    if (dueQueueBatchSize == null) {
+      return DEFAULT_DUE_QUEUE_BATCH_SIZE;
+    }
+
+    return dueQueueBatchSize;
+  }
+
+  /** Millisecs running synchs get to finish when stopping. 0 or less for the default
+   *
+   * @param val
+   */
+  public void setDrainTimeout(final Long val) {
+    drainTimeout = val;
+  }
+
+  /**
+   * @return Millisecs running synchs get to finish when stopping
+   */
+  public long getDrainTimeout() {
+    if (drainTimeout == null) {
+      return DEFAULT_DRAIN_TIMEOUT;
+    }
+
+    return drainTimeout;
+  }
+
+  /** Millisecs to wait for the warm-up before synchs are released
+   *
+   * @param val
+   */
+  public void setWarmUpTimeout(final Long val) {
+    warmUpTimeout = val;
+  }
+
+  /**
+   * @return Millisecs to wait for the warm-up before synchs are released
+   */
+  public long getWarmUpTimeout() {
+    if (warmUpTimeout == null) {
+      return DEFAULT_WARM_UP_TIMEOUT;
+    }
+
+    return warmUpTimeout;
+  }
+
+  /** Daily local time windows for large full synchs, e.g. 01:00-05:00,22:00-23:30
+   *
+   * @param val
+   */
+  public void setMaintenanceWindows(final String val) {
+    maintenanceWindows = val;
+  }
+
+  /**
+   * @return Daily local time windows for large full synchs, e.g. 01:00-05:00,22:00-23:30
+   */
+  public String getMaintenanceWindows() {
+    return maintenanceWindows;
+  }
+
+  /** Full synchs of subscriptions with at least this many items wait for a maintenance window
+   *
+   * @param val
+   */
+  public void setFullSynchSizeThreshold(final Integer val) {
+    fullSynchSizeThreshold = val;
+  }
+
+  /**
+   * @return Full synchs of subscriptions with at least this many items wait for a maintenance window
+   */
+  public int getFullSynchSizeThreshold() {
+    if (fullSynchSizeThreshold == null) {
+      return DEFAULT_FULL_SYNCH_SIZE_THRESHOLD;
+    }
+
+    return fullSynchSizeThreshold;
+  }
+
+  /** Most millisecs a full synch's expected cost can hold it back in the queue. 0 for first in first out
+   *
+   * @param val
+   */
+  public void setBulkAgingBound(final Long val) {
+    bulkAgingBound = val;
+  }
+
+  /**
+   * @return Most millisecs a full synch's expected cost can hold it back in the queue. 0 for first in first out
+   */
+  public long getBulkAgingBound() {
+    if (bulkAgingBound == null) {
+      return DEFAULT_BULK_AGING_BOUND;
+    }
+
+    return bulkAgingBound;
+  }
+
+  /** true to list both ends of a synch at the same time
+   *
+   * @param val
+   */
+  public void setConcurrentEnds(final Boolean val) {
+    concurrentEnds = val;
+  }
+
+  /**
+   * @return true to list both ends of a synch at the same time
+   */
+  public boolean getConcurrentEnds() {
+    if (concurrentEnds == null) {
+      return DEFAULT_CONCURRENT_ENDS;
+    }
+
+    return concurrentEnds;
+  }
+
   /**
    * @param val
    */
@@ -31,6 +31,7 @@ import com.idega.hibernate.SessionFactoryUtil;
 
 import java.io.Serializable;
 import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
 
 /** This class manages the Exchange synch database.
@@ -183,6 +184,98 @@ public class SynchDb implements Serializable {
     }
   }
 
+  /** Get a page of subscriptions in subscription id order. Pass the last id
+   * from the previous page to get the next. Each page is a separate query so
+   * the whole table is never held in memory.
+   *
+   * @param afterId - null for the first page
+   * @param max - max number returned
+   * @return list of subscriptions - fewer than max for the last page
+   * @throws SynchException
+   */
+  @SuppressWarnings("unchecked")
+  public List<Subscription> getPage(final String afterId,
+                                    final int max) throws SynchException {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("from ");
+    sb.append(Subscription.class.getName());
+    sb.append(" sub");
+
+    if (afterId != null) {
+      sb.append(" where sub.subscriptionId>:subid");
+    }
+
+    sb.append(" order by sub.subscriptionId");
+
+    try {
+      sess.createQuery(sb.toString());
+
+      if (afterId != null) {
+        sess.setString("subid", afterId);
+      }
+
+      sess.setMaxResults(max);
+
+      return sess.getList();
+    } catch (HibException he) {
+      throw new SynchException(he);
+    }
+  }
+
+  /** Get a batch of polled subscriptions due for a refresh in order of due
+   * time. Pass the due time and id of the last subscription from the previous
+   * batch to get the next.
+   *
+   * <p>A null or 0 next refresh time counts as due now. That covers rows
+   * from before the column existed and those whose time was never
+   * calculated. Subscriptions which are not polled also have 0 so callers
+   * must skip those.
+   *
+   * @param now - only those due at or before this
+   * @param afterTime - 0 for the first batch
+   * @param afterId - null for the first batch
+   * @param max - max number returned
+   * @return list of subscriptions - fewer than max for the last batch
+   * @throws SynchException
+   */
+  @SuppressWarnings("unchecked")
+  public List<Subscription> getDue(final long now,
+                                   final long afterTime,
+                                   final String afterId,
+                                   final int max) throws SynchException {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("from ");
+    sb.append(Subscription.class.getName());
+    sb.append(" sub where coalesce(sub.nextRefreshTime, 0)<=:now");
+
+    if (afterId != null) {
+      sb.append(" and (coalesce(sub.nextRefreshTime, 0)>:aftertm");
+      sb.append(" or (coalesce(sub.nextRefreshTime, 0)=:aftertm");
+      sb.append(" and sub.subscriptionId>:subid))");
+    }
+
+    sb.append(" order by coalesce(sub.nextRefreshTime, 0), sub.subscriptionId");
+
+    try {
+      sess.createQuery(sb.toString());
+
+      sess.setLong("now", now);
+
+      if (afterId != null) {
+        sess.setLong("aftertm", afterTime);
+        sess.setString("subid", afterId);
+      }
+
+      sess.setMaxResults(max);
+
+      return sess.getList();
+    } catch (HibException he) {
+      throw new SynchException(he);
+    }
+  }
+
   /** The synch engine generates a unique subscription id
    * for each subscription. This is used as a key for each subscription.
    *
@@ -282,6 +375,7 @@ public class SynchDb implements Serializable {
     boolean opened = open();
 
     try {
+      deleteItemStates(sub.getSubscriptionId());
       sess.delete(sub);
     } catch (HibException he) {
       throw new SynchException(he);
@@ -292,6 +386,141 @@ public class SynchDb implements Serializable {
     }
   }
 
+  /* ====================================================================
+   *                   Partition lease methods
+   * ==================================================================== */
+
+  /**
+   * @return all partition leases - one per partition which has been claimed
+   * @throws SynchException
+   */
+  @SuppressWarnings("unchecked")
+  public List<PartitionLease> getLeases() throws SynchException {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("from ");
+    sb.append(PartitionLease.class.getName());
+    sb.append(" lease order by lease.partition");
+
+    try {
+      sess.createQuery(sb.toString());
+
+      return sess.getList();
+    } catch (HibException he) {
+      throw new SynchException(he);
+    }
+  }
+
+  /** Add a lease for a partition nobody has claimed before. If another node
+   * adds the same partition first the commit on close will fail.
+   *
+   * @param lease
+   * @throws SynchException
+   */
+  public void addLease(final PartitionLease lease) throws SynchException {
+    try {
+      sess.save(lease);
+    } catch (HibException he) {
+      throw new SynchException(he);
+    }
+  }
+
+  /** Update a lease. The lease is versioned so if another node changed it
+   * since we read it the commit on close will fail.
+   *
+   * @param lease
+   * @throws SynchException
+   */
+  public void updateLease(final PartitionLease lease) throws SynchException {
+    try {
+      sess.update(lease);
+    } catch (HibException he) {
+      throw new SynchException(he);
+    }
+  }
+
+  /* ====================================================================
+   *                   Item state methods
+   * ==================================================================== */
+
+  /**
+   * @param subId
+   * @return all item states for the subscription
+   * @throws SynchException
+   */
+  @SuppressWarnings("unchecked")
+  public List<SynchItemState> getItemStates(final String subId) throws SynchException {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("from ");
+    sb.append(SynchItemState.class.getName());
+    sb.append(" st where st.subscriptionId=:subid");
+
+    try {
+      sess.createQuery(sb.toString());
+      sess.setString("subid", subId);
+
+      return sess.getList();
+    } catch (HibException he) {
+      throw new SynchException(he);
+    }
+  }
+
+  /**
+   * @param subId
+   * @param uids - a batch of uids
+   * @return item states for those uids we have seen before
+   * @throws SynchException
+   */
+  @SuppressWarnings("unchecked")
+  public List<SynchItemState> getItemStates(final String subId,
+                                            final Collection<String> uids) throws SynchException {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("from ");
+    sb.append(SynchItemState.class.getName());
+    sb.append(" st where st.subscriptionId=:subid");
+    sb.append(" and st.uid in (:uids)");
+
+    try {
+      sess.createQuery(sb.toString());
+      sess.setString("subid", subId);
+      sess.setParameterList("uids", uids);
+
+      return sess.getList();
+    } catch (HibException he) {
+      throw new SynchException(he);
+    }
+  }
+
+  /** Apply a batch of item state changes. The caller keeps the batches small
+   * enough for one transaction.
+   *
+   * @param adds - states not yet in the db
+   * @param updates - states read from the db
+   * @param deletes - states read from the db
+   * @throws SynchException
+   */
+  public void updateItemStates(final Collection<SynchItemState> adds,
+                               final Collection<SynchItemState> updates,
+                               final Collection<SynchItemState> deletes) throws SynchException {
+    try {
+      for (SynchItemState st: adds) {
+        sess.save(st);
+      }
+
+      for (SynchItemState st: updates) {
+        sess.update(st);
+      }
+
+      for (SynchItemState st: deletes) {
+        sess.delete(st);
+      }
+    } catch (HibException he) {
+      throw new SynchException(he);
+    }
+  }
+
   /* ====================================================================
    *                   Session methods
    * ==================================================================== */
@@ -444,4 +673,13 @@ public class SynchDb implements Serializable {
    *                   private methods
    * ==================================================================== */
 
+  private void deleteItemStates(final String subId) throws SynchException {
+    try {
+      for (SynchItemState st: getItemStates(subId)) {
+        sess.delete(st);
+      }
+    } catch (HibException he) {
+      throw new SynchException(he);
+    }
+  }
 }
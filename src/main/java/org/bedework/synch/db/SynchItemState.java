@@ -0,0 +1,279 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch.db;
+
+import edu.rpi.sss.util.Util;
+
+/** What we last saw of one item of one subscription at each end. Written when
+ * the item is synched so the next synch can tell which end changed it, and
+ * whether an item missing from one end was deleted there or never arrived.
+ *
+ * <p>There is one row per subscription and uid.
+ */
+public class SynchItemState extends DbItem<SynchItemState> {
+  private String subscriptionId;
+
+  private String uid;
+
+  private String endALastmod;
+
+  private String endAEtag;
+
+  private String endAFingerprint;
+
+  private String endBLastmod;
+
+  private String endBEtag;
+
+  private String endBFingerprint;
+
+  private long lastSynch;
+
+  /** Constructor
+   */
+  public SynchItemState() {
+    super();
+  }
+
+  /**
+   * @param subscriptionId
+   * @param uid
+   */
+  public SynchItemState(final String subscriptionId,
+                        final String uid) {
+    super();
+    this.subscriptionId = subscriptionId;
+    this.uid = uid;
+  }
+
+  /** Set the subscription id
+   *
+   * @param val    String id
+   */
+  public void setSubscriptionId(final String val) {
+    subscriptionId = val;
+  }
+
+  /** Get the subscription id
+   *
+   * @return String   id
+   */
+  public String getSubscriptionId() {
+    return subscriptionId;
+  }
+
+  /** Set the uid
+   *
+   * @param val    String uid
+   */
+  public void setUid(final String val) {
+    uid = val;
+  }
+
+  /** Get the uid
+   *
+   * @return String   uid
+   */
+  public String getUid() {
+    return uid;
+  }
+
+  /** Set the lastmod seen at end A
+   *
+   * @param val    String lastmod
+   */
+  public void setEndALastmod(final String val) {
+    endALastmod = val;
+  }
+
+  /** Get the lastmod seen at end A
+   *
+   * @return String   lastmod - null if not known
+   */
+  public String getEndALastmod() {
+    return endALastmod;
+  }
+
+  /** Set the etag seen at end A
+   *
+   * @param val    String etag
+   */
+  public void setEndAEtag(final String val) {
+    endAEtag = val;
+  }
+
+  /** Get the etag seen at end A
+   *
+   * @return String   etag - null if not known
+   */
+  public String getEndAEtag() {
+    return endAEtag;
+  }
+
+  /** Set the content fingerprint seen at end A
+   *
+   * @param val    String fingerprint
+   */
+  public void setEndAFingerprint(final String val) {
+    endAFingerprint = val;
+  }
+
+  /** Get the content fingerprint seen at end A
+   *
+   * @return String   fingerprint - null if not known
+   */
+  public String getEndAFingerprint() {
+    return endAFingerprint;
+  }
+
+  /** Set the lastmod seen at end B
+   *
+   * @param val    String lastmod
+   */
+  public void setEndBLastmod(final String val) {
+    endBLastmod = val;
+  }
+
+  /** Get the lastmod seen at end B
+   *
+   * @return String   lastmod - null if not known
+   */
+  public String getEndBLastmod() {
+    return endBLastmod;
+  }
+
+  /** Set the etag seen at end B
+   *
+   * @param val    String etag
+   */
+  public void setEndBEtag(final String val) {
+    endBEtag = val;
+  }
+
+  /** Get the etag seen at end B
+   *
+   * @return String   etag - null if not known
+   */
+  public String getEndBEtag() {
+    return endBEtag;
+  }
+
+  /** Set the content fingerprint seen at end B
+   *
+   * @param val    String fingerprint
+   */
+  public void setEndBFingerprint(final String val) {
+    endBFingerprint = val;
+  }
+
+  /** Get the content fingerprint seen at end B
+   *
+   * @return String   fingerprint - null if not known
+   */
+  public String getEndBFingerprint() {
+    return endBFingerprint;
+  }
+
+  /** Set the time of the last synch of this item
+   *
+   * @param val    long millisecs since epoch
+   */
+  public void setLastSynch(final long val) {
+    lastSynch = val;
+  }
+
+  /** Get the time of the last synch of this item
+   *
+   * @return long   millisecs since epoch
+   */
+  public long getLastSynch() {
+    return lastSynch;
+  }
+
+  /* ====================================================================
+   *                        Object methods
+   * ==================================================================== */
+
+  @Override
+  public int compareTo(final SynchItemState that) {
+    if (that == this) {
+      return 0;
+    }
+
+    if (that == null) {
+      return -1;
+    }
+
+    int res = Util.cmpObjval(getSubscriptionId(), that.getSubscriptionId());
+
+    if (res != 0) {
+      return res;
+    }
+
+    return Util.cmpObjval(getUid(), that.getUid());
+  }
+
+  @Override
+  public int hashCode() {
+    int hc = 7;
+
+    if (getSubscriptionId() != null) {
+      hc *= getSubscriptionId().hashCode();
+    }
+
+    if (getUid() != null) {
+      hc += getUid().hashCode();
+    }
+
+    return hc;
+  }
+
+  @Override
+  protected void toStringSegment(final StringBuilder sb) {
+    super.toStringSegment(sb);
+    sb.append(", subscriptionId=");
+    sb.append(getSubscriptionId());
+    sb.append(", uid=");
+    sb.append(getUid());
+    sb.append(", endALastmod=");
+    sb.append(getEndALastmod());
+    sb.append(", endAEtag=");
+    sb.append(getEndAEtag());
+    sb.append(", endAFingerprint=");
+    sb.append(getEndAFingerprint());
+    sb.append(", endBLastmod=");
+    sb.append(getEndBLastmod());
+    sb.append(", endBEtag=");
+    sb.append(getEndBEtag());
+    sb.append(", endBFingerprint=");
+    sb.append(getEndBFingerprint());
+    sb.append(", lastSynch=");
+    sb.append(getLastSynch());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append("{");
+
+    toStringSegment(sb);
+    sb.append("}");
+
+    return sb.toString();
+  }
+}
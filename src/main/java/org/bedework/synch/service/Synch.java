@@ -24,6 +24,7 @@ import org.bedework.synch.SynchEngine;
 import org.apache.log4j.Logger;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.tool.hbm2ddl.SchemaExport;
+import org.hibernate.tool.hbm2ddl.SchemaUpdate;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -39,9 +40,16 @@ public class Synch implements SynchMBean {
 
   private SynchEngine syncher;
 
+  /* Millisecs before we retry a failed start - doubles up to the max */
+  private static final long minRestartWait = 10 * 1000;
+
+  private static final long maxRestartWait = 5 * 60 * 1000;
+
   private class ProcessorThread extends Thread {
     boolean showedTrace;
 
+    long restartWait = minRestartWait;
+
     /**
      * @param name - for the thread
      */
@@ -58,6 +66,7 @@ public class Synch implements SynchMBean {
 
             syncher = SynchEngine.getSyncher();
             syncher.start();
+            restartWait = minRestartWait;
           }
         } catch (Throwable t) {
           if (!showedTrace) {
@@ -66,6 +75,10 @@ public class Synch implements SynchMBean {
           } else {
             error(t.getMessage());
           }
+
+          // Try again - wait longer each time
+          syncher = null;
+          restartWait = Math.min(restartWait * 2, maxRestartWait);
         }
 
         if (running) {
@@ -73,8 +86,10 @@ public class Synch implements SynchMBean {
           try {
             Object o = new Object();
             synchronized (o) {
-              o.wait (10 * 1000);
+              o.wait(restartWait);
             }
+          } catch (InterruptedException ie) {
+            break;
           } catch (Throwable t) {
             error(t.getMessage());
           }
@@ -301,6 +316,33 @@ public class Synch implements SynchMBean {
     return result;
   }
 
+  @Override
+  public String schemaUpdate() {
+    String result = "Update complete: check logs";
+
+    try {
+      SchemaUpdate su = new SchemaUpdate(getConfiguration());
+
+      if (getDelimiter() != null) {
+        su.setDelimiter(getDelimiter());
+      }
+
+      su.setFormat(getFormat());
+      su.setHaltOnError(getHaltOnError());
+      su.setOutputFile(getSchemaOutFile());
+
+      su.execute(false, // script - causes write to System.out if true
+                 getExport());
+    } catch (Throwable t) {
+      error(t);
+      result = "Exception: " + t.getLocalizedMessage();
+    } finally {
+      export = false;
+    }
+
+    return result;
+  }
+
   @Override
   public synchronized List<String> restoreData() {
     List<String> infoLines = new ArrayList<String>();
@@ -437,6 +479,15 @@ public class Synch implements SynchMBean {
     return syncher.getStats();
   }
 
+  @Override
+  public String getStartupProgress() {
+    if (syncher == null) {
+      return "Not started";
+    }
+
+    return syncher.getStartupProgress();
+  }
+
   /* an example say's we need this  - we should probably implement some system
    * independent jmx support which will build this using introspection and/or lists
   public MBeanInfo getMBeanInfo() throws Exception {
@@ -495,7 +546,9 @@ public class Synch implements SynchMBean {
 
     running = false;
 
-    syncher.stop();
+    if (syncher != null) {
+      syncher.stop();
+    }
 
     processor.interrupt();
     try {
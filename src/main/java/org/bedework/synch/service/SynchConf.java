@@ -184,6 +184,420 @@ public class SynchConf extends ServiceMBeanSupport implements SynchConfMBean {
     return getConf().getPubKeys();
   }
 
+  /** millisecs over which overdue subscriptions are spread at startup - 0 for no spreading
+   *
+   * @param val
+   */
+  @Override
+  public void setStartupCatchupWindow(final long val) {
+    getConf().setStartupCatchupWindow(val);
+    update();
+  }
+
+  /**
+   * @return millisecs over which overdue subscriptions are spread at startup - 0 for no spreading
+   */
+  @Override
+  public long getStartupCatchupWindow() {
+    return getConf().getStartupCatchupWindow();
+  }
+
+  /** true to adapt the refresh delay of polled subscriptions to their change rate
+   *
+   * @param val
+   */
+  @Override
+  public void setAdaptiveRefresh(final boolean val) {
+    getConf().setAdaptiveRefresh(val);
+    update();
+  }
+
+  /**
+   * @return true to adapt the refresh delay of polled subscriptions to their change rate
+   */
+  @Override
+  public boolean getAdaptiveRefresh() {
+    return getConf().getAdaptiveRefresh();
+  }
+
+  /** upper bound in millisecs for adaptive refresh delays - 0 for no bound
+   *
+   * @param val
+   */
+  @Override
+  public void setMaxRefreshDelay(final long val) {
+    getConf().setMaxRefreshDelay(val);
+    update();
+  }
+
+  /**
+   * @return upper bound in millisecs for adaptive refresh delays - 0 for no bound
+   */
+  @Override
+  public long getMaxRefreshDelay() {
+    return getConf().getMaxRefreshDelay();
+  }
+
+  /** what to do with timer notifications when the queue is full
+   *
+   * @param val
+   */
+  @Override
+  public void setTimerAdmissionPolicy(final String val) {
+    getConf().setTimerAdmissionPolicy(val);
+    update();
+  }
+
+  /**
+   * @return what to do with timer notifications when the queue is full
+   */
+  @Override
+  public String getTimerAdmissionPolicy() {
+    return getConf().getTimerAdmissionPolicy();
+  }
+
+  /** what to do with callback notifications when the queue is full
+   *
+   * @param val
+   */
+  @Override
+  public void setCallbackAdmissionPolicy(final String val) {
+    getConf().setCallbackAdmissionPolicy(val);
+    update();
+  }
+
+  /**
+   * @return what to do with callback notifications when the queue is full
+   */
+  @Override
+  public String getCallbackAdmissionPolicy() {
+    return getConf().getCallbackAdmissionPolicy();
+  }
+
+  /** what to do with other internal notifications when the queue is full
+   *
+   * @param val
+   */
+  @Override
+  public void setInternalAdmissionPolicy(final String val) {
+    getConf().setInternalAdmissionPolicy(val);
+    update();
+  }
+
+  /**
+   * @return what to do with other internal notifications when the queue is full
+   */
+  @Override
+  public String getInternalAdmissionPolicy() {
+    return getConf().getInternalAdmissionPolicy();
+  }
+
+  /** true if each synch runs on its own (virtual where supported) thread
+   *
+   * @param val
+   */
+  @Override
+  public void setSynchThreads(final boolean val) {
+    getConf().setSynchThreads(val);
+    update();
+  }
+
+  /**
+   * @return true if each synch runs on its own (virtual where supported) thread
+   */
+  @Override
+  public boolean getSynchThreads() {
+    return getConf().getSynchThreads();
+  }
+
+  /** max synchs in progress when each synch runs on its own thread
+   *
+   * @param val
+   */
+  @Override
+  public void setMaxConcurrentSynchs(final int val) {
+    getConf().setMaxConcurrentSynchs(val);
+    update();
+  }
+
+  /**
+   * @return max synchs in progress when each synch runs on its own thread
+   */
+  @Override
+  public int getMaxConcurrentSynchs() {
+    return getConf().getMaxConcurrentSynchs();
+  }
+
+  /** max size the synchling pool grows to when busy
+   *
+   * @param val
+   */
+  @Override
+  public void setSynchlingPoolMaxSize(final int val) {
+    getConf().setSynchlingPoolMaxSize(val);
+    update();
+  }
+
+  /**
+   * @return max size the synchling pool grows to when busy
+   */
+  @Override
+  public int getSynchlingPoolMaxSize() {
+    return getConf().getSynchlingPoolMaxSize();
+  }
+
+  /** millisecs before spare synchlings are discarded
+   *
+   * @param val
+   */
+  @Override
+  public void setSynchlingIdleTimeout(final long val) {
+    getConf().setSynchlingIdleTimeout(val);
+    update();
+  }
+
+  /**
+   * @return millisecs before spare synchlings are discarded
+   */
+  @Override
+  public long getSynchlingIdleTimeout() {
+    return getConf().getSynchlingIdleTimeout();
+  }
+
+  /** number of subscriptions read at a time at startup
+   *
+   * @param val
+   */
+  @Override
+  public void setStartupPageSize(final int val) {
+    getConf().setStartupPageSize(val);
+    update();
+  }
+
+  /**
+   * @return number of subscriptions read at a time at startup
+   */
+  @Override
+  public int getStartupPageSize() {
+    return getConf().getStartupPageSize();
+  }
+
+  /** millisecs we wait for connectors to start - 0 or less for the default
+   *
+   * @param val
+   */
+  @Override
+  public void setConnectorStartupTimeout(final long val) {
+    getConf().setConnectorStartupTimeout(val);
+    update();
+  }
+
+  /**
+   * @return millisecs we wait for connectors to start
+   */
+  @Override
+  public long getConnectorStartupTimeout() {
+    return getConf().getConnectorStartupTimeout();
+  }
+
+  /** Number of partitions subscriptions are shared over between nodes. 0 for no cluster
+   *
+   * @param val
+   */
+  @Override
+  public void setClusterPartitions(final int val) {
+    getConf().setClusterPartitions(val);
+    update();
+  }
+
+  /**
+   * @return Number of partitions subscriptions are shared over between nodes. 0 for no cluster
+   */
+  @Override
+  public int getClusterPartitions() {
+    return getConf().getClusterPartitions();
+  }
+
+  /** Id of this node in a cluster. Generated if not set
+   *
+   * @param val
+   */
+  @Override
+  public void setClusterNodeId(final String val) {
+    getConf().setClusterNodeId(val);
+    update();
+  }
+
+  /**
+   * @return Id of this node in a cluster. Generated if not set
+   */
+  @Override
+  public String getClusterNodeId() {
+    return getConf().getClusterNodeId();
+  }
+
+  /** Millisecs a partition lease lasts without renewal
+   *
+   * @param val
+   */
+  @Override
+  public void setClusterLeaseDuration(final long val) {
+    getConf().setClusterLeaseDuration(val);
+    update();
+  }
+
+  /**
+   * @return Millisecs a partition lease lasts without renewal
+   */
+  @Override
+  public long getClusterLeaseDuration() {
+    return getConf().getClusterLeaseDuration();
+  }
+
+  /** Millisecs between polls of the db for due subscriptions. 0 to use the in-memory timer
+   *
+   * @param val
+   */
+  @Override
+  public void setDueQueuePollInterval(final long val) {
+    getConf().setDueQueuePollInterval(val);
+    update();
+  }
+
+  /**
+   * @return Millisecs between polls of the db for due subscriptions. 0 to use the in-memory timer
+   */
+  @Override
+  public long getDueQueuePollInterval() {
+    return getConf().getDueQueuePollInterval();
+  }
+
+  /** Number of due subscriptions read from the db at a time
+   *
+   * @param val
+   */
+  @Override
+  public void setDueQueueBatchSize(final int val) {
+    getConf().setDueQueueBatchSize(val);
+    update();
+  }
+
+  /**
+   * @return Number of due subscriptions read from the db at a time
+   */
+  @Override
+  public int getDueQueueBatchSize() {
+    return getConf().getDueQueueBatchSize();
+  }
+
+  /** Millisecs running synchs get to finish when stopping. 0 or less for the default
+   *
+   * @param val
+   */
+  @Override
+  public void setDrainTimeout(final long val) {
+    getConf().setDrainTimeout(val);
+    update();
+  }
+
+  /**
+   * @return Millisecs running synchs get to finish when stopping
+   */
+  @Override
+  public long getDrainTimeout() {
+    return getConf().getDrainTimeout();
+  }
+
+  /** Millisecs to wait for the warm-up before synchs are released
+   *
+   * @param val
+   */
+  @Override
+  public void setWarmUpTimeout(final long val) {
+    getConf().setWarmUpTimeout(val);
+    update();
+  }
+
+  /**
+   * @return Millisecs to wait for the warm-up before synchs are released
+   */
+  @Override
+  public long getWarmUpTimeout() {
+    return getConf().getWarmUpTimeout();
+  }
+
+  /** Daily local time windows for large full synchs, e.g. 01:00-05:00,22:00-23:30
+   *
+   * @param val
+   */
+  @Override
+  public void setMaintenanceWindows(final String val) {
+    getConf().setMaintenanceWindows(val);
+    update();
+  }
+
+  /**
+   * @return Daily local time windows for large full synchs, e.g. 01:00-05:00,22:00-23:30
+   */
+  @Override
+  public String getMaintenanceWindows() {
+    return getConf().getMaintenanceWindows();
+  }
+
+  /** Full synchs of subscriptions with at least this many items wait for a maintenance window
+   *
+   * @param val
+   */
+  @Override
+  public void setFullSynchSizeThreshold(final int val) {
+    getConf().setFullSynchSizeThreshold(val);
+    update();
+  }
+
+  /**
+   * @return Full synchs of subscriptions with at least this many items wait for a maintenance window
+   */
+  @Override
+  public int getFullSynchSizeThreshold() {
+    return getConf().getFullSynchSizeThreshold();
+  }
+
+  /** Most millisecs a full synch's expected cost can hold it back in the queue. 0 for first in first out
+   *
+   * @param val
+   */
+  @Override
+  public void setBulkAgingBound(final long val) {
+    getConf().setBulkAgingBound(val);
+    update();
+  }
+
+  /**
+   * @return Most millisecs a full synch's expected cost can hold it back in the queue. 0 for first in first out
+   */
+  @Override
+  public long getBulkAgingBound() {
+    return getConf().getBulkAgingBound();
+  }
+
+  /** true to list both ends of a synch at the same time
+   *
+   * @param val
+   */
+  @Override
+  public void setConcurrentEnds(final boolean val) {
+    getConf().setConcurrentEnds(val);
+    update();
+  }
+
+  /**
+   * @return true to list both ends of a synch at the same time
+   */
+  @Override
+  public boolean getConcurrentEnds() {
+    return getConf().getConcurrentEnds();
+  }
+
   /* *
    * @param val
    * /
@@ -127,6 +127,259 @@ public interface SynchConfMBean extends ServiceMBean {
    */
   public String getPubKeys();
 
+  /** millisecs over which overdue subscriptions are spread at startup - 0 for no spreading
+   *
+   * @param val
+   */
+  public void setStartupCatchupWindow(final long val);
+
+  /**
+   * @return millisecs over which overdue subscriptions are spread at startup - 0 for no spreading
+   */
+  public long getStartupCatchupWindow();
+
+  /** true to adapt the refresh delay of polled subscriptions to their change rate
+   *
+   * @param val
+   */
+  public void setAdaptiveRefresh(final boolean val);
+
+  /**
+   * @return true to adapt the refresh delay of polled subscriptions to their change rate
+   */
+  public boolean getAdaptiveRefresh();
+
+  /** upper bound in millisecs for adaptive refresh delays - 0 for no bound
+   *
+   * @param val
+   */
+  public void setMaxRefreshDelay(final long val);
+
+  /**
+   * @return upper bound in millisecs for adaptive refresh delays - 0 for no bound
+   */
+  public long getMaxRefreshDelay();
+
+  /** what to do with timer notifications when the queue is full
+   *
+   * @param val
+   */
+  public void setTimerAdmissionPolicy(final String val);
+
+  /**
+   * @return what to do with timer notifications when the queue is full
+   */
+  public String getTimerAdmissionPolicy();
+
+  /** what to do with callback notifications when the queue is full
+   *
+   * @param val
+   */
+  public void setCallbackAdmissionPolicy(final String val);
+
+  /**
+   * @return what to do with callback notifications when the queue is full
+   */
+  public String getCallbackAdmissionPolicy();
+
+  /** what to do with other internal notifications when the queue is full
+   *
+   * @param val
+   */
+  public void setInternalAdmissionPolicy(final String val);
+
+  /**
+   * @return what to do with other internal notifications when the queue is full
+   */
+  public String getInternalAdmissionPolicy();
+
+  /** true if each synch runs on its own (virtual where supported) thread
+   *
+   * @param val
+   */
+  public void setSynchThreads(final boolean val);
+
+  /**
+   * @return true if each synch runs on its own (virtual where supported) thread
+   */
+  public boolean getSynchThreads();
+
+  /** max synchs in progress when each synch runs on its own thread
+   *
+   * @param val
+   */
+  public void setMaxConcurrentSynchs(final int val);
+
+  /**
+   * @return max synchs in progress when each synch runs on its own thread
+   */
+  public int getMaxConcurrentSynchs();
+
+  /** max size the synchling pool grows to when busy
+   *
+   * @param val
+   */
+  public void setSynchlingPoolMaxSize(final int val);
+
+  /**
+   * @return max size the synchling pool grows to when busy
+   */
+  public int getSynchlingPoolMaxSize();
+
+  /** millisecs before spare synchlings are discarded
+   *
+   * @param val
+   */
+  public void setSynchlingIdleTimeout(final long val);
+
+  /**
+   * @return millisecs before spare synchlings are discarded
+   */
+  public long getSynchlingIdleTimeout();
+
+  /** number of subscriptions read at a time at startup
+   *
+   * @param val
+   */
+  public void setStartupPageSize(final int val);
+
+  /**
+   * @return number of subscriptions read at a time at startup
+   */
+  public int getStartupPageSize();
+
+  /** millisecs we wait for connectors to start - 0 or less for the default
+   *
+   * @param val
+   */
+  public void setConnectorStartupTimeout(final long val);
+
+  /**
+   * @return millisecs we wait for connectors to start
+   */
+  public long getConnectorStartupTimeout();
+
+  /** Number of partitions subscriptions are shared over between nodes. 0 for no cluster
+   *
+   * @param val
+   */
+  public void setClusterPartitions(final int val);
+
+  /**
+   * @return Number of partitions subscriptions are shared over between nodes. 0 for no cluster
+   */
+  public int getClusterPartitions();
+
+  /** Id of this node in a cluster. Generated if not set
+   *
+   * @param val
+   */
+  public void setClusterNodeId(final String val);
+
+  /**
+   * @return Id of this node in a cluster. Generated if not set
+   */
+  public String getClusterNodeId();
+
+  /** Millisecs a partition lease lasts without renewal
+   *
+   * @param val
+   */
+  public void setClusterLeaseDuration(final long val);
+
+  /**
+   * @return Millisecs a partition lease lasts without renewal
+   */
+  public long getClusterLeaseDuration();
+
+  /** Millisecs between polls of the db for due subscriptions. 0 to use the in-memory timer
+   *
+   * @param val
+   */
+  public void setDueQueuePollInterval(final long val);
+
+  /**
+   * @return Millisecs between polls of the db for due subscriptions. 0 to use the in-memory timer
+   */
+  public long getDueQueuePollInterval();
+
+  /** Number of due subscriptions read from the db at a time
+   *
+   * @param val
+   */
+  public void setDueQueueBatchSize(final int val);
+
+  /**
+   * @return Number of due subscriptions read from the db at a time
+   */
+  public int getDueQueueBatchSize();
+
+  /** Millisecs running synchs get to finish when stopping. 0 or less for the default
+   *
+   * @param val
+   */
+  public void setDrainTimeout(final long val);
+
+  /**
+   * @return Millisecs running synchs get to finish when stopping
+   */
+  public long getDrainTimeout();
+
+  /** Millisecs to wait for the warm-up before synchs are released
+   *
+   * @param val
+   */
+  public void setWarmUpTimeout(final long val);
+
+  /**
+   * @return Millisecs to wait for the warm-up before synchs are released
+   */
+  public long getWarmUpTimeout();
+
+  /** Daily local time windows for large full synchs, e.g. 01:00-05:00,22:00-23:30
+   *
+   * @param val
+   */
+  public void setMaintenanceWindows(final String val);
+
+  /**
+   * @return Daily local time windows for large full synchs, e.g. 01:00-05:00,22:00-23:30
+   */
+  public String getMaintenanceWindows();
+
+  /** Full synchs of subscriptions with at least this many items wait for a maintenance window
+   *
+   * @param val
+   */
+  public void setFullSynchSizeThreshold(final int val);
+
+  /**
+   * @return Full synchs of subscriptions with at least this many items wait for a maintenance window
+   */
+  public int getFullSynchSizeThreshold();
+
+  /** Most millisecs a full synch's expected cost can hold it back in the queue. 0 for first in first out
+   *
+   * @param val
+   */
+  public void setBulkAgingBound(final long val);
+
+  /**
+   * @return Most millisecs a full synch's expected cost can hold it back in the queue. 0 for first in first out
+   */
+  public long getBulkAgingBound();
+
+  /** true to list both ends of a synch at the same time
+   *
+   * @param val
+   */
+  public void setConcurrentEnds(final boolean val);
+
+  /**
+   * @return true to list both ends of a synch at the same time
+   */
+  public boolean getConcurrentEnds();
+
   /* *
    * @param val
    * /
@@ -55,6 +55,12 @@ public interface SynchMBean {
    */
   public List<Stat> getStats();
 
+  /** Progress spreading subscriptions overdue at startup
+   *
+   * @return description of progress
+   */
+  public String getStartupProgress();
+
   /* ========================================================================
    * Dump/restore
    * ======================================================================== */
@@ -201,6 +207,17 @@ public interface SynchMBean {
    */
   public String schema();
 
+  /** Bring an existing schema up to date with the current mappings, adding
+   * missing tables and columns. Nothing is dropped and existing rows are
+   * kept, so new columns appear as nulls. If export is set the changes are
+   * applied to the db, otherwise they are only written to the output file.
+   *
+   * The export flag will be reset to false after this, whatever the result.
+   *
+   * @return Completion message
+   */
+  public String schemaUpdate();
+
   /** Restores the data from the DataIn path. Will not restore if there appears
    * to be any data already in the db.
    *
@@ -0,0 +1,83 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Test the adaptive refresh calculations
+ *
+ */
+public class AdaptiveRefreshTest {
+  private static final long own = 60 * 1000;
+
+  private static final long max = 24 * 60 * 60 * 1000;
+
+  @Test
+  public void testQuietStretchesToMax() {
+    long delay = own;
+    double rate = 0;
+
+    for (int i = 0; i < 100; i++) {
+      rate = AdaptiveRefresh.rate(String.valueOf(rate), 0);
+      delay = AdaptiveRefresh.delay(delay, rate, own, max);
+    }
+
+    assertEquals(max, delay);
+  }
+
+  /* Never below the subscription's own delay however busy it is */
+  @Test
+  public void testBusyReturnsToOwnDelay() {
+    assertEquals(own, AdaptiveRefresh.delay(max, 50, own, max));
+    assertEquals(own * 2, AdaptiveRefresh.delay(own * 4, 2, own, max));
+    assertEquals(own, AdaptiveRefresh.delay(own + 1000, 2, own, max));
+  }
+
+  /* One change after a long quiet spell doesn't undo what we learned */
+  @Test
+  public void testSingleChangeIsDamped() {
+    double rate = AdaptiveRefresh.rate("0.0", 1);
+
+    assertTrue(rate < 1);
+    assertEquals(own * 8, AdaptiveRefresh.delay(own * 8, rate, own, max));
+  }
+
+  @Test
+  public void testRateDecays() {
+    double rate = AdaptiveRefresh.rate(null, 20);
+
+    assertEquals(20, (long)rate);
+
+    rate = AdaptiveRefresh.rate(String.valueOf(rate), 0);
+    assertEquals(10, (long)rate);
+
+    rate = AdaptiveRefresh.rate(String.valueOf(rate), 0);
+    assertEquals(5, (long)rate);
+
+    assertEquals(3, (long)AdaptiveRefresh.rate("junk", 3));
+  }
+
+  @Test
+  public void testNoMax() {
+    assertEquals(own * 3, AdaptiveRefresh.delay(own * 2, 0, own, 0));
+  }
+}
@@ -0,0 +1,223 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.db.Subscription;
+import org.bedework.synch.db.SubscriptionConnectorInfo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Test the per connector limits
+ *
+ */
+public class ConnectorLimitsTest {
+  @Test
+  public void testNoLimits() throws Throwable {
+    ConnectorLimits cl = new ConnectorLimits();
+    Subscription sub = sub("s1", "a", "b");
+
+    assertTrue(cl.acquire(sub).isEmpty());
+    assertTrue(cl.tryAcquire(sub).isEmpty());
+    assertTrue(cl.concurrentEnds(sub));
+  }
+
+  @Test
+  public void testTryAcquire() {
+    ConnectorLimits cl = new ConnectorLimits();
+    Subscription sub = sub("s1", "a", "b");
+
+    cl.setLimit("a", 1);
+
+    List<Semaphore> held = cl.tryAcquire(sub);
+    assertNotNull(held);
+    assertEquals(1, held.size());
+
+    assertNull(cl.tryAcquire(sub("s2", "a", "c")));
+
+    // Unlimited connector is still free
+    assertNotNull(cl.tryAcquire(sub("s3", "b", "c")));
+
+    cl.release(held);
+    assertNotNull(cl.tryAcquire(sub));
+  }
+
+  /* A failed try doesn't keep the permits it did get */
+  @Test
+  public void testTryAcquireReleasesPartial() {
+    ConnectorLimits cl = new ConnectorLimits();
+
+    cl.setLimit("a", 1);
+    cl.setLimit("b", 1);
+
+    List<Semaphore> heldB = cl.tryAcquire(sub("s1", "b", "c"));
+    assertNotNull(heldB);
+
+    assertNull(cl.tryAcquire(sub("s2", "a", "b")));
+
+    // a was given back
+    assertNotNull(cl.tryAcquire(sub("s3", "a", "c")));
+  }
+
+  /* Both ends on one limited connector take a single permit */
+  @Test
+  public void testSameConnectorBothEnds() {
+    ConnectorLimits cl = new ConnectorLimits();
+    Subscription sub = sub("s1", "a", "a");
+
+    cl.setLimit("a", 2);
+
+    assertEquals(1, cl.tryAcquire(sub).size());
+    assertFalse(cl.concurrentEnds(sub));
+  }
+
+  @Test
+  public void testGrowWhileHeld() {
+    ConnectorLimits cl = new ConnectorLimits();
+    Subscription sub = sub("s1", "a", "b");
+
+    cl.setLimit("a", 1);
+    assertNotNull(cl.tryAcquire(sub));
+
+    cl.setLimit("a", 2);
+    assertNotNull(cl.tryAcquire(sub));
+    assertNull(cl.tryAcquire(sub));
+  }
+
+  /* Shrinking counts the synchs already holding permits */
+  @Test
+  public void testShrinkWhileHeld() {
+    ConnectorLimits cl = new ConnectorLimits();
+    Subscription sub = sub("s1", "a", "b");
+
+    cl.setLimit("a", 2);
+    List<Semaphore> h1 = cl.tryAcquire(sub);
+    List<Semaphore> h2 = cl.tryAcquire(sub);
+
+    cl.setLimit("a", 1);
+
+    cl.release(h1);
+    assertNull(cl.tryAcquire(sub));
+
+    cl.release(h2);
+    assertNotNull(cl.tryAcquire(sub));
+    assertNull(cl.tryAcquire(sub));
+  }
+
+  @Test(timeout = 10000)
+  public void testAcquireWaits() throws Throwable {
+    final ConnectorLimits cl = new ConnectorLimits();
+    final Subscription sub = sub("s1", "a", "b");
+    final CountDownLatch got = new CountDownLatch(1);
+
+    cl.setLimit("a", 1);
+    List<Semaphore> held = cl.acquire(sub);
+
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          cl.acquire(sub);
+          got.countDown();
+        } catch (InterruptedException ie) {
+        }
+      }
+    };
+
+    t.start();
+    Thread.sleep(100);
+    assertEquals(1, got.getCount());
+
+    cl.release(held);
+    got.await();
+    t.join();
+  }
+
+  /* Subscriptions using the same pair of connectors in opposite directions
+   * must not deadlock.
+   */
+  @Test(timeout = 60000)
+  public void testNoDeadlock() throws Throwable {
+    final ConnectorLimits cl = new ConnectorLimits();
+    final Subscription ab = sub("s1", "a", "b");
+    final Subscription ba = sub("s2", "b", "a");
+    final AtomicInteger done = new AtomicInteger();
+    final int perThread = 5000;
+
+    cl.setLimit("a", 1);
+    cl.setLimit("b", 1);
+
+    List<Thread> ts = new ArrayList<Thread>();
+
+    for (int i = 0; i < 4; i++) {
+      final Subscription sub = ((i % 2) == 0) ? ab : ba;
+
+      ts.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < perThread; j++) {
+              List<Semaphore> held = cl.acquire(sub);
+              done.incrementAndGet();
+              cl.release(held);
+            }
+          } catch (InterruptedException ie) {
+          }
+        }
+      });
+    }
+
+    for (Thread t: ts) {
+      t.start();
+    }
+
+    for (Thread t: ts) {
+      t.join();
+    }
+
+    assertEquals(4 * perThread, done.get());
+  }
+
+  private static Subscription sub(final String id,
+                                  final String aid,
+                                  final String bid) {
+    Subscription sub = new Subscription(id);
+
+    SubscriptionConnectorInfo a = new SubscriptionConnectorInfo();
+    a.setConnectorId(aid);
+    sub.setEndAConnectorInfo(a);
+
+    SubscriptionConnectorInfo b = new SubscriptionConnectorInfo();
+    b.setConnectorId(bid);
+    sub.setEndBConnectorInfo(b);
+
+    return sub;
+  }
+}
@@ -0,0 +1,139 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.cnctrs.ConnectorInstance.ItemInfo;
+import org.bedework.synch.db.SynchItemState;
+import org.bedework.synch.wsmessages.SynchEndType;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Test what synchs record of the items at each end
+ *
+ */
+public class EndStatesTest {
+  private static final String uid = "item1";
+
+  /* A synch copies the item from A to B. Nothing changes and the next synch
+   * finds nothing to fetch or update at either end.
+   */
+  @Test
+  public void testNoChangeNextSynch() {
+    EndStates a = end(SynchEndType.A, "20120101T000000Z");
+    EndStates b = end(SynchEndType.B, null);
+
+    a.fetched(uid, "a-token", "fp");
+    b.wrote(uid, "20120102T000000Z", "b-token", "fp");
+
+    SynchItemState st = new SynchItemState("sub1", uid);
+
+    assertTrue(a.record(st, uid, false));
+    assertTrue(b.record(st, uid, false));
+
+    assertEquals("20120101T000000Z", st.getEndALastmod());
+    assertEquals("20120102T000000Z", st.getEndBLastmod());
+    assertEquals("b-token", st.getEndBEtag());
+
+    /* Next synch - both ends list the item as we left it */
+    a = end(SynchEndType.A, "20120101T000000Z");
+    b = end(SynchEndType.B, "20120102T000000Z");
+
+    a.load(st);
+    b.load(st);
+
+    assertFalse(EndStates.changedSince(a.items.get(uid)));
+    assertFalse(EndStates.changedSince(b.items.get(uid)));
+
+    assertFalse(a.record(st, uid, false));
+    assertFalse(b.record(st, uid, false));
+  }
+
+  /* A connector which gives no change tokens still has its lastmods kept so
+   * the fingerprint check can skip the update.
+   */
+  @Test
+  public void testNoChangeToken() {
+    EndStates a = end(SynchEndType.A, "20120101T000000Z");
+    SynchItemState st = new SynchItemState("sub1", uid);
+
+    a.fetched(uid, null, "fp");
+    a.record(st, uid, false);
+
+    assertEquals("20120101T000000Z", st.getEndALastmod());
+
+    a = end(SynchEndType.A, "20120101T000000Z");
+    a.load(st);
+
+    assertFalse(a.changedAt(uid));
+    assertEquals("fp", a.lastFingerprints.get(uid));
+  }
+
+  /* If we can't tell what a write left the next synch looks at the item */
+  @Test
+  public void testUnknownWrite() {
+    EndStates b = end(SynchEndType.B, null);
+    SynchItemState st = new SynchItemState("sub1", uid);
+
+    b.wrote(uid, null, null, "fp");
+    b.record(st, uid, false);
+
+    b = end(SynchEndType.B, "20120102T000000Z");
+    b.load(st);
+
+    assertTrue(b.changedAt(uid));
+  }
+
+  /* An item changed at the end is seen as changed */
+  @Test
+  public void testChanged() {
+    EndStates a = end(SynchEndType.A, "20120101T000000Z");
+    SynchItemState st = new SynchItemState("sub1", uid);
+
+    a.record(st, uid, false);
+
+    a = end(SynchEndType.A, "20120103T000000Z");
+    a.load(st);
+
+    assertTrue(a.changedAt(uid));
+    assertTrue(a.record(st, uid, false));
+    assertEquals("20120103T000000Z", st.getEndALastmod());
+  }
+
+  /* Lists the item with the lastmod - null for not there */
+  private static EndStates end(final SynchEndType end,
+                               final String lastmod) {
+    EndStates es = new EndStates(end);
+    Map<String, ItemInfo> items = new HashMap<String, ItemInfo>();
+
+    if (lastmod != null) {
+      items.put(uid, new ItemInfo(uid, lastmod, null));
+    }
+
+    es.items = items;
+
+    return es;
+  }
+}
@@ -0,0 +1,275 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.exception.SynchException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Test the fetch and apply pipeline
+ *
+ */
+public class FetchPipelineTest {
+  private final ExecutorService exec = Executors.newCachedThreadPool();
+
+  /* Records what happened. A null executor means no other thread. */
+  private class Pipeline extends FetchPipeline<Integer, Integer> {
+    final List<String> events =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    final List<Integer> applied =
+        Collections.synchronizedList(new ArrayList<Integer>());
+
+    final AtomicInteger fetchedCt = new AtomicInteger();
+
+    final ExecutorService executor;
+
+    Thread caller = Thread.currentThread();
+
+    volatile boolean fetchedOnCaller;
+
+    volatile int maxAhead;
+
+    int failFetch = -1;
+
+    int failApply = -1;
+
+    int cancelAfter = Integer.MAX_VALUE;
+
+    long applyDelay;
+
+    Future<Object> fetcher;
+
+    Pipeline(final int depth, final ExecutorService executor) {
+      super(depth);
+      this.executor = executor;
+    }
+
+    @Override
+    Integer fetch(final Integer batch) throws SynchException {
+      if (batch == failFetch) {
+        throw new SynchException("fetch " + batch);
+      }
+
+      if (Thread.currentThread() == caller) {
+        fetchedOnCaller = true;
+      }
+
+      events.add("f" + batch);
+      int ahead = fetchedCt.incrementAndGet() - applied.size();
+      maxAhead = Math.max(maxAhead, ahead);
+
+      return batch;
+    }
+
+    @Override
+    void apply(final Integer fetched) throws SynchException {
+      assertTrue(Thread.currentThread() == caller);
+
+      if (fetched == failApply) {
+        throw new SynchException("apply " + fetched);
+      }
+
+      if (applyDelay > 0) {
+        try {
+          Thread.sleep(applyDelay);
+        } catch (InterruptedException ie) {
+          throw new SynchException(ie);
+        }
+      }
+
+      events.add("a" + fetched);
+      applied.add(fetched);
+    }
+
+    @Override
+    Future<Object> start(final Callable<Object> call) {
+      if (executor == null) {
+        return null;
+      }
+
+      fetcher = executor.submit(call);
+
+      return fetcher;
+    }
+
+    @Override
+    boolean cancelled() {
+      return applied.size() >= cancelAfter;
+    }
+  }
+
+  @After
+  public void tearDown() {
+    exec.shutdownNow();
+  }
+
+  @Test
+  public void testSequentialWithoutThread() throws Throwable {
+    Pipeline p = new Pipeline(2, null);
+
+    p.run(batches(3));
+
+    assertEquals(batches(3), p.applied);
+    assertEquals("[f0, a0, f1, a1, f2, a2]", p.events.toString());
+  }
+
+  @Test(timeout = 10000)
+  public void testAppliedInOrderOnCaller() throws Throwable {
+    Pipeline p = new Pipeline(2, exec);
+
+    p.run(batches(50));
+
+    assertEquals(batches(50), p.applied);
+    assertFalse(p.fetchedOnCaller);
+  }
+
+  /* A single batch is not worth another thread */
+  @Test
+  public void testSingleBatch() throws Throwable {
+    Pipeline p = new Pipeline(2, exec);
+
+    p.run(batches(1));
+
+    assertEquals(batches(1), p.applied);
+    assertTrue(p.fetcher == null);
+  }
+
+  /* The next batch is fetched while the current one is applied */
+  @Test(timeout = 10000)
+  public void testFetchOverlapsApply() throws Throwable {
+    final CountDownLatch secondFetched = new CountDownLatch(1);
+    final List<Boolean> overlapped = new ArrayList<Boolean>();
+
+    Pipeline p = new Pipeline(2, exec) {
+      @Override
+      Integer fetch(final Integer batch) throws SynchException {
+        Integer res = super.fetch(batch);
+
+        if (batch == 1) {
+          secondFetched.countDown();
+        }
+
+        return res;
+      }
+
+      @Override
+      void apply(final Integer fetched) throws SynchException {
+        if (fetched == 0) {
+          try {
+            overlapped.add(secondFetched.await(5, TimeUnit.SECONDS));
+          } catch (InterruptedException ie) {
+            throw new SynchException(ie);
+          }
+        }
+
+        super.apply(fetched);
+      }
+    };
+
+    p.run(batches(2));
+
+    assertEquals(Collections.singletonList(Boolean.TRUE), overlapped);
+  }
+
+  /* A slow apply holds the fetcher back */
+  @Test(timeout = 10000)
+  public void testDepthBound() throws Throwable {
+    Pipeline p = new Pipeline(2, exec);
+    p.applyDelay = 10;
+
+    p.run(batches(20));
+
+    assertEquals(batches(20), p.applied);
+
+    /* depth waiting, one being offered and one being applied */
+    assertTrue("ahead " + p.maxAhead, p.maxAhead <= 4);
+  }
+
+  /* Batches before a failed fetch are applied then the failure thrown */
+  @Test(timeout = 10000)
+  public void testFetchFailure() throws Throwable {
+    Pipeline p = new Pipeline(2, exec);
+    p.failFetch = 3;
+
+    try {
+      p.run(batches(10));
+      fail("Expected exception");
+    } catch (SynchException se) {
+      assertEquals("fetch 3", se.getMessage());
+    }
+
+    assertEquals(batches(3), p.applied);
+  }
+
+  /* A failed apply stops the fetcher */
+  @Test(timeout = 10000)
+  public void testApplyFailureStopsFetcher() throws Throwable {
+    Pipeline p = new Pipeline(1, exec);
+    p.failApply = 2;
+
+    try {
+      p.run(batches(100));
+      fail("Expected exception");
+    } catch (SynchException se) {
+      assertEquals("apply 2", se.getMessage());
+    }
+
+    assertTrue(p.fetcher.isDone());
+    assertTrue(p.fetchedCt.get() < 100);
+  }
+
+  @Test(timeout = 10000)
+  public void testCancelled() throws Throwable {
+    Pipeline p = new Pipeline(2, exec);
+    p.cancelAfter = 5;
+
+    p.run(batches(100));
+
+    assertEquals(batches(5), p.applied);
+    assertTrue(p.fetcher.isDone());
+  }
+
+  private static List<Integer> batches(final int num) {
+    List<Integer> res = new ArrayList<Integer>();
+
+    for (int i = 0; i < num; i++) {
+      res.add(i);
+    }
+
+    return res;
+  }
+}
@@ -0,0 +1,186 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.Notification.NotificationItem;
+import org.bedework.synch.Notification.NotificationItem.ActionType;
+import org.bedework.synch.NotificationAdmission.Policy;
+import org.bedework.synch.NotificationAdmission.Result;
+import org.bedework.synch.NotificationAdmission.Source;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Test the admission policies
+ *
+ */
+public class NotificationAdmissionTest {
+  private NotificationQueue queue;
+
+  private NotificationRetryQueue retryQueue;
+
+  private NotificationAdmission admission;
+
+  @Before
+  public void setUp() {
+    queue = new NotificationQueue(1);
+    retryQueue = new NotificationRetryQueue();
+    retryQueue.start(queue);
+    admission = new NotificationAdmission(queue, retryQueue);
+  }
+
+  @After
+  public void tearDown() {
+    admission.stop();
+    retryQueue.stop();
+  }
+
+  @Test
+  public void testDefaults() {
+    assertEquals(Policy.dropDuplicate, admission.getPolicy(Source.timer));
+    assertEquals(Policy.block, admission.getPolicy(Source.callback));
+    assertEquals(Policy.spill, admission.getPolicy(Source.internal));
+  }
+
+  @Test
+  public void testInvalidPolicyIgnored() {
+    admission.setPolicy(Source.timer, "nonsense");
+    assertEquals(Policy.dropDuplicate, admission.getPolicy(Source.timer));
+
+    admission.setPolicy(Source.timer, "reject");
+    assertEquals(Policy.reject, admission.getPolicy(Source.timer));
+  }
+
+  @Test
+  public void testReject() {
+    admission.setPolicy(Source.timer, Policy.reject);
+
+    assertEquals(Result.queued, admission.admit(full("s1"), Source.timer));
+    assertEquals(Result.rejected, admission.admit(full("s2"), Source.timer));
+  }
+
+  @Test
+  public void testDropDuplicate() {
+    admission.setPolicy(Source.timer, Policy.dropDuplicate);
+
+    assertEquals(Result.queued, admission.admit(full("s1"), Source.timer));
+    assertEquals(Result.duplicate, admission.admit(full("s1"), Source.timer));
+    assertEquals(Result.rejected, admission.admit(full("s2"), Source.timer));
+  }
+
+  /* Spilled notifications reach the queue once there is space */
+  @Test(timeout = 10000)
+  public void testSpill() throws Throwable {
+    Notification<NotificationItem> n2 = full("s2");
+
+    assertEquals(Result.queued, admission.admit(full("s1"), Source.internal));
+    assertEquals(Result.spilled, admission.admit(n2, Source.internal));
+
+    queue.take();
+
+    assertSame(n2, queue.take());
+  }
+
+  @Test(timeout = 20000)
+  public void testBlockWaitsForSpace() throws Throwable {
+    final AtomicReference<Result> res = new AtomicReference<Result>();
+
+    assertEquals(Result.queued, admission.admit(full("s1"), Source.callback));
+
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        res.set(admission.admit(full("s2"), Source.callback));
+      }
+    };
+
+    t.start();
+    Thread.sleep(100);
+    assertNull(res.get());
+
+    queue.take();
+    t.join();
+
+    assertEquals(Result.queued, res.get());
+  }
+
+  @Test(timeout = 20000)
+  public void testStopReleasesBlocked() throws Throwable {
+    final AtomicReference<Result> res = new AtomicReference<Result>();
+
+    assertEquals(Result.queued, admission.admit(full("s1"), Source.callback));
+
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        res.set(admission.admit(full("s2"), Source.callback));
+      }
+    };
+
+    t.start();
+    Thread.sleep(100);
+
+    admission.stop();
+    t.join();
+
+    assertEquals(Result.rejected, res.get());
+  }
+
+  /* An interrupted wait gives up and leaves the thread interrupted */
+  @Test(timeout = 20000)
+  public void testBlockInterrupted() throws Throwable {
+    final AtomicReference<Result> res = new AtomicReference<Result>();
+    final AtomicReference<Boolean> interrupted = new AtomicReference<Boolean>();
+
+    assertEquals(Result.queued, admission.admit(full("s1"), Source.callback));
+
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        res.set(admission.admit(full("s2"), Source.callback));
+        interrupted.set(isInterrupted());
+      }
+    };
+
+    t.start();
+    Thread.sleep(100);
+
+    t.interrupt();
+    t.join();
+
+    assertEquals(Result.rejected, res.get());
+    assertTrue(interrupted.get());
+  }
+
+  private static Notification<NotificationItem> full(final String subid) {
+    Notification<NotificationItem> n = new Notification<NotificationItem>(subid);
+
+    n.addNotificationItem(new NotificationItem(ActionType.FullSynch));
+
+    return n;
+  }
+}
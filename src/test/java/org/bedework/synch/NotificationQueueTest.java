@@ -0,0 +1,247 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.Notification.NotificationItem;
+import org.bedework.synch.Notification.NotificationItem.ActionType;
+import org.bedework.synch.NotificationQueue.Lane;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Test the lanes of the notification input queue
+ *
+ */
+public class NotificationQueueTest {
+  @Test
+  public void testLanes() {
+    assertEquals(Lane.bulk, NotificationQueue.getLane(note("s1", ActionType.FullSynch)));
+    assertEquals(Lane.interactive, NotificationQueue.getLane(note("s1", ActionType.NewSubscription)));
+    assertEquals(Lane.push, NotificationQueue.getLane(itemChange("s1", "u1")));
+  }
+
+  /* Lanes are served by weight so bulk work can't starve the rest */
+  @Test
+  public void testWeightedRoundRobin() {
+    NotificationQueue q = new NotificationQueue(100);
+
+    for (int i = 0; i < 20; i++) {
+      assertTrue(q.offer(note("bulk" + i, ActionType.FullSynch)));
+      assertTrue(q.offer(itemChange("push" + i, "u")));
+    }
+
+    int push = 0;
+    int bulk = 0;
+
+    for (int i = 0; i < Lane.push.getWeight() + Lane.bulk.getWeight(); i++) {
+      if (NotificationQueue.getLane(q.poll()) == Lane.push) {
+        push++;
+      } else {
+        bulk++;
+      }
+    }
+
+    assertEquals(Lane.push.getWeight(), push);
+    assertEquals(Lane.bulk.getWeight(), bulk);
+  }
+
+  /* A full bulk lane doesn't stop the other lanes */
+  @Test
+  public void testLaneCapacity() {
+    NotificationQueue q = new NotificationQueue(2);
+
+    assertTrue(q.offer(note("s1", ActionType.FullSynch)));
+    assertTrue(q.offer(note("s2", ActionType.FullSynch)));
+    assertFalse(q.offer(note("s3", ActionType.FullSynch)));
+
+    assertTrue(q.offer(itemChange("s4", "u1")));
+    assertEquals(3, q.size());
+  }
+
+  @Test
+  public void testFullSynchesMerged() {
+    NotificationQueue q = new NotificationQueue(10);
+
+    assertTrue(q.offer(note("s1", ActionType.FullSynch)));
+    assertTrue(q.isDuplicate(note("s1", ActionType.FullSynch)));
+    assertTrue(q.offer(note("s1", ActionType.FullSynch)));
+
+    assertEquals(1, q.size());
+
+    q.poll();
+    assertFalse(q.hasPendingFullSynch("s1"));
+  }
+
+  /* Item changes are covered by a queued full synch */
+  @Test
+  public void testItemChangesAbsorbed() {
+    NotificationQueue q = new NotificationQueue(10);
+
+    assertTrue(q.offer(itemChange("s1", "u1")));
+    assertTrue(q.offer(itemChange("s2", "u1")));
+
+    Notification<NotificationItem> full = note("s1", ActionType.FullSynch);
+    assertTrue(q.offer(full));
+
+    // s1 change went, s2 change stays
+    assertEquals(2, q.size());
+
+    assertTrue(q.offer(itemChange("s1", "u2")));
+    assertEquals(2, q.size());
+    assertEquals(1, q.size(Lane.push));
+  }
+
+  @Test(timeout = 10000)
+  public void testTakeWaitsForOffer() throws Throwable {
+    final NotificationQueue q = new NotificationQueue(10);
+    final Notification<NotificationItem> n = note("s1", ActionType.FullSynch);
+
+    assertNull(q.poll(50, TimeUnit.MILLISECONDS));
+
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+          q.put(n);
+        } catch (InterruptedException ie) {
+        }
+      }
+    };
+
+    t.start();
+
+    assertSame(n, q.take());
+    t.join();
+  }
+
+  /* Producers blocked on a full lane and consumers racing. Nothing is lost
+   * or handed out twice.
+   */
+  @Test(timeout = 60000)
+  public void testConcurrentProducersAndConsumers() throws Throwable {
+    final NotificationQueue q = new NotificationQueue(16);
+    final int producers = 4;
+    final int perProducer = 5000;
+    final List<Notification<NotificationItem>> taken =
+        Collections.synchronizedList(new ArrayList<Notification<NotificationItem>>());
+    final AtomicInteger remaining = new AtomicInteger(producers * perProducer);
+    final CountDownLatch go = new CountDownLatch(1);
+
+    List<Thread> ts = new ArrayList<Thread>();
+
+    for (int p = 0; p < producers; p++) {
+      final int pnum = p;
+
+      ts.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            go.await();
+
+            for (int i = 0; i < perProducer; i++) {
+              // Unique uids so nothing is merged or absorbed
+              q.put(itemChange("p" + pnum, "u" + i));
+            }
+          } catch (InterruptedException ie) {
+          }
+        }
+      });
+    }
+
+    for (int c = 0; c < 3; c++) {
+      ts.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            go.await();
+
+            while (remaining.get() > 0) {
+              Notification<NotificationItem> n =
+                  q.poll(10, TimeUnit.MILLISECONDS);
+
+              if (n != null) {
+                taken.add(n);
+                remaining.decrementAndGet();
+              }
+            }
+          } catch (InterruptedException ie) {
+          }
+        }
+      });
+    }
+
+    for (Thread t: ts) {
+      t.start();
+    }
+
+    go.countDown();
+
+    for (Thread t: ts) {
+      t.join();
+    }
+
+    assertEquals(producers * perProducer, taken.size());
+    assertEquals(producers * perProducer, identityCount(taken));
+    assertEquals(0, q.size());
+  }
+
+  private static int identityCount(final List<Notification<NotificationItem>> notes) {
+    Set<Notification<NotificationItem>> s =
+        Collections.newSetFromMap(
+            new IdentityHashMap<Notification<NotificationItem>, Boolean>());
+
+    s.addAll(notes);
+
+    return s.size();
+  }
+
+  private static Notification<NotificationItem> note(final String subid,
+                                                     final ActionType action) {
+    Notification<NotificationItem> n = new Notification<NotificationItem>(subid);
+
+    n.addNotificationItem(new NotificationItem(action));
+
+    return n;
+  }
+
+  private static Notification<NotificationItem> itemChange(final String subid,
+                                                           final String uid) {
+    Notification<NotificationItem> n = new Notification<NotificationItem>(subid);
+
+    n.addNotificationItem(new NotificationItem(ActionType.ModifiedEvent,
+                                               null, uid));
+
+    return n;
+  }
+}
@@ -0,0 +1,166 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.Notification.NotificationItem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Test the retry delay queue
+ *
+ */
+public class NotificationRetryQueueTest {
+  private NotificationRetryQueue rq;
+
+  private BlockingQueue<Notification<NotificationItem>> in;
+
+  @Before
+  public void setUp() {
+    rq = new NotificationRetryQueue();
+    in = new LinkedBlockingQueue<Notification<NotificationItem>>();
+    rq.start(in);
+  }
+
+  @After
+  public void tearDown() {
+    rq.stop();
+  }
+
+  @Test
+  public void testRetryAfterDelay() throws Throwable {
+    Notification<NotificationItem> n = note();
+
+    long start = System.currentTimeMillis();
+    assertTrue(rq.retry(n));
+
+    assertSame(n, in.poll(5, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() - start >=
+               NotificationRetryQueue.baseDelay - 50);
+    assertEquals(1, n.getAttempts());
+  }
+
+  @Test
+  public void testDroppedAfterMaxAttempts() throws Throwable {
+    Notification<NotificationItem> n = note();
+
+    for (int i = 1; i < NotificationRetryQueue.maxAttempts; i++) {
+      n.incAttempts();
+    }
+
+    assertFalse(rq.retry(n));
+    assertNull(in.poll(NotificationRetryQueue.baseDelay * 2,
+                       TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testSpillDoesNotCountAttempts() throws Throwable {
+    Notification<NotificationItem> n = note();
+
+    rq.spill(n);
+
+    assertSame(n, in.poll(5, TimeUnit.SECONDS));
+    assertEquals(0, n.getAttempts());
+  }
+
+  /* Deferred notifications come back in the order given */
+  @Test
+  public void testDeferKeepsOrder() throws Throwable {
+    List<Notification<NotificationItem>> notes =
+        new ArrayList<Notification<NotificationItem>>();
+
+    for (int i = 0; i < 20; i++) {
+      notes.add(note());
+    }
+
+    rq.defer(notes);
+
+    for (Notification<NotificationItem> n: notes) {
+      assertSame(n, in.poll(5, TimeUnit.SECONDS));
+      assertEquals(0, n.getAttempts());
+    }
+  }
+
+  /* Everything still waiting comes back from the drain and is never moved
+   * to the input queue.
+   */
+  @Test
+  public void testDrainReturnsWaiting() throws Throwable {
+    Notification<NotificationItem> n1 = note();
+    Notification<NotificationItem> n2 = note();
+
+    n1.incAttempts();
+    n1.incAttempts();
+    n1.incAttempts();
+
+    assertTrue(rq.retry(n1));
+    rq.spill(n2);
+
+    List<Notification<NotificationItem>> notes = rq.drain();
+
+    assertEquals(2, notes.size());
+    assertTrue(notes.contains(n1));
+    assertTrue(notes.contains(n2));
+
+    assertNull(in.poll(NotificationRetryQueue.spillDelay * 2,
+                       TimeUnit.MILLISECONDS));
+  }
+
+  /* A drain while the mover waits for space in a full input queue must not
+   * lose the notification it has in hand.
+   */
+  @Test
+  public void testDrainWithFullInputQueue() throws Throwable {
+    rq.stop();
+
+    in = new LinkedBlockingQueue<Notification<NotificationItem>>(1);
+    in.add(note());
+
+    rq = new NotificationRetryQueue();
+    rq.start(in);
+
+    Notification<NotificationItem> n = note();
+    rq.spill(n);
+
+    // Give the mover time to take it and block on the full queue
+    Thread.sleep(NotificationRetryQueue.spillDelay + 500);
+
+    List<Notification<NotificationItem>> notes = rq.drain();
+
+    assertEquals(1, notes.size());
+    assertSame(n, notes.get(0));
+  }
+
+  private static Notification<NotificationItem> note() {
+    return new Notification<NotificationItem>("sub1");
+  }
+}
@@ -0,0 +1,328 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.PartitionLeaseManager.LeaseStore;
+import org.bedework.synch.db.PartitionLease;
+import org.bedework.synch.exception.SynchException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Test several lease managers sharing one store. The heartbeats are driven
+ * by the tests rather than the heartbeat thread.
+ *
+ */
+public class PartitionLeaseManagerTest {
+  private static final int partitions = 12;
+
+  private static final long leaseDuration = 60000;
+
+  /* Behaves like the db - the seq is checked and bumped on each update */
+  private static class MemLeaseStore implements LeaseStore {
+    final Map<Integer, PartitionLease> leases =
+        new TreeMap<Integer, PartitionLease>();
+
+    boolean failing;
+
+    @Override
+    public synchronized List<PartitionLease> getLeases()
+        throws SynchException {
+      if (failing) {
+        throw new SynchException("store down");
+      }
+
+      List<PartitionLease> res = new ArrayList<PartitionLease>();
+
+      for (PartitionLease l: leases.values()) {
+        res.add(copy(l));
+      }
+
+      return res;
+    }
+
+    @Override
+    public synchronized boolean add(final PartitionLease lease)
+        throws SynchException {
+      if (leases.containsKey(lease.getPartition())) {
+        return false;
+      }
+
+      leases.put(lease.getPartition(), copy(lease));
+
+      return true;
+    }
+
+    @Override
+    public synchronized boolean update(final PartitionLease lease)
+        throws SynchException {
+      PartitionLease cur = leases.get(lease.getPartition());
+
+      if (!cur.getSeq().equals(lease.getSeq())) {
+        return false;
+      }
+
+      lease.setSeq(lease.getSeq() + 1);
+      leases.put(lease.getPartition(), copy(lease));
+
+      return true;
+    }
+
+    /* Let the leases of a node lapse as if it had died */
+    synchronized void expire(final String owner) {
+      for (PartitionLease l: leases.values()) {
+        if (owner.equals(l.getOwner())) {
+          l.setExpires(System.currentTimeMillis() - 1);
+        }
+      }
+    }
+
+    synchronized Set<Integer> ownedBy(final String owner) {
+      Set<Integer> res = new TreeSet<Integer>();
+      long now = System.currentTimeMillis();
+
+      for (PartitionLease l: leases.values()) {
+        if ((l.getPartition() >= 0) && l.held(now) &&
+            owner.equals(l.getOwner())) {
+          res.add(l.getPartition());
+        }
+      }
+
+      return res;
+    }
+
+    private static PartitionLease copy(final PartitionLease l) {
+      PartitionLease c = new PartitionLease(l.getPartition());
+
+      c.setOwner(l.getOwner());
+      c.setExpires(l.getExpires());
+      c.setSeq(l.getSeq());
+
+      return c;
+    }
+  }
+
+  private static class Changes implements PartitionLeaseManager.Listener {
+    final Set<Integer> gained = new TreeSet<Integer>();
+
+    final Set<Integer> lost = new TreeSet<Integer>();
+
+    @Override
+    public void gained(final Set<Integer> partitions) {
+      gained.addAll(partitions);
+    }
+
+    @Override
+    public void lost(final Set<Integer> partitions) {
+      lost.addAll(partitions);
+    }
+  }
+
+  private final MemLeaseStore store = new MemLeaseStore();
+
+  @Test
+  public void testSingleNodeTakesAll() {
+    PartitionLeaseManager a = manager("a");
+    Changes ca = listen(a);
+
+    a.heartbeat();
+
+    assertEquals(partitions, a.getOwned().size());
+    assertEquals(a.getOwned(), ca.gained);
+    assertEquals(a.getOwned(), store.ownedBy("a"));
+
+    for (int i = 0; i < 100; i++) {
+      assertTrue(a.owns("sub" + i));
+    }
+  }
+
+  /* A joining node gets its share once the others give up their excess */
+  @Test
+  public void testRebalanceOnJoin() {
+    PartitionLeaseManager a = manager("a");
+    PartitionLeaseManager b = manager("b");
+    Changes ca = listen(a);
+    Changes cb = listen(b);
+
+    a.heartbeat();
+    b.heartbeat();
+
+    /* b can't take anything yet but a now sees it as live */
+    assertTrue(b.getOwned().isEmpty());
+    assertTrue(cb.gained.isEmpty());
+
+    a.heartbeat();
+    assertEquals(partitions / 2, a.getOwned().size());
+    assertEquals(partitions / 2, ca.lost.size());
+
+    b.heartbeat();
+    assertEquals(partitions / 2, b.getOwned().size());
+    assertEquals(b.getOwned(), cb.gained);
+
+    assertDisjointAndComplete(a, b);
+  }
+
+  @Test
+  public void testThreeNodesRebalance() {
+    PartitionLeaseManager a = manager("a");
+    PartitionLeaseManager b = manager("b");
+    PartitionLeaseManager c = manager("c");
+
+    a.heartbeat();
+
+    for (int i = 0; i < 3; i++) {
+      a.heartbeat();
+      b.heartbeat();
+      c.heartbeat();
+    }
+
+    assertEquals(partitions / 3, a.getOwned().size());
+    assertEquals(partitions / 3, b.getOwned().size());
+    assertEquals(partitions / 3, c.getOwned().size());
+
+    assertDisjointAndComplete(a, b, c);
+  }
+
+  /* The partitions of a node which stops heartbeating are taken over and it
+   * finds out it lost them on its next heartbeat
+   */
+  @Test
+  public void testHeartbeatTakeover() {
+    PartitionLeaseManager a = manager("a");
+    PartitionLeaseManager b = manager("b");
+    Changes ca = listen(a);
+    Changes cb = listen(b);
+
+    a.heartbeat();
+    Set<Integer> aOwned = a.getOwned();
+
+    store.expire("a");
+
+    b.heartbeat();
+    assertEquals(aOwned, b.getOwned());
+    assertEquals(aOwned, cb.gained);
+
+    a.heartbeat();
+    assertTrue(a.getOwned().isEmpty());
+    assertEquals(aOwned, ca.lost);
+
+    assertDisjointAndComplete(a, b);
+  }
+
+  /* stop() gives the leases up so another node can take them at once */
+  @Test
+  public void testReleaseOnStop() {
+    PartitionLeaseManager a = manager("a");
+    PartitionLeaseManager b = manager("b");
+
+    a.heartbeat();
+    b.heartbeat();
+    a.heartbeat();
+    b.heartbeat();
+
+    assertEquals(partitions / 2, a.getOwned().size());
+
+    a.stop();
+
+    assertTrue(a.getOwned().isEmpty());
+    assertTrue(store.ownedBy("a").isEmpty());
+
+    b.heartbeat();
+    assertEquals(partitions, b.getOwned().size());
+  }
+
+  /* When we can't renew we stop using a partition at its recorded expiry */
+  @Test
+  public void testLeaseLapsesWhenStoreDown() throws Throwable {
+    PartitionLeaseManager a =
+        new PartitionLeaseManager("a", partitions, 1000, store);
+
+    a.heartbeat();
+    assertEquals(partitions, a.getOwned().size());
+
+    store.failing = true;
+    a.heartbeat();
+
+    assertEquals(partitions, a.getOwned().size());
+
+    Thread.sleep(1100);
+
+    assertTrue(a.getOwned().isEmpty());
+    assertFalse(a.owns("sub1"));
+  }
+
+  /* A lease renewed by someone else behind our back is lost */
+  @Test
+  public void testLostRace() {
+    PartitionLeaseManager a = manager("a");
+    Changes ca = listen(a);
+
+    a.heartbeat();
+
+    synchronized (store) {
+      PartitionLease l = store.leases.get(0);
+      l.setOwner("b");
+      l.setSeq(l.getSeq() + 1);
+    }
+
+    a.heartbeat();
+
+    assertFalse(a.getOwned().contains(0));
+    assertTrue(ca.lost.contains(0));
+  }
+
+  private PartitionLeaseManager manager(final String nodeId) {
+    return new PartitionLeaseManager(nodeId, partitions, leaseDuration,
+                                     store);
+  }
+
+  private Changes listen(final PartitionLeaseManager m) {
+    Changes c = new Changes();
+
+    m.setListener(c);
+
+    return c;
+  }
+
+  private void assertDisjointAndComplete(final PartitionLeaseManager... ms) {
+    Set<Integer> all = new TreeSet<Integer>();
+    int total = 0;
+
+    for (PartitionLeaseManager m: ms) {
+      Set<Integer> owned = m.getOwned();
+
+      assertEquals(owned, store.ownedBy(m.getNodeId()));
+      all.addAll(owned);
+      total += owned.size();
+    }
+
+    assertEquals(partitions, all.size());
+    assertEquals(partitions, total);
+  }
+}
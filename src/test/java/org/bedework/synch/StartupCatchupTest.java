@@ -0,0 +1,81 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Test spreading of overdue subscriptions at startup
+ *
+ */
+public class StartupCatchupTest {
+  @Test
+  public void testDisabled() {
+    StartupCatchup sc = new StartupCatchup(0);
+
+    assertFalse(sc.isEnabled());
+    assertEquals(0, sc.delay("sub1"));
+    assertEquals(0, sc.getOverdueCt());
+  }
+
+  @Test
+  public void testDelayIsStableAndInWindow() {
+    long window = 60 * 60 * 1000;
+    StartupCatchup sc = new StartupCatchup(window);
+
+    for (int i = 0; i < 1000; i++) {
+      long d = sc.delay("sub" + i);
+
+      assertTrue(d >= 0);
+      assertTrue(d < window);
+    }
+
+    assertEquals(new StartupCatchup(window).delay("sub1"),
+                 sc.delay("sub1"));
+    assertEquals(1001, sc.getOverdueCt());
+    assertEquals(0, sc.getReleasedCt());
+  }
+
+  /* Once the window has passed everything is released and later delays are
+   * no longer counted.
+   */
+  @Test
+  public void testCountsStopWhenComplete() throws Throwable {
+    StartupCatchup sc = new StartupCatchup(100);
+
+    for (int i = 0; i < 50; i++) {
+      sc.delay("sub" + i);
+    }
+
+    Thread.sleep(150);
+
+    assertTrue(sc.isComplete());
+    assertEquals(50, sc.getReleasedCt());
+
+    for (int i = 50; i < 100; i++) {
+      sc.delay("sub" + i);
+    }
+
+    assertEquals(50, sc.getOverdueCt());
+    assertEquals(50, sc.getReleasedCt());
+  }
+}
@@ -0,0 +1,253 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.Notification.NotificationItem;
+import org.bedework.synch.Notification.NotificationItem.ActionType;
+import org.bedework.synch.SubscriptionMailboxes.Claim;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Test the per subscription mailboxes
+ *
+ */
+public class SubscriptionMailboxesTest {
+  private static final String subid = "sub1";
+
+  @Test
+  public void testDeferredInOrder() {
+    SubscriptionMailboxes mbs = new SubscriptionMailboxes();
+
+    Notification<NotificationItem> n1 = note();
+    Notification<NotificationItem> n2 = note();
+    Notification<NotificationItem> n3 = note();
+
+    assertEquals(Claim.claimed, mbs.claimOrDefer(subid, n1));
+    assertEquals(Claim.deferred, mbs.claimOrDefer(subid, n2));
+    assertEquals(Claim.deferred, mbs.claimOrDefer(subid, n3));
+
+    assertSame(n2, mbs.next(subid));
+    assertSame(n3, mbs.next(subid));
+    assertNull(mbs.next(subid));
+
+    assertEquals(0, mbs.getClaimedCt());
+
+    // Released - the next one claims it
+    assertEquals(Claim.claimed, mbs.claimOrDefer(subid, n1));
+  }
+
+  @Test
+  public void testReleaseReturnsDeferred() {
+    SubscriptionMailboxes mbs = new SubscriptionMailboxes();
+
+    Notification<NotificationItem> n2 = note();
+    Notification<NotificationItem> n3 = note();
+
+    assertEquals(Claim.claimed, mbs.claimOrDefer(subid, note()));
+    mbs.claimOrDefer(subid, n2);
+    mbs.claimOrDefer(subid, n3);
+
+    List<Notification<NotificationItem>> notes = mbs.release(subid);
+
+    assertEquals(2, notes.size());
+    assertSame(n2, notes.get(0));
+    assertSame(n3, notes.get(1));
+    assertEquals(0, mbs.getClaimedCt());
+    assertTrue(mbs.release(subid).isEmpty());
+  }
+
+  /* Shutdown takes what is waiting but the claim stays until released */
+  @Test
+  public void testTakeWaiting() {
+    SubscriptionMailboxes mbs = new SubscriptionMailboxes();
+
+    Notification<NotificationItem> n2 = note();
+    Notification<NotificationItem> other = new Notification<NotificationItem>("sub2");
+
+    assertEquals(Claim.claimed, mbs.claimOrDefer(subid, note()));
+    mbs.claimOrDefer(subid, n2);
+    assertEquals(Claim.claimed, mbs.claimOrDefer("sub2", note()));
+    mbs.claimOrDefer("sub2", other);
+
+    List<Notification<NotificationItem>> notes = mbs.takeWaiting();
+
+    assertEquals(2, notes.size());
+    assertTrue(notes.contains(n2));
+    assertTrue(notes.contains(other));
+    assertEquals(2, mbs.getClaimedCt());
+
+    assertNull(mbs.next(subid));
+    assertTrue(mbs.release("sub2").isEmpty());
+    assertEquals(0, mbs.getClaimedCt());
+  }
+
+  @Test(timeout = 10000)
+  public void testClaimWaitsForRelease() throws Throwable {
+    final SubscriptionMailboxes mbs = new SubscriptionMailboxes();
+    final CountDownLatch claimed = new CountDownLatch(1);
+
+    assertEquals(Claim.claimed, mbs.claimOrDefer(subid, note()));
+
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          mbs.claim(subid);
+          claimed.countDown();
+        } catch (InterruptedException ie) {
+        }
+      }
+    };
+
+    t.start();
+
+    Thread.sleep(100);
+    assertEquals(1, claimed.getCount());
+
+    assertNull(mbs.next(subid));
+
+    claimed.await();
+    assertEquals(1, mbs.getClaimedCt());
+    t.join();
+  }
+
+  /* Many threads offering work for one subscription. Each notification must
+   * be processed exactly once and never by two threads at the same time.
+   */
+  @Test(timeout = 30000)
+  public void testConcurrentClaims() throws Throwable {
+    final int threads = 8;
+    final int perThread = 2000;
+    final SubscriptionMailboxes mbs =
+        new SubscriptionMailboxes(threads * perThread);
+    final AtomicInteger processed = new AtomicInteger();
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger overlaps = new AtomicInteger();
+    final CountDownLatch go = new CountDownLatch(1);
+
+    List<Thread> ts = new ArrayList<Thread>();
+
+    for (int i = 0; i < threads; i++) {
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            go.await();
+          } catch (InterruptedException ie) {
+            return;
+          }
+
+          for (int j = 0; j < perThread; j++) {
+            Notification<NotificationItem> n = note();
+
+            if (mbs.claimOrDefer(subid, n) != Claim.claimed) {
+              continue;
+            }
+
+            while (n != null) {
+              if (active.incrementAndGet() != 1) {
+                overlaps.incrementAndGet();
+              }
+
+              processed.incrementAndGet();
+              active.decrementAndGet();
+
+              n = mbs.next(subid);
+            }
+          }
+        }
+      };
+
+      ts.add(t);
+      t.start();
+    }
+
+    go.countDown();
+
+    for (Thread t: ts) {
+      t.join();
+    }
+
+    assertEquals(0, overlaps.get());
+    assertEquals(threads * perThread, processed.get());
+    assertEquals(0, mbs.getClaimedCt());
+  }
+
+  /* A full synch waiting in the mailbox covers later full synchs and item
+   * changes */
+  @Test
+  public void testFullSynchMerged() {
+    SubscriptionMailboxes mbs = new SubscriptionMailboxes();
+
+    Notification<NotificationItem> fs = note(ActionType.FullSynch);
+    Notification<NotificationItem> other = note();
+
+    assertEquals(Claim.claimed, mbs.claimOrDefer(subid, note()));
+    assertEquals(Claim.deferred, mbs.claimOrDefer(subid, fs));
+    assertEquals(Claim.merged,
+                 mbs.claimOrDefer(subid, note(ActionType.FullSynch)));
+    assertEquals(Claim.merged,
+                 mbs.claimOrDefer(subid, note(ActionType.ModifiedEvent)));
+    assertEquals(Claim.deferred, mbs.claimOrDefer(subid, other));
+
+    assertSame(fs, mbs.next(subid));
+
+    // Taken - the next full synch waits again
+    assertEquals(Claim.deferred,
+                 mbs.claimOrDefer(subid, note(ActionType.FullSynch)));
+
+    assertSame(other, mbs.next(subid));
+  }
+
+  @Test
+  public void testCapacity() {
+    SubscriptionMailboxes mbs = new SubscriptionMailboxes(2);
+
+    assertEquals(Claim.claimed, mbs.claimOrDefer(subid, note()));
+    assertEquals(Claim.deferred, mbs.claimOrDefer(subid, note()));
+    assertEquals(Claim.deferred, mbs.claimOrDefer(subid, note()));
+    assertEquals(Claim.full, mbs.claimOrDefer(subid, note()));
+
+    mbs.next(subid);
+
+    assertEquals(Claim.deferred, mbs.claimOrDefer(subid, note()));
+  }
+
+  private static Notification<NotificationItem> note() {
+    return new Notification<NotificationItem>(subid);
+  }
+
+  private static Notification<NotificationItem> note(final ActionType action) {
+    Notification<NotificationItem> n = note();
+
+    n.addNotificationItem(new NotificationItem(action));
+
+    return n;
+  }
+}
@@ -0,0 +1,144 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.db.Subscription;
+import org.bedework.synch.exception.SynchException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Test keyset paging of the subscriptions
+ *
+ */
+public class SubscriptionPagerTest {
+  /* A table in id order with a query like SynchDb.getPage */
+  private static class Pager extends SubscriptionPager {
+    final List<Subscription> table = new ArrayList<Subscription>();
+
+    final List<String> afterIds = new ArrayList<String>();
+
+    final List<String> seen = new ArrayList<String>();
+
+    int stopAfter = Integer.MAX_VALUE;
+
+    Pager(final int pageSize, final int num) {
+      super(pageSize);
+
+      for (int i = 0; i < num; i++) {
+        table.add(new Subscription(String.format("sub%04d", i)));
+      }
+    }
+
+    @Override
+    List<Subscription> getPage(final String afterId,
+                               final int max) throws SynchException {
+      afterIds.add(afterId);
+
+      List<Subscription> page = new ArrayList<Subscription>();
+
+      for (Subscription sub: table) {
+        if (page.size() == max) {
+          break;
+        }
+
+        if ((afterId == null) ||
+            (sub.getSubscriptionId().compareTo(afterId) > 0)) {
+          page.add(sub);
+        }
+      }
+
+      return page;
+    }
+
+    @Override
+    boolean process(final Subscription sub) throws SynchException {
+      seen.add(sub.getSubscriptionId());
+
+      /* Accept every other one */
+      return (seen.size() % 2) == 1;
+    }
+
+    @Override
+    boolean stopped() {
+      return afterIds.size() >= stopAfter;
+    }
+  }
+
+  @Test
+  public void testAllSeenOnceInOrder() throws Throwable {
+    Pager p = new Pager(10, 35);
+
+    assertEquals(18, p.run());
+    assertEquals(35, p.seen.size());
+
+    for (int i = 0; i < 35; i++) {
+      assertEquals(p.table.get(i).getSubscriptionId(), p.seen.get(i));
+    }
+
+    assertEquals(4, p.afterIds.size());
+    assertNull(p.afterIds.get(0));
+    assertEquals("sub0009", p.afterIds.get(1));
+    assertEquals("sub0029", p.afterIds.get(3));
+  }
+
+  /* A full last page needs one more query to find the end */
+  @Test
+  public void testExactPages() throws Throwable {
+    Pager p = new Pager(10, 20);
+
+    p.run();
+
+    assertEquals(20, p.seen.size());
+    assertEquals(3, p.afterIds.size());
+  }
+
+  @Test
+  public void testEmpty() throws Throwable {
+    Pager p = new Pager(10, 0);
+
+    assertEquals(0, p.run());
+    assertEquals(1, p.afterIds.size());
+  }
+
+  @Test
+  public void testBadPageSize() throws Throwable {
+    Pager p = new Pager(0, 3);
+
+    p.run();
+
+    assertEquals(3, p.seen.size());
+    assertEquals(4, p.afterIds.size());
+  }
+
+  @Test
+  public void testStopped() throws Throwable {
+    Pager p = new Pager(10, 50);
+    p.stopAfter = 2;
+
+    p.run();
+
+    assertEquals(20, p.seen.size());
+  }
+}
@@ -0,0 +1,163 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.bedework.synch.Notification.NotificationItem;
+import org.bedework.synch.db.Subscription;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Test the timing wheel. The tests turn the wheel themselves.
+ *
+ */
+public class SynchTimerTest {
+  @Test
+  public void testExpiresWhenDue() throws Throwable {
+    SynchTimer timer = new SynchTimer(null, false);
+
+    timer.schedule(new Subscription("sub1"), 3000);
+
+    assertEquals(1, timer.getWaitingCt());
+
+    List<String> expired = turn(timer, 1, 2);
+    assertTrue(expired.isEmpty());
+
+    expired = turn(timer, 3, 5);
+    assertEquals(1, expired.size());
+    assertEquals("sub1", expired.get(0));
+    assertEquals(0, timer.getWaitingCt());
+  }
+
+  @Test
+  public void testRescheduleReplaces() throws Throwable {
+    SynchTimer timer = new SynchTimer(null, false);
+    Subscription sub = new Subscription("sub1");
+
+    timer.schedule(sub, 2000);
+    timer.schedule(sub, 5000);
+
+    assertEquals(1, timer.getWaitingCt());
+    assertTrue(turn(timer, 1, 3).isEmpty());
+    assertEquals(1, turn(timer, 4, 7).size());
+  }
+
+  @Test
+  public void testCancel() throws Throwable {
+    SynchTimer timer = new SynchTimer(null, false);
+
+    timer.schedule(new Subscription("sub1"), 1000);
+    timer.cancel("sub1");
+
+    assertEquals(0, timer.getWaitingCt());
+    assertTrue(turn(timer, 1, 4).isEmpty());
+  }
+
+  /* Schedule in the past while the wheel turns. Every subscription must
+   * expire exactly once and no later than the tick after the one being
+   * turned when schedule returned - never be lost or wait for the wheel to
+   * come round again.
+   */
+  @Test(timeout = 60000)
+  public void testScheduleRacesExpire() throws Throwable {
+    final SynchTimer timer = new SynchTimer(null, false);
+    final int subs = 20000;
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicLong turning = new AtomicLong();
+    final Map<String, Long> expiredAt = new HashMap<String, Long>();
+    final Map<String, Integer> expiredCts = new HashMap<String, Integer>();
+    final Map<String, Long> scheduledAt = new ConcurrentHashMap<String, Long>();
+
+    Thread ticker = new Thread() {
+      @Override
+      public void run() {
+        long tick = 1;
+        long doneAt = -1;
+
+        while (true) {
+          if ((doneAt < 0) && done.get()) {
+            doneAt = tick;
+          }
+
+          if ((doneAt >= 0) &&
+              ((timer.getWaitingCt() == 0) || (tick > doneAt + 1000))) {
+            break;
+          }
+
+          turning.set(tick);
+
+          for (Notification<NotificationItem> n: timer.expire(tick)) {
+            String id = n.getSubscriptionId();
+            Integer ct = expiredCts.get(id);
+            expiredCts.put(id, (ct == null) ? 1 : ct + 1);
+            expiredAt.put(id, tick);
+          }
+
+          tick++;
+        }
+      }
+    };
+
+    ticker.start();
+
+    for (int i = 0; i < subs; i++) {
+      String id = "sub" + i;
+
+      timer.schedule(new Subscription(id), -1000);
+      scheduledAt.put(id, turning.get());
+    }
+
+    done.set(true);
+    ticker.join();
+
+    assertEquals(0, timer.getWaitingCt());
+    assertEquals(subs, expiredCts.size());
+
+    for (String id: expiredCts.keySet()) {
+      assertEquals(1, expiredCts.get(id).intValue());
+      assertTrue(id + " waited too long",
+                 expiredAt.get(id) <= scheduledAt.get(id) + 1);
+    }
+  }
+
+  /* Turn the wheel from tick from to tick to inclusive */
+  private List<String> turn(final SynchTimer timer,
+                            final long from,
+                            final long to) {
+    List<String> ids = new ArrayList<String>();
+
+    for (long tick = from; tick <= to; tick++) {
+      for (Notification<NotificationItem> n: timer.expire(tick)) {
+        ids.add(n.getSubscriptionId());
+      }
+    }
+
+    return ids;
+  }
+}
@@ -0,0 +1,159 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.synch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/** Test sizing of the synchling pool
+ *
+ */
+public class SynchlingPoolTest {
+  @Test
+  public void testGetAndReturn() throws Throwable {
+    SynchlingPool pool = pool(2);
+
+    Synchling s1 = pool.get();
+    Synchling s2 = pool.get();
+    assertNull(pool.getNoException());
+    assertEquals(2, pool.getActiveCt());
+
+    pool.add(s1);
+    pool.add(s2);
+
+    assertEquals(0, pool.getActiveCt());
+    assertEquals(2, pool.getCurrentAvailable());
+    assertEquals(2, pool.getCurrentSize());
+  }
+
+  /* Active synchlings above the new size are discarded as they come back */
+  @Test
+  public void testShrinkWhileActive() throws Throwable {
+    SynchlingPool pool = pool(4);
+    List<Synchling> held = getAll(pool, 4);
+
+    pool.resize(2);
+    assertEquals(4, pool.getCurrentSize());
+
+    for (Synchling s: held) {
+      pool.add(s);
+    }
+
+    assertEquals(2, pool.getCurrentSize());
+    assertEquals(2, pool.getCurrentAvailable());
+  }
+
+  /* Shrink is still honoured when the pool may grow */
+  @Test
+  public void testShrinkElastic() throws Throwable {
+    SynchlingPool pool = pool(4);
+    pool.setElastic(8, 0);
+
+    List<Synchling> held = getAll(pool, 4);
+
+    pool.resize(2);
+
+    for (Synchling s: held) {
+      pool.add(s);
+    }
+
+    assertEquals(2, pool.getCurrentSize());
+  }
+
+  /* Synchlings added by growth are kept when returned */
+  @Test
+  public void testGrownKept() throws Throwable {
+    SynchlingPool pool = pool(2);
+    pool.setElastic(4, 0);
+
+    List<Synchling> held = getAll(pool, 3);
+    assertEquals(3, pool.getCurrentSize());
+
+    for (Synchling s: held) {
+      pool.add(s);
+    }
+
+    assertEquals(3, pool.getCurrentSize());
+    assertEquals(3, pool.getCurrentAvailable());
+  }
+
+  /* Grown synchlings which stay idle are discarded */
+  @Test(timeout = 10000)
+  public void testGrownReaped() throws Throwable {
+    SynchlingPool pool = pool(2);
+    pool.setElastic(4, 50);
+
+    List<Synchling> held = getAll(pool, 4);
+    assertEquals(4, pool.getCurrentSize());
+
+    for (Synchling s: held) {
+      pool.add(s);
+    }
+
+    while (pool.getCurrentSize() > 2) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(2, pool.getCurrentAvailable());
+  }
+
+  /* Growing again keeps the size */
+  @Test
+  public void testGrowAfterShrink() throws Throwable {
+    SynchlingPool pool = pool(4);
+    List<Synchling> held = getAll(pool, 4);
+
+    pool.resize(2);
+    pool.resize(4);
+
+    for (Synchling s: held) {
+      pool.add(s);
+    }
+
+    assertEquals(4, pool.getCurrentSize());
+    assertEquals(4, pool.getCurrentAvailable());
+  }
+
+  private SynchlingPool pool(final int size) throws Throwable {
+    SynchlingPool pool = new SynchlingPool();
+
+    pool.start(null, size, 200);
+
+    return pool;
+  }
+
+  private List<Synchling> getAll(final SynchlingPool pool,
+                                 final int num) throws Throwable {
+    List<Synchling> held = new ArrayList<Synchling>();
+
+    for (int i = 0; i < num; i++) {
+      Synchling s = pool.get();
+      assertNotNull(s);
+      held.add(s);
+    }
+
+    return held;
+  }
+}